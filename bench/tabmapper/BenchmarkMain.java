@@ -0,0 +1,30 @@
+package tabmapper;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the <code>TabMapper</code> benchmarks with the GC profiler, so that for each stage the
+ * throughput, the latency percentiles, and the allocation rate are reported.
+ *
+ * Takes the usual JMH command line arguments, e.g.,
+ * <code>SyntheticBenchmark -p numVoices=6</code> to run only the synthetic benchmarks for
+ * six voices. Without arguments, all benchmarks are run.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions cli = new CommandLineOptions(args);
+		OptionsBuilder ob = new OptionsBuilder();
+		ob.parent(cli).addProfiler(GCProfiler.class);
+		if (args.length == 0) {
+			ob.include("tabmapper\\..*Benchmark");
+		}
+		new Runner(ob.build()).run();
+	}
+
+}
@@ -0,0 +1,228 @@
+package tabmapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.uos.fmt.musitech.utility.math.Rational;
+
+/**
+ * Benchmarks the stages of <code>TabMapper</code> that work on chords rather than on whole
+ * pieces, on synthetic pieces of the given number of notes and voices.
+ *
+ * A synthetic piece is a sequence of model chords in which each voice moves by at most a fourth
+ * from chord to chord, and a tablature chord per model chord that differs from it by ficta,
+ * missing, and added pitches, at rates similar to those found in the corpus. The pieces are
+ * generated from a fixed seed.
+ *
+ * <code>map()</code> as a whole needs a <code>Tablature</code>, which can only be made from an
+ * encoding; it is benchmarked in {@link TestpieceBenchmark}, on any encoded piece.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SyntheticBenchmark {
+	private static final int KEY_SIG = -1;
+	private static final int MODE = 0;
+
+	@Param({"1000", "10000", "100000"})
+	public int numNotes;
+
+	@Param({"4", "5", "6"})
+	public int numVoices;
+
+	private List<List<Integer>> pitchesTab;
+	private List<List<Integer>> indicesTab;
+	private List<List<Integer>> pitchesModel;
+	// Per chord: the pitches of the previous chord as [voice, pitch], and the pitches of the
+	// current chord, some of which are null (as after padding in mapPitchesNotInMIDI())
+	private List<List<Integer[]>> lastPitches;
+	private List<List<Integer>> pitches;
+	private List<Rational> durations;
+	// The onset of each chord, and, per voice (starting at the highest), the onsets and
+	// pitches of its notes
+	private List<Rational> onsets;
+	private Rational[][] onsetsPerVoice;
+	private int[][] pitchesPerVoice;
+	// The chords whose initial mapping (by mapTabChordToMIDI()) leaves pitches to be mapped
+	// by mapPitchesNotInMIDI(), and their initial mappings
+	private List<Integer> notInMIDIChords;
+	private List<List<Object>> initialMappings;
+
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random r = new Random(numNotes * 10 + numVoices);
+		pitchesTab = new ArrayList<>();
+		indicesTab = new ArrayList<>();
+		pitchesModel = new ArrayList<>();
+		lastPitches = new ArrayList<>();
+		pitches = new ArrayList<>();
+		durations = new ArrayList<>();
+		onsets = new ArrayList<>();
+		List<List<Rational>> onsetsVoices = new ArrayList<>();
+		List<List<Integer>> pitchesVoices = new ArrayList<>();
+		for (int v = 0; v < numVoices; v++) {
+			onsetsVoices.add(new ArrayList<>());
+			pitchesVoices.add(new ArrayList<>());
+		}
+
+		// Start with voices a fifth apart (voice 0 is the highest)
+		int[] curr = new int[numVoices];
+		for (int v = 0; v < numVoices; v++) {
+			curr[v] = 72 - 7*v;
+		}
+		int numTabNotes = 0;
+		while (numTabNotes < numNotes) {
+			int[] prev = curr.clone();
+			for (int v = 0; v < numVoices; v++) {
+				curr[v] = Math.max(36, Math.min(84, curr[v] + r.nextInt(11) - 5));
+			}
+
+			// The model pitches are arranged per voice, from low to high
+			Rational onset = new Rational(pitchesTab.size(), 4);
+			onsets.add(onset);
+			List<Integer> model = new ArrayList<>();
+			List<Integer> tab = new ArrayList<>();
+			for (int v = numVoices - 1; v >= 0; v--) {
+				// Model voices can be inactive
+				boolean isActive = r.nextInt(10) != 0;
+				model.add(isActive ? curr[v] : null);
+				if (isActive) {
+					onsetsVoices.get(v).add(onset);
+					pitchesVoices.get(v).add(curr[v]);
+					int rand = r.nextInt(20);
+					// Missing pitch
+					if (rand == 0) {
+						continue;
+					}
+					// Ficta
+					tab.add(rand == 1 ? curr[v] + 1 : curr[v]);
+				}
+			}
+			// Added pitch
+			if (r.nextInt(5) == 0) {
+				tab.add(36 + r.nextInt(48));
+			}
+			Collections.sort(tab);
+			List<Integer> inds = new ArrayList<>();
+			for (int j = 0; j < tab.size(); j++) {
+				inds.add(numTabNotes + j);
+			}
+			numTabNotes += tab.size();
+			pitchesTab.add(tab);
+			indicesTab.add(inds);
+			pitchesModel.add(model);
+
+			List<Integer[]> last = new ArrayList<>();
+			List<Integer> next = new ArrayList<>();
+			for (int v = numVoices - 1; v >= 0; v--) {
+				last.add(new Integer[]{v, prev[v]});
+				next.add(r.nextInt(3) == 0 ? null : curr[v]);
+			}
+			lastPitches.add(last);
+			pitches.add(next);
+			durations.add(new Rational(1 + r.nextInt(95), 96 * (1 + r.nextInt(3))));
+		}
+
+		onsetsPerVoice = new Rational[numVoices][];
+		pitchesPerVoice = new int[numVoices][];
+		for (int v = 0; v < numVoices; v++) {
+			onsetsPerVoice[v] = onsetsVoices.get(v).toArray(new Rational[0]);
+			pitchesPerVoice[v] = pitchesVoices.get(v).stream().mapToInt(Integer::intValue).toArray();
+		}
+		notInMIDIChords = new ArrayList<>();
+		initialMappings = new ArrayList<>();
+		MappingContext ctx = new MappingContext(numVoices);
+		for (int i = 0; i < pitchesTab.size(); i++) {
+			List<Object> initialMapping = TabMapper.mapTabChordToMIDI(
+				pitchesTab.get(i), indicesTab.get(i), pitchesModel.get(i), KEY_SIG, MODE, ctx
+			);
+			int[] voiceMasks = (int[]) initialMapping.get(1);
+			if (Arrays.stream(voiceMasks).anyMatch(m -> m == VoiceMask.NONE)) {
+				notInMIDIChords.add(i);
+				initialMappings.add(initialMapping);
+			}
+		}
+	}
+
+
+	@Benchmark
+	public void mapTabChordToMIDI(Blackhole bh) {
+		MappingContext ctx = new MappingContext(numVoices);
+		for (int i = 0; i < pitchesTab.size(); i++) {
+			bh.consume(TabMapper.mapTabChordToMIDI(
+				pitchesTab.get(i), indicesTab.get(i), pitchesModel.get(i), KEY_SIG, MODE, ctx
+			));
+		}
+	}
+
+
+	@Benchmark
+	public void mapPitchesNotInMIDI(Blackhole bh) {
+		MappingContext ctx = new MappingContext(numVoices);
+		LastPitchTracker tracker = new LastPitchTracker(onsetsPerVoice, pitchesPerVoice, numVoices);
+		List<Integer[]> keyInfo = Collections.singletonList(new Integer[]{KEY_SIG, MODE});
+		for (int i = 0; i < notInMIDIChords.size(); i++) {
+			int c = notInMIDIChords.get(i);
+			List<List<Integer>> intLists = (List<List<Integer>>) initialMappings.get(i).get(0);
+			tracker.advanceTo(onsets.get(c));
+			// The pitches not in the MIDI and the voice masks are adapted
+			bh.consume(TabMapper.mapPitchesNotInMIDI(
+				pitchesTab.get(c), pitchesModel.get(c), new ArrayList<>(intLists.get(2)), 
+				new ArrayList<>(intLists.get(3)), new ArrayList<>(intLists.get(2)), 
+				intLists.get(4), intLists.get(7), intLists.get(5), 
+				((int[]) initialMappings.get(i).get(1)).clone(), keyInfo, onsets.get(c), 
+				"synthetic", null, null, tracker, ctx
+			));
+		}
+	}
+
+
+	@Benchmark
+	public void getCheapestMapping(Blackhole bh) {
+		List<List<Integer[]>> comb = CombinationTables.getCombinations(numVoices);
+		for (int i = 0; i < pitches.size(); i++) {
+			bh.consume(TabMapper.getCheapestMapping(pitches.get(i), comb, lastPitches.get(i)));
+		}
+	}
+
+
+	@Benchmark
+	public void assignmentSolver(Blackhole bh) {
+		AssignmentSolver solver = CombinationTables.getSolver(numVoices);
+		for (int i = 0; i < pitches.size(); i++) {
+			bh.consume(solver.getCheapestMapping(pitches.get(i), lastPitches.get(i)));
+		}
+	}
+
+
+	@Benchmark
+	public void findClosestMultiple(Blackhole bh) {
+		Rational gridValue = new Rational(1, TabMapper.SMALLEST_DUR);
+		for (Rational dur : durations) {
+			bh.consume(TabMapper.findClosestMultiple(dur, gridValue));
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+package tabmapper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.uos.fmt.musitech.utility.math.Rational;
+import external.Tablature;
+import external.Transcription;
+import interfaces.CLInterface;
+import tabmapper.TabMapper.Connection;
+import tools.text.StringTools;
+
+/**
+ * Benchmarks the stages of <code>TabMapper</code> on an encoded piece and its MIDI model. By
+ * default, the test piece used in <code>TabMapperTest</code> is used; other pieces can be given
+ * with <code>-p piece=&lt;dir&gt;/&lt;name&gt;</code>, relative to the encodings and MIDI
+ * paths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TestpieceBenchmark {
+
+	@Param({"test/5vv/testpiece"})
+	public String piece;
+
+	private Tablature tab;
+	private Transcription trans;
+	private int numVoices;
+	private List<Rational> durations;
+	private List<Rational> onsets;
+	// Per non-ornamental chord: the inputs for mapTabChordToMIDI()
+	private List<List<Integer>> pitchesTab;
+	private List<List<Integer>> indicesTab;
+	private List<List<Integer>> pitchesModel;
+	private int keySig;
+	private int mode;
+
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Map<String, String> paths = CLInterface.getPaths(true);
+		File encoding = new File(StringTools.getPathString(
+			Arrays.asList(paths.get("ENCODINGS_PATH"))) + piece + ".tbp"
+		);
+		File midi = new File(StringTools.getPathString(
+			Arrays.asList(paths.get("MIDI_PATH"))) + piece + ".mid"
+		);
+		tab = new Tablature(encoding);
+		trans = new Transcription(tab.getMeterInfo(), midi);
+		numVoices = trans.getNumberOfVoices();
+
+		durations = new ArrayList<>();
+		for (Integer[] b : trans.getBasicNoteProperties()) {
+			durations.add(new Rational(b[Transcription.DUR_NUMER], b[Transcription.DUR_DENOM]));
+		}
+
+		Integer[] key = trans.getKeyInfo().get(0);
+		keySig = key[Transcription.KI_KEY];
+		mode = key[Transcription.KI_MODE];
+		List<ChordGrid> gridAndMask = TabMapper.makeGridAndMask(trans, tab);
+		ChordGrid grid = gridAndMask.get(0);
+		ChordGrid mask = gridAndMask.get(1);
+		onsets = new ArrayList<>();
+		pitchesTab = new ArrayList<>();
+		indicesTab = new ArrayList<>();
+		pitchesModel = new ArrayList<>();
+		for (int i = 0; i < grid.getNumRows(); i++) {
+			if (mask.getPitch(i, 0) != ChordGrid.EMPTY && !grid.isEmpty(i)) {
+				int numPitchesTab = mask.getNumPitches(i);
+				onsets.add(new Rational(mask.getOnset(i), TabMapper.SMALLEST_DUR));
+				pitchesTab.add(mask.getPitches(i, numPitchesTab));
+				indicesTab.add(mask.getTabIndices(i, numPitchesTab));
+				pitchesModel.add(grid.getPitches(i, numVoices));
+			}
+		}
+	}
+
+
+	@Benchmark
+	public Object map() {
+		return TabMapper.map(trans, tab, new MappingContext(numVoices), false, Connection.LEFT);
+	}
+
+
+	@Benchmark
+	public Object makeGridAndMask() {
+		return TabMapper.makeGridAndMask(trans, tab);
+	}
+
+
+	@Benchmark
+	public void mapTabChordToMIDI(Blackhole bh) {
+		MappingContext ctx = new MappingContext(numVoices);
+		for (int i = 0; i < pitchesTab.size(); i++) {
+			bh.consume(TabMapper.mapTabChordToMIDI(
+				pitchesTab.get(i), indicesTab.get(i), pitchesModel.get(i), keySig, mode, ctx
+			));
+		}
+	}
+
+
+	@Benchmark
+	public void getLastPitchInVoices(Blackhole bh) {
+		List<Integer> allVoices = allVoices();
+		for (Rational onset : onsets) {
+			bh.consume(TabMapper.getLastPitchInVoices(allVoices, numVoices, onset, trans));
+		}
+	}
+
+
+	@Benchmark
+	public void lastPitchTracker(Blackhole bh) {
+		List<Integer> allVoices = allVoices();
+		LastPitchTracker tracker = new LastPitchTracker(trans, numVoices);
+		for (Rational onset : onsets) {
+			tracker.advanceTo(onset);
+			bh.consume(tracker.getLastPitchInVoices(allVoices));
+		}
+	}
+
+
+	@Benchmark
+	public void findClosestMultiple(Blackhole bh) {
+		Rational gridValue = new Rational(1, TabMapper.SMALLEST_DUR);
+		for (Rational dur : durations) {
+			bh.consume(TabMapper.findClosestMultiple(dur, gridValue));
+		}
+	}
+
+
+	private List<Integer> allVoices() {
+		List<Integer> allVoices = new ArrayList<>();
+		for (int v = 0; v < numVoices; v++) {
+			allVoices.add(v);
+		}
+		return allVoices;
+	}
+
+}
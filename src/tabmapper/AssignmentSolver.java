@@ -0,0 +1,278 @@
+package tabmapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the cheapest mapping of a list of pitches to the voices in a list of last pitches by
+ * branch and bound, rather than by trying all combinations as
+ * <code>TabMapper.getCheapestMapping()</code> does.
+ *
+ * The combinations are stored in a tree in which each level represents an index in the list of
+ * last pitches, and each path from the root to a leaf a combination. Each node holds the lowest
+ * rank (i.e., index in the list of combinations) of all combinations below it, so that ties are
+ * resolved in the same way as in <code>TabMapper.getCheapestMapping()</code>:
+ * <ol>
+ * <li>Lowest total cost.</li>
+ * <li>Most zero-cost mappings (i.e., repetitions).</li>
+ * <li>Lowest rank.</li>
+ * </ol>
+ * An <code>AssignmentSolver</code> is immutable and can be shared.
+ */
+final class AssignmentSolver {
+	private static final int NO_NODE = -1;
+
+	private final List<List<Integer[]>> comb;
+	private final int size;
+	private final boolean isValid;
+	private final int[] children;
+	private final int[] minRanks;
+	// The search state is reused, so that solving does not allocate apart from the result
+	private final ThreadLocal<Search> searches;
+
+
+	/**
+	 * Creates a solver for the given combinations, as returned by
+	 * <code>ToolBox.getCombinations()</code>. If the combinations are not all one-to-one
+	 * mappings of the same size, the solver falls back on
+	 * <code>TabMapper.getCheapestMapping()</code>.
+	 *
+	 * @param comb
+	 */
+	AssignmentSolver(List<List<Integer[]>> comb) {
+		this.comb = comb;
+		this.size = comb.isEmpty() ? 0 : comb.get(0).size();
+
+		// The number of nodes is at most 1 + n + n(n-1) + ... + n!
+		int maxNumNodes = 1;
+		int numAtLevel = 1;
+		for (int i = 0; i < size; i++) {
+			numAtLevel *= (size - i);
+			maxNumNodes += numAtLevel;
+		}
+		int[] ch = new int[maxNumNodes * size];
+		int[] mr = new int[maxNumNodes];
+		Arrays.fill(ch, NO_NODE);
+		Arrays.fill(mr, Integer.MAX_VALUE);
+		int numNodes = 1;
+		boolean valid = size > 0;
+		int[] secondListInds = new int[size];
+		for (int r = 0; r < comb.size() && valid; r++) {
+			List<Integer[]> currComb = comb.get(r);
+			valid = toSecondListIndices(currComb, secondListInds);
+			if (valid) {
+				int node = 0;
+				mr[node] = Math.min(mr[node], r);
+				for (int f = 0; f < size && valid; f++) {
+					int ind = node * size + secondListInds[f];
+					if (ch[ind] == NO_NODE) {
+						if (numNodes == maxNumNodes) {
+							valid = false;
+							break;
+						}
+						ch[ind] = numNodes++;
+					}
+					node = ch[ind];
+					mr[node] = Math.min(mr[node], r);
+				}
+			}
+		}
+		this.isValid = valid;
+		this.children = ch;
+		this.minRanks = mr;
+		this.searches = ThreadLocal.withInitial(() -> new Search(size));
+	}
+
+
+	/**
+	 * Finds the cheapest mapping of the given pitches to the voices in the given list of last
+	 * pitches. Gives the same result as <code>TabMapper.getCheapestMapping()</code>.
+	 *
+	 * @param pitches
+	 * @param lastPitchInAvailableVoices
+	 * @return See <code>TabMapper.getCheapestMapping()</code>.
+	 */
+	List<Integer[]> getCheapestMapping(List<Integer> pitches, List<Integer[]>
+		lastPitchInAvailableVoices) {
+		Search s = searches.get();
+		s.reset();
+		if (!isValid || lastPitchInAvailableVoices.size() != size || pitches.size() < size) {
+			s.numEvaluated = comb.size();
+			return TabMapper.getCheapestMapping(pitches, comb, lastPitchInAvailableVoices);
+		}
+
+		// costs[f][s] is the cost of mapping pitch s to the voice at index f; mapping a null
+		// pitch costs nothing, but does not count as a repetition
+		for (int f = 0; f < size; f++) {
+			int lastPitch = lastPitchInAvailableVoices.get(f)[1];
+			for (int p = 0; p < size; p++) {
+				Integer pitch = pitches.get(p);
+				s.costs[f][p] = pitch != null ? Math.abs(lastPitch - pitch) : 0;
+				s.isRepetition[f][p] = pitch != null && s.costs[f][p] == 0;
+			}
+		}
+		search(s, 0, 0, 0, 0);
+
+		// Build the mapping in the same order as TabMapper.getCheapestMapping()
+		List<Integer[]> cheapestMapping = new ArrayList<>();
+		for (Integer[] c : comb.get(s.bestRank)) {
+			int firstListInd = c[0];
+			int secondListInd = c[1];
+			if (pitches.get(secondListInd) != null) {
+				cheapestMapping.add(new Integer[]{
+					lastPitchInAvailableVoices.get(firstListInd)[0],
+					pitches.get(secondListInd),
+					s.costs[firstListInd][secondListInd]
+				});
+			}
+		}
+		return cheapestMapping;
+	}
+
+
+	/**
+	 * Returns the number of combinations evaluated in full in the last call to
+	 * {@link #getCheapestMapping} on the current thread.
+	 *
+	 * @return
+	 */
+	int getNumEvaluated() {
+		return searches.get().numEvaluated;
+	}
+
+
+	private void search(Search s, int f, int node, int cost, int numRepetitions) {
+		if (f == size) {
+			s.numEvaluated++;
+		}
+		// Bounds for all combinations below node: the cost cannot be lower than the sum of
+		// the cheapest remaining option per voice; the number of repetitions cannot be higher
+		// than the number of remaining voices that can still repeat a pitch
+		int minCost = cost;
+		int maxNumRepetitions = numRepetitions;
+		for (int g = f; g < size; g++) {
+			int minCostVoice = Integer.MAX_VALUE;
+			boolean canRepeat = false;
+			for (int p = 0; p < size; p++) {
+				if (!s.used[p]) {
+					minCostVoice = Math.min(minCostVoice, s.costs[g][p]);
+					canRepeat = canRepeat || s.isRepetition[g][p];
+				}
+			}
+			minCost += minCostVoice;
+			if (canRepeat) {
+				maxNumRepetitions++;
+			}
+		}
+		if (!s.canImprove(minCost, maxNumRepetitions, minRanks[node])) {
+			return;
+		}
+		if (f == size) {
+			s.bestCost = cost;
+			s.bestNumRepetitions = numRepetitions;
+			s.bestRank = minRanks[node];
+			return;
+		}
+
+		// Visit the children from cheap to expensive (and, if equally expensive, from low to
+		// high rank), so that good bounds are found early
+		int[] order = s.orders[f];
+		int numChildren = 0;
+		for (int p = 0; p < size; p++) {
+			if (!s.used[p] && children[node * size + p] != NO_NODE) {
+				int k = numChildren++;
+				while (k > 0 && isBefore(s, f, node, p, order[k-1])) {
+					order[k] = order[k-1];
+					k--;
+				}
+				order[k] = p;
+			}
+		}
+		for (int k = 0; k < numChildren; k++) {
+			int p = order[k];
+			s.used[p] = true;
+			search(s, f + 1, children[node * size + p], cost + s.costs[f][p],
+				numRepetitions + (s.isRepetition[f][p] ? 1 : 0));
+			s.used[p] = false;
+		}
+	}
+
+
+	private boolean isBefore(Search s, int f, int node, int p, int q) {
+		if (s.costs[f][p] != s.costs[f][q]) {
+			return s.costs[f][p] < s.costs[f][q];
+		}
+		return minRanks[children[node * size + p]] < minRanks[children[node * size + q]];
+	}
+
+
+	/**
+	 * Converts the given combination into an array containing, for each index in the list of
+	 * last pitches, the index in the list of pitches it is mapped to.
+	 *
+	 * @param currComb
+	 * @param secondListInds
+	 * @return <code>false</code> if the combination is not a one-to-one mapping of
+	 *         <code>size</code> indices.
+	 */
+	private boolean toSecondListIndices(List<Integer[]> currComb, int[] secondListInds) {
+		if (currComb.size() != size) {
+			return false;
+		}
+		boolean[] seenFirst = new boolean[size];
+		boolean[] seenSecond = new boolean[size];
+		for (Integer[] c : currComb) {
+			int firstListInd = c[0];
+			int secondListInd = c[1];
+			if (firstListInd < 0 || firstListInd >= size || secondListInd < 0 ||
+				secondListInd >= size || seenFirst[firstListInd] || seenSecond[secondListInd]) {
+				return false;
+			}
+			seenFirst[firstListInd] = true;
+			seenSecond[secondListInd] = true;
+			secondListInds[firstListInd] = secondListInd;
+		}
+		return true;
+	}
+
+
+	/**
+	 * The state of a single search.
+	 */
+	private static final class Search {
+		final int[][] costs;
+		final boolean[][] isRepetition;
+		final boolean[] used;
+		final int[][] orders;
+		int bestCost;
+		int bestNumRepetitions;
+		int bestRank;
+		int numEvaluated;
+
+		Search(int size) {
+			costs = new int[size][size];
+			isRepetition = new boolean[size][size];
+			used = new boolean[size];
+			orders = new int[size][size];
+		}
+
+		void reset() {
+			bestCost = Integer.MAX_VALUE;
+			bestNumRepetitions = -1;
+			bestRank = Integer.MAX_VALUE;
+			numEvaluated = 0;
+		}
+
+		boolean canImprove(int cost, int numRepetitions, int rank) {
+			if (cost != bestCost) {
+				return cost < bestCost;
+			}
+			if (numRepetitions != bestNumRepetitions) {
+				return numRepetitions > bestNumRepetitions;
+			}
+			return rank < bestRank;
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+package tabmapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A grid of chords, stored row by row in a single <code>int[]</code>. Each row represents
+ * an onset time and contains
+ * <ul>
+ * <li>the bar.</li>
+ * <li>the onset (as a multiple of <code>TabMapper.SMALLEST_DUR</code>).</li>
+ * <li><code>numCols</code> pitches.</li>
+ * <li><code>numCols</code> durations (as multiples of <code>TabMapper.SMALLEST_DUR</code>).</li>
+ * <li>optionally, <code>numCols</code> tab note indices.</li>
+ * </ul>
+ * Pitch, duration, and tab note index cells without a note contain {@link #EMPTY}.
+ */
+final class ChordGrid {
+	static final int EMPTY = -1;
+	private static final int BAR_IND = 0;
+	private static final int ONSET_IND = 1;
+	private static final int PITCHES_IND = 2;
+
+	private final int numRows;
+	private final int numCols;
+	private final int rowSize;
+	private final int[] cells;
+
+
+	/**
+	 * Creates a grid with all pitch, duration, and tab note index cells set to {@link #EMPTY}.
+	 *
+	 * @param numRows
+	 * @param numCols The number of pitches per row.
+	 * @param includeTabIndices Whether the rows contain tab note indices.
+	 */
+	ChordGrid(int numRows, int numCols, boolean includeTabIndices) {
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.rowSize = PITCHES_IND + (includeTabIndices ? 3 : 2) * numCols;
+		this.cells = new int[numRows * rowSize];
+		for (int i = 0; i < numRows; i++) {
+			int start = i * rowSize;
+			for (int j = start + PITCHES_IND; j < start + rowSize; j++) {
+				cells[j] = EMPTY;
+			}
+		}
+	}
+
+
+	int getNumRows() {
+		return numRows;
+	}
+
+
+	int getNumCols() {
+		return numCols;
+	}
+
+
+	int getBar(int row) {
+		return cells[row * rowSize + BAR_IND];
+	}
+
+
+	void setBar(int row, int bar) {
+		cells[row * rowSize + BAR_IND] = bar;
+	}
+
+
+	int getOnset(int row) {
+		return cells[row * rowSize + ONSET_IND];
+	}
+
+
+	void setOnset(int row, int onset) {
+		cells[row * rowSize + ONSET_IND] = onset;
+	}
+
+
+	int getPitch(int row, int col) {
+		return cells[row * rowSize + PITCHES_IND + col];
+	}
+
+
+	void setPitch(int row, int col, int pitch) {
+		cells[row * rowSize + PITCHES_IND + col] = pitch;
+	}
+
+
+	int getDuration(int row, int col) {
+		return cells[row * rowSize + PITCHES_IND + numCols + col];
+	}
+
+
+	void setDuration(int row, int col, int dur) {
+		cells[row * rowSize + PITCHES_IND + numCols + col] = dur;
+	}
+
+
+	int getTabIndex(int row, int col) {
+		return cells[row * rowSize + PITCHES_IND + 2*numCols + col];
+	}
+
+
+	void setTabIndex(int row, int col, int ind) {
+		cells[row * rowSize + PITCHES_IND + 2*numCols + col] = ind;
+	}
+
+
+	/**
+	 * Checks whether the given row contains no notes, i.e., whether all its cells after the
+	 * bar and onset are {@link #EMPTY}.
+	 *
+	 * @param row
+	 * @return
+	 */
+	boolean isEmpty(int row) {
+		int start = row * rowSize;
+		for (int j = start + PITCHES_IND; j < start + rowSize; j++) {
+			if (cells[j] != EMPTY) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns the number of pitches in the given row before the first {@link #EMPTY} cell.
+	 *
+	 * @param row
+	 * @return
+	 */
+	int getNumPitches(int row) {
+		int num = 0;
+		while (num < numCols && getPitch(row, num) != EMPTY) {
+			num++;
+		}
+		return num;
+	}
+
+
+	/**
+	 * Returns the first <code>num</code> pitches in the given row, with <code>null</code>
+	 * for each {@link #EMPTY} cell.
+	 *
+	 * @param row
+	 * @param num
+	 * @return
+	 */
+	List<Integer> getPitches(int row, int num) {
+		List<Integer> pitches = new ArrayList<>(num);
+		for (int j = 0; j < num; j++) {
+			int pitch = getPitch(row, j);
+			pitches.add(pitch == EMPTY ? null : pitch);
+		}
+		return pitches;
+	}
+
+
+	/**
+	 * Returns the first <code>num</code> tab note indices in the given row, with
+	 * <code>null</code> for each {@link #EMPTY} cell.
+	 *
+	 * @param row
+	 * @param num
+	 * @return
+	 */
+	List<Integer> getTabIndices(int row, int num) {
+		List<Integer> indices = new ArrayList<>(num);
+		for (int j = 0; j < num; j++) {
+			int ind = getTabIndex(row, j);
+			indices.add(ind == EMPTY ? null : ind);
+		}
+		return indices;
+	}
+
+}
@@ -0,0 +1,468 @@
+package tabmapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import de.uos.fmt.musitech.utility.math.Rational;
+import external.Tablature;
+import external.Transcription;
+import internal.structure.Timeline;
+import tbp.symbols.RhythmSymbol;
+import tools.ToolBox;
+import tools.music.TimeMeterTools;
+
+/**
+ * Maps the chords of a tablature onto a model one at a time, in onset order. Only the
+ * context needed for the next chord is kept: the active voices, the last non-ornamental
+ * chord, the pending run of ornamental notes, and the last chord with a tuplet. The results
+ * are passed on to a {@link Sink} as soon as they are known.
+ *
+ * The chords can be mapped for several {@link MappingVariant}s at once, each with its own
+ * sink. As the variants only differ in how the ornamental notes are mapped, everything else
+ * is done once.
+ */
+final class ChordMapper {
+	private static final List<Rational> TUPLET_DISTANCES =
+		Arrays.asList(new Rational(1, 1), new Rational(1, 2), new Rational(1, 4));
+
+	/**
+	 * Receives the results of mapping. Voice labels are received in note order; the rows
+	 * of the mapping CSV in note order per chord (and any ornamental notes preceding it).
+	 */
+	interface Sink {
+		/**
+		 * @param note
+		 * @param voiceLabel <code>null</code> if the note is ornamental and is not mapped.
+		 */
+		void voiceLabel(int note, List<Double> voiceLabel);
+
+		/**
+		 * @param rows Are reused once the method returns.
+		 */
+		void records(MappingRecords rows);
+
+		/**
+		 * @param category The index of the mismatch category in the mismatch indices (e.g.,
+		 *                 <code>Transcription.FICTA_IND</code>).
+		 * @param note
+		 */
+		void mismatch(int category, int note);
+	}
+
+	private final Transcription trans;
+	private final Integer[][] btp;
+	private final Timeline tl;
+	private final MappingContext ctx;
+	private final List<MappingVariant> variants;
+	private final List<Sink> sinks;
+	private final int numVoices;
+	private final int srv;
+	private final List<Integer[]> keyInfo;
+	private final Integer[] firstKey;
+	private final int ornThreshold;
+	private final LastPitchTracker lastPitchTracker;
+	private final MappingRecords rows = new MappingRecords();
+	private final MappingRecords ornRows = new MappingRecords();
+
+	private final List<Integer> activeVoices = new ArrayList<>();
+	private List<Integer> activeVoicesCopy = new ArrayList<>();
+	private final List<Integer> currOrn = new ArrayList<>();
+	private int indLastNonOrnChord = -1;
+	private List<Integer> pitchesTabLastNonOrnChord = null;
+	private int[] voiceMasksLastNonOrnChord = null;
+	private boolean lastNonOrnChordContainsTuplet = false;
+	private List<Integer> pitchesTabLastNonOrnChordWithTuplet = null;
+	private int[] voiceMasksLastNonOrnChordWithTuplet = null;
+	private int onsetLastOrnChord = -1; // in ticks
+
+
+	/**
+	 * @param trans
+	 * @param tab
+	 * @param ctx
+	 * @param includeOrnamentation
+	 * @param connection
+	 * @param sink
+	 */
+	ChordMapper(Transcription trans, Tablature tab, MappingContext ctx,
+		boolean includeOrnamentation, TabMapper.Connection connection, Sink sink) {
+		this(trans, tab, ctx, 
+			Collections.singletonList(new MappingVariant(includeOrnamentation, connection)), 
+			Collections.singletonList(sink)
+		);
+	}
+
+
+	/**
+	 * @param trans
+	 * @param tab
+	 * @param ctx
+	 * @param variants
+	 * @param sinks The sink for each variant.
+	 */
+	ChordMapper(Transcription trans, Tablature tab, MappingContext ctx,
+		List<MappingVariant> variants, List<Sink> sinks) {
+		this.trans = trans;
+		this.btp = tab.getBasicTabSymbolProperties();
+		this.tl = tab.getEncoding().getTimeline();
+		this.ctx = ctx;
+		this.variants = variants;
+		this.sinks = sinks;
+		this.numVoices = ctx.getNumVoices();
+		this.srv = Tablature.SMALLEST_RHYTHMIC_VALUE.getDenom();
+		ModelRegistry.Model model = ctx.getModel(trans);
+		this.keyInfo = model.keyInfo;
+		this.firstKey = keyInfo.get(0);
+		// Set ornamentation threshold to the duration value two levels below beat level
+		// n/1: beat level is W; two levels below is Q (RhythmSymbol.MINIM = 24)
+		// n/2: beat level is H; two levels below is E (RhythmSymbol.SEMIMINIM = 12)
+		// n/4: beat level is Q; two levels below is S (RhythmSymbol.FUSA = 6)
+		// n/8: beat level is E; two levels below is T (RhythmSymbol.SEMIFUSA = 3)
+		this.ornThreshold =
+			RhythmSymbol.MINIM.getDuration() / tab.getMeterInfo().get(0)[Transcription.MI_DEN];
+		// Onsets are visited in increasing order, so the tracker's cursors only move forward
+		this.lastPitchTracker = new LastPitchTracker(model, numVoices);
+	}
+
+
+	/**
+	 * Maps the given tablature chord onto the given model chord. If the chord is ornamental,
+	 * its note is kept until the next non-ornamental chord, onto whose mapping it depends.
+	 *
+	 * A chord is ornamental if
+	 * <ul>
+	 * <li>it is a single onset in the tablature AND</li>
+	 * <li>its duration is less than or equal to the ornamentation threshold AND</li>
+	 * <li>there is no note at its onset time in the model.</li>
+	 * </ul>
+	 *
+	 * @param row The index of the chord's row in the grid (or any increasing index).
+	 * @param onset In ticks (multiples of <code>TabMapper.SMALLEST_DUR</code>).
+	 * @param pitchesTab Low-high.
+	 * @param indicesTab
+	 * @param currDur The minimum duration of the lowest note, in ticks.
+	 * @param pitchesModel Per voice (low-high), or <code>null</code> if the voice has no
+	 *                     note at the onset time.
+	 * @return Whether the chord is non-ornamental, i.e., has been mapped.
+	 */
+	boolean map(int row, int onset, List<Integer> pitchesTab, List<Integer> indicesTab,
+		int currDur, List<Integer> pitchesModel) {
+		return map(row, onset, pitchesTab, indicesTab, currDur, pitchesModel, null);
+	}
+
+
+	/**
+	 * As {@link #map(int, int, List, List, int, List)}, using the given result of 
+	 * {@link #match} for the chord.
+	 *
+	 * @param row
+	 * @param onset
+	 * @param pitchesTab
+	 * @param indicesTab
+	 * @param currDur
+	 * @param pitchesModel
+	 * @param initialMapping The result of {@link #match} for the chord, or <code>null</code> 
+	 *                       if it is still to be made.
+	 * @return
+	 */
+	boolean map(int row, int onset, List<Integer> pitchesTab, List<Integer> indicesTab,
+		int currDur, List<Integer> pitchesModel, List<Object> initialMapping) {
+		if (isOrnamental(pitchesTab, currDur, pitchesModel)) {
+			currOrn.add(indicesTab.get(0));
+			return false;
+		}
+
+		Rational currOnset = new Rational(onset, TabMapper.SMALLEST_DUR);
+		lastPitchTracker.advanceTo(currOnset);
+		ctx.count(MappingMetrics.Counter.CHORDS_MAPPED, 1);
+		int chordInd = btp[indicesTab.get(0)][Tablature.CHORD_SEQ_NUM];
+		String bmp = TimeMeterTools.getMetricPositionAsString(tl.getMetricPosition(onset));
+		rows.clear();
+
+		// 1. Do initial mapping (i.e., handle direct matches and ficta)
+		if (initialMapping == null) {
+			initialMapping = match(onset, pitchesTab, indicesTab, pitchesModel);
+		}
+		List<List<Integer>> initialIntLists = (List<List<Integer>>) initialMapping.get(0);
+		List<Integer> indPitchesInMIDI = initialIntLists.get(1);
+		List<Integer> pitchesNotInMIDI = initialIntLists.get(2);
+		List<Integer> indPitchesNotInMIDI = initialIntLists.get(3);
+		List<Integer> nonMappedSNUPitches = initialIntLists.get(4);
+		List<Integer> mappedVoices = initialIntLists.get(5);
+		List<Integer> currActiveVoices = initialIntLists.get(6);
+		List<Integer> extendedSNUVoices = initialIntLists.get(7);
+		List<Integer> currFictaInds = initialIntLists.get(8);
+		List<Integer> pitchesNotInMIDIOriginal = new ArrayList<Integer>(pitchesNotInMIDI);
+		int[] voiceMasksCurrChord = (int[]) initialMapping.get(1);
+
+		// Update activeVoices if it does not yet contain all voices
+		if (activeVoices.size() < numVoices) {
+			currActiveVoices.forEach(v -> { if (!activeVoices.contains(v)) activeVoices.add(v); });
+			Collections.sort(activeVoices);
+			Collections.reverse(activeVoices);
+			activeVoicesCopy = new ArrayList<>(activeVoices);
+		}
+
+		if (indPitchesInMIDI.size() != 0) {
+			// Make CSV entries for direct matches and ficta
+			for (int ind : indPitchesInMIDI) {
+				List<Integer> voicesList = 
+					VoiceMask.toVoices(voiceMasksCurrChord[indicesTab.indexOf(ind)]);
+				addRow(rows, ind, chordInd, bmp, voicesList, MappingRecords.NO_COST,
+					currFictaInds.contains(ind) ? MappingRecords.Category.FICTA :
+						MappingRecords.Category.MATCH
+				);
+			}
+
+			if (currFictaInds.size() != 0) {
+				currFictaInds.forEach(ind -> mismatch(Transcription.FICTA_IND, ind));
+				if (pitchesTab.size() == 1 && currDur <= ornThreshold) {
+					mismatch(Transcription.SPECIAL_ORN_IND, currFictaInds.get(0));
+				}
+			}
+		}
+
+		// 2. Complete mapping (i.e., handle repetitions and adaptations)
+		if (Arrays.stream(voiceMasksCurrChord).anyMatch(m -> m == VoiceMask.NONE)) {
+			// In case of possible consecutive tupletChord
+			List<Integer> prevPitches = null;
+			int[] prevVoiceMasks = null;
+			if (lastNonOrnChordContainsTuplet && TUPLET_DISTANCES.contains(
+				currOnset.sub(new Rational(onsetLastOrnChord, TabMapper.SMALLEST_DUR)))) { // TODO why these values?
+				prevPitches = pitchesTabLastNonOrnChordWithTuplet;
+				prevVoiceMasks = voiceMasksLastNonOrnChordWithTuplet;
+			}
+
+			List<Object> completedMapping = TabMapper.mapPitchesNotInMIDI(
+				pitchesTab, pitchesModel, pitchesNotInMIDI, indPitchesNotInMIDI,
+				pitchesNotInMIDIOriginal, nonMappedSNUPitches, extendedSNUVoices,
+				mappedVoices, voiceMasksCurrChord, keyInfo, currOnset, trans.getName(),
+				prevPitches, prevVoiceMasks, lastPitchTracker, ctx
+			);
+			List<List<Integer>> completedIntLists = (List<List<Integer>>) completedMapping.get(0);
+			indPitchesNotInMIDI = completedIntLists.get(1);
+			pitchesNotInMIDIOriginal = completedIntLists.get(2);
+			List<Integer> currRepetitionInds = completedIntLists.get(3);
+			List<Integer> currAdaptationInds = completedIntLists.get(4);
+			voiceMasksCurrChord = (int[]) completedMapping.get(1);
+			List<Integer[]> cheapestMappingTotal = (List<Integer[]>) completedMapping.get(2);
+
+			// Make CSV entries for repetitions and adaptations
+			for (int j = 0; j < cheapestMappingTotal.size(); j++) {
+				Integer[] in = cheapestMappingTotal.get(j);
+				int pitch = in[1];
+				int ind = indPitchesNotInMIDI.get(pitchesNotInMIDIOriginal.indexOf(pitch));
+				// In case of second unison pitch
+				if (Collections.frequency(pitchesNotInMIDIOriginal, pitch) == 2 &&
+					ToolBox.getItemsAtIndex(cheapestMappingTotal, 1).lastIndexOf(pitch) == j) {
+					ind = indPitchesNotInMIDI.get(pitchesNotInMIDIOriginal.lastIndexOf(pitch));
+				}
+				addRow(rows, ind, chordInd, bmp, Collections.singletonList(in[0]), in[2],
+					currRepetitionInds.contains(ind) ? MappingRecords.Category.REPETITION :
+						MappingRecords.Category.ADAPTATION
+				);
+			}
+
+			currRepetitionInds.forEach(ind -> mismatch(Transcription.REPETITION_IND, ind));
+			currAdaptationInds.forEach(ind -> mismatch(Transcription.ADAPTATION_IND, ind));
+			if (pitchesTab.size() == 1 && currDur <= ornThreshold) {
+				mismatch(Transcription.SPECIAL_ORN_IND,
+					currRepetitionInds.size() != 0 ? currRepetitionInds.get(0) : currAdaptationInds.get(0)
+				);
+			}
+		}
+
+		// 3. Map any preceding ornamental notes still unassigned. This is the only step that 
+		// differs per variant
+		rows.sortByNote();
+		for (int v = 0; v < variants.size(); v++) {
+			MappingVariant variant = variants.get(v);
+			Sink sink = sinks.get(v);
+			ornRows.clear();
+			if (!currOrn.isEmpty()) {
+				List<Double> vl = null;
+				// Add the ornamental notes to the voice going with the closest pitch
+				if (variant.includeOrnamentation) {
+					List<Integer> ornPitches = new ArrayList<>();
+					currOrn.forEach(ind -> ornPitches.add(btp[ind][Tablature.PITCH]));
+					int closestVoice = TabMapper.mapPrecedingOrnamentalNotes(
+						ornPitches, pitchesTab, voiceMasksCurrChord, row, indLastNonOrnChord,
+						pitchesTabLastNonOrnChord, voiceMasksLastNonOrnChord, variant.connection
+					);
+
+					// Make CSV entries for ornamentations
+					for (int ind : currOrn) {
+						String currBmp = TimeMeterTools.getMetricPositionAsString(
+							tl.getMetricPosition(btp[ind][Tablature.ONSET_TIME])
+						);
+						addRow(ornRows, ind, btp[ind][Tablature.CHORD_SEQ_NUM], currBmp,
+							Collections.singletonList(closestVoice), MappingRecords.NO_COST,
+							MappingRecords.Category.ORNAMENTATION
+						);
+					}
+					vl = VoiceMask.toVoiceLabel(VoiceMask.of(closestVoice), ctx.getMaxNumVoices());
+				}
+				// Also if includeOrnamentation == false
+				for (int ind : currOrn) {
+					sink.voiceLabel(ind, vl);
+					sink.mismatch(Transcription.ORNAMENTATION_IND, ind);
+				}
+			}
+			for (int j = 0; j < indicesTab.size(); j++) {
+				sink.voiceLabel(
+					indicesTab.get(j), VoiceMask.toVoiceLabel(voiceMasksCurrChord[j], ctx.getMaxNumVoices())
+				);
+			}
+			if (ornRows.size() != 0) {
+				ornRows.addRows(rows, 0, Integer.MAX_VALUE, 0, 0);
+				ornRows.sortByNote();
+				sink.records(ornRows);
+			}
+			else if (rows.size() != 0) {
+				sink.records(rows);
+			}
+		}
+		currOrn.clear();
+
+		// 4. Set information needed for assignment of any ornamental notes or consecutive
+		// tuplet chords
+		indLastNonOrnChord = row;
+		pitchesTabLastNonOrnChord = pitchesTab;
+		voiceMasksLastNonOrnChord = voiceMasksCurrChord;
+		if (containsTuplet(voiceMasksCurrChord)) {
+			lastNonOrnChordContainsTuplet = true;
+			pitchesTabLastNonOrnChordWithTuplet = pitchesTab;
+			voiceMasksLastNonOrnChordWithTuplet = voiceMasksCurrChord;
+			onsetLastOrnChord = onset;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Checks whether the given chord is ornamental (see {@link #map}).
+	 *
+	 * @param pitchesTab
+	 * @param currDur
+	 * @param pitchesModel
+	 * @return
+	 */
+	boolean isOrnamental(List<Integer> pitchesTab, int currDur, List<Integer> pitchesModel) {
+		return pitchesTab.size() == 1 && currDur <= ornThreshold &&
+			pitchesModel.stream().allMatch(p -> p == null);
+	}
+
+
+	/**
+	 * Does the initial mapping of the given non-ornamental chord, i.e., handles its direct 
+	 * matches and ficta (see <code>TabMapper.mapTabChordToMIDI()</code>). This does not 
+	 * depend on, or change, the mapping of earlier chords, and can therefore be done for 
+	 * several chords concurrently.
+	 *
+	 * @param onset In ticks.
+	 * @param pitchesTab
+	 * @param indicesTab
+	 * @param pitchesModel
+	 * @return As <code>TabMapper.mapTabChordToMIDI()</code>.
+	 */
+	List<Object> match(int onset, List<Integer> pitchesTab, List<Integer> indicesTab,
+		List<Integer> pitchesModel) {
+		Integer[] key = keyInfo.size() == 1 ? firstKey : 
+			trans.getLocalKeyInfo(new Rational(onset, TabMapper.SMALLEST_DUR));
+		int keySig = key[Transcription.KI_KEY]; // num b (<0) / # (>0)
+		int mode = key[Transcription.KI_MODE]; // major (0) / minor (1)
+		return TabMapper.mapTabChordToMIDI(pitchesTab, indicesTab, pitchesModel, keySig, mode, ctx);
+	}
+
+
+	/**
+	 * Passes on any ornamental notes after the last non-ornamental chord, which cannot be
+	 * mapped, with a <code>null</code> voice label.
+	 */
+	void finish() {
+		for (Sink sink : sinks) {
+			currOrn.forEach(ind -> sink.voiceLabel(ind, null));
+		}
+		currOrn.clear();
+	}
+
+
+	/**
+	 * Returns the state after the last mapped chord.
+	 *
+	 * @param firstNote The index of the first note of the chord.
+	 * @param endNote The index of the first note after the chord.
+	 * @param onset The onset of the chord, in ticks.
+	 * @return
+	 */
+	MappingSnapshot.Checkpoint getCheckpoint(int firstNote, int endNote, int onset) {
+		return new MappingSnapshot.Checkpoint(
+			firstNote, endNote, onset, activeVoicesCopy, pitchesTabLastNonOrnChord,
+			voiceMasksLastNonOrnChord, lastNonOrnChordContainsTuplet,
+			pitchesTabLastNonOrnChordWithTuplet, voiceMasksLastNonOrnChordWithTuplet,
+			onsetLastOrnChord
+		);
+	}
+
+
+	/**
+	 * Restores the state after the chord of the given checkpoint.
+	 *
+	 * @param cp
+	 * @param row The index of the chord's row in the grid.
+	 */
+	void restore(MappingSnapshot.Checkpoint cp, int row) {
+		indLastNonOrnChord = row;
+		activeVoices.clear();
+		activeVoices.addAll(cp.activeVoices);
+		activeVoicesCopy = cp.activeVoices;
+		pitchesTabLastNonOrnChord = cp.pitchesTab;
+		voiceMasksLastNonOrnChord = cp.voiceMasks;
+		lastNonOrnChordContainsTuplet = cp.containsTuplet;
+		pitchesTabLastNonOrnChordWithTuplet = cp.pitchesTabWithTuplet;
+		voiceMasksLastNonOrnChordWithTuplet = cp.voiceMasksWithTuplet;
+		onsetLastOrnChord = cp.onsetWithTuplet;
+	}
+
+
+	/**
+	 * Checks whether the chord with the given voice masks contains a tuplet, i.e., whether 
+	 * two of its notes have the same voice mask.
+	 *
+	 * @param voiceMasks
+	 * @return
+	 */
+	static boolean containsTuplet(int[] voiceMasks) {
+		for (int j = 0; j < voiceMasks.length; j++) {
+			for (int k = j + 1; k < voiceMasks.length; k++) {
+				if (voiceMasks[j] == voiceMasks[k]) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+
+	// Passes on the given mismatch to the sinks of all variants
+	private void mismatch(int category, int note) {
+		for (Sink sink : sinks) {
+			sink.mismatch(category, note);
+		}
+	}
+
+
+	private void addRow(MappingRecords to, int ind, int chordInd, String bmp, 
+		List<Integer> voices, int cost, MappingRecords.Category category) {
+		Rational dur = new Rational(btp[ind][Tablature.MIN_DURATION], srv);
+		dur.reduce();
+		Rational onset = new Rational(btp[ind][Tablature.ONSET_TIME], srv);
+		onset.reduce();
+		to.add(
+			ind, btp[ind][Tablature.PITCH], dur, onset, chordInd, bmp, voices, cost, category
+		);
+	}
+
+}
@@ -0,0 +1,119 @@
+package tabmapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import tools.ToolBox;
+
+/**
+ * Precomputed results of <code>ToolBox.getCombinations()</code> and
+ * <code>ToolBox.getSubsets()</code> for the sizes that occur while mapping, i.e., up to the
+ * maximum number of voices and tablature courses. The tables are built once, are immutable, and
+ * are shared by all mapping threads.
+ */
+final class CombinationTables {
+	static final int MAX_NUM_VOICES = 6;
+	static final int MAX_NUM_PITCHES = 10;
+
+	private static final List<List<List<Integer[]>>> COMBINATIONS;
+	private static final AssignmentSolver[] SOLVERS;
+	// SUBSETS[m][k] contains the index subsets of size k of a list of size m
+	private static final int[][][][] SUBSETS;
+
+	static {
+		List<List<List<Integer[]>>> combinations = new ArrayList<>();
+		SOLVERS = new AssignmentSolver[MAX_NUM_VOICES + 1];
+		combinations.add(null);
+		for (int n = 1; n <= MAX_NUM_VOICES; n++) {
+			List<List<Integer[]>> comb = new ArrayList<>();
+			for (List<Integer[]> c : ToolBox.getCombinations(n)) {
+				comb.add(Collections.unmodifiableList(new ArrayList<>(c)));
+			}
+			comb = Collections.unmodifiableList(comb);
+			combinations.add(comb);
+			SOLVERS[n] = new AssignmentSolver(comb);
+		}
+		COMBINATIONS = Collections.unmodifiableList(combinations);
+
+		SUBSETS = new int[MAX_NUM_PITCHES + 1][][][];
+		for (int m = 1; m <= MAX_NUM_PITCHES; m++) {
+			List<Integer> inds = IntStream.range(0, m).boxed().collect(Collectors.toList());
+			SUBSETS[m] = new int[m + 1][][];
+			for (int k = 1; k <= m; k++) {
+				List<List<Integer>> subsets = ToolBox.getSubsets(new ArrayList<>(inds), k);
+				SUBSETS[m][k] = new int[subsets.size()][];
+				for (int i = 0; i < subsets.size(); i++) {
+					SUBSETS[m][k][i] = subsets.get(i).stream().mapToInt(Integer::intValue).toArray();
+				}
+			}
+		}
+	}
+
+
+	private CombinationTables() {
+	}
+
+
+	/**
+	 * Returns the result of <code>ToolBox.getCombinations(n)</code>. The list returned must
+	 * not be modified.
+	 *
+	 * @param n
+	 * @return
+	 */
+	static List<List<Integer[]>> getCombinations(int n) {
+		if (n >= 1 && n <= MAX_NUM_VOICES) {
+			return COMBINATIONS.get(n);
+		}
+		return ToolBox.getCombinations(n);
+	}
+
+
+	/**
+	 * Returns an {@link AssignmentSolver} for the result of
+	 * <code>ToolBox.getCombinations(n)</code>.
+	 *
+	 * @param n
+	 * @return
+	 */
+	static AssignmentSolver getSolver(int n) {
+		if (n >= 1 && n <= MAX_NUM_VOICES) {
+			return SOLVERS[n];
+		}
+		return new AssignmentSolver(ToolBox.getCombinations(n));
+	}
+
+
+	/**
+	 * Returns the result of <code>ToolBox.getSubsets(l, k)</code>. The lists returned are new,
+	 * and can be modified.
+	 *
+	 * If the given list contains duplicates, or is larger than the tables, the subsets are
+	 * calculated by <code>ToolBox.getSubsets()</code>.
+	 *
+	 * @param l
+	 * @param k
+	 * @return
+	 */
+	static List<List<Integer>> getSubsets(List<Integer> l, int k) {
+		int m = l.size();
+		if (m > MAX_NUM_PITCHES || k < 1 || k > m || new HashSet<>(l).size() != m) {
+			return ToolBox.getSubsets(l, k);
+		}
+		int[][] subsetInds = SUBSETS[m][k];
+		List<List<Integer>> subsets = new ArrayList<>(subsetInds.length);
+		for (int[] inds : subsetInds) {
+			List<Integer> subset = new ArrayList<>(inds.length);
+			for (int ind : inds) {
+				subset.add(l.get(ind));
+			}
+			subsets.add(subset);
+		}
+		return subsets;
+	}
+
+}
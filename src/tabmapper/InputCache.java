@@ -0,0 +1,306 @@
+package tabmapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import external.Tablature;
+import external.Transcription;
+import tools.labels.LabelTools;
+
+/**
+ * An on-disk cache of parsed input, keyed by the SHA-256 hash of the contents of the input
+ * files. It contains
+ * <ul>
+ * <li>per tablature file: the .tbp encoding <code>TabImport.convertToTbp()</code> makes of
+ *     it (<code>&lt;hash&gt;.tbp</code>).</li>
+ * <li>per tablature and MIDI file: the {@link ParsedInput} of the piece
+ *     (<code>&lt;hash&gt;.bin</code>), in a binary format of ints that is read through
+ *     memory mapping.</li>
+ * </ul>
+ * An entry whose input changes is not overwritten, but no longer found. The mapping options
+ * are not part of the keys, as they do not affect parsing. Entries are not evicted, which is
+ * why the cache is only used when asked for (<code>-Dtabmapper.inputCache=true</code>).
+ *
+ * A cached encoding saves the conversion of the tablature file; the parsed input does not
+ * save the making of the tablature and the model when a piece is mapped, but stands in for
+ * them when its results are taken from the {@link ResultCache}.
+ *
+ * Entries are written to a temporary file that is then moved into place, so that pieces
+ * can be mapped concurrently.
+ */
+final class InputCache {
+	static final String DIR = "cache/";
+	private static final int MAGIC = 0x544D4943; // "TMIC"
+	// Part of all keys; to be incremented when the content or the format of the entries
+	// changes
+	private static final int VERSION = 1;
+	private static final String TBP_EXT = ".tbp";
+	private static final String BIN_EXT = ".bin";
+	private static final int NULL = Integer.MIN_VALUE;
+
+	private final File dir;
+
+
+	/**
+	 * The parsed input of a piece.
+	 */
+	static final class ParsedInput {
+		final Integer[][] btp;
+		final Integer[][] bnp;
+		final List<Integer[]> meterInfo;
+		final List<Integer[]> keyInfo;
+		final int numVoices;
+		// Per note in the model, the voice(s) it is in, as a bit mask
+		final int[] voices;
+
+		ParsedInput(Integer[][] btp, Integer[][] bnp, List<Integer[]> meterInfo,
+			List<Integer[]> keyInfo, int numVoices, int[] voices) {
+			this.btp = btp;
+			this.bnp = bnp;
+			this.meterInfo = meterInfo;
+			this.keyInfo = keyInfo;
+			this.numVoices = numVoices;
+			this.voices = voices;
+		}
+
+
+		static ParsedInput of(Tablature tab, Transcription model) {
+			List<List<Double>> voiceLabels = model.getVoiceLabels();
+			int[] voices = new int[voiceLabels.size()];
+			for (int i = 0; i < voices.length; i++) {
+				for (int v : LabelTools.convertIntoListOfVoices(voiceLabels.get(i))) {
+					voices[i] |= 1 << v;
+				}
+			}
+			return new ParsedInput(
+				tab.getBasicTabSymbolProperties(), model.getBasicNoteProperties(),
+				tab.getMeterInfo(), model.getKeyInfo(), model.getNumberOfVoices(), voices
+			);
+		}
+	}
+
+
+	InputCache(File dir) {
+		this.dir = dir;
+	}
+
+
+	/**
+	 * Returns the cached .tbp encoding of the given tablature file.
+	 *
+	 * @param tabFile
+	 * @return The encoding, or <code>null</code> if it is not in the cache.
+	 * @throws IOException
+	 */
+	String getEncoding(File tabFile) throws IOException {
+		File f = new File(dir, getKey(tabFile) + TBP_EXT);
+		if (!f.exists()) {
+			return null;
+		}
+		return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Adds the given .tbp encoding of the given tablature file to the cache.
+	 *
+	 * @param tabFile
+	 * @param encoding
+	 * @throws IOException
+	 */
+	void putEncoding(File tabFile, String encoding) throws IOException {
+		store(
+			new File(dir, getKey(tabFile) + TBP_EXT),
+			ByteBuffer.wrap(encoding.getBytes(StandardCharsets.UTF_8))
+		);
+	}
+
+
+	/**
+	 * Returns the cached parsed input of the piece with the given tablature and MIDI files.
+	 *
+	 * @param tabFile
+	 * @param midiFile
+	 * @return The parsed input, or <code>null</code> if it is not in the cache.
+	 * @throws IOException
+	 */
+	ParsedInput get(File tabFile, File midiFile) throws IOException {
+		File f = new File(dir, getKey(tabFile, midiFile) + BIN_EXT);
+		if (!f.exists()) {
+			return null;
+		}
+		try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			IntBuffer ib = mbb.asIntBuffer();
+			if (ib.get() != MAGIC || ib.get() != VERSION) {
+				return null;
+			}
+			int numVoices = ib.get();
+			Integer[][] btp = readRows(ib);
+			Integer[][] bnp = readRows(ib);
+			List<Integer[]> meterInfo = Arrays.asList(readRows(ib));
+			List<Integer[]> keyInfo = Arrays.asList(readRows(ib));
+			int[] voices = new int[ib.get()];
+			ib.get(voices);
+			return new ParsedInput(btp, bnp, meterInfo, keyInfo, numVoices, voices);
+		}
+	}
+
+
+	/**
+	 * Adds the given parsed input of the piece with the given tablature and MIDI files to
+	 * the cache.
+	 *
+	 * @param tabFile
+	 * @param midiFile
+	 * @param in
+	 * @throws IOException
+	 */
+	void put(File tabFile, File midiFile, ParsedInput in) throws IOException {
+		List<Integer[][]> matrices = Arrays.asList(
+			in.btp, in.bnp, in.meterInfo.toArray(new Integer[0][]),
+			in.keyInfo.toArray(new Integer[0][])
+		);
+		int size = 3 + 1 + in.voices.length;
+		for (Integer[][] m : matrices) {
+			size += 1 + m.length;
+			for (Integer[] row : m) {
+				size += row.length;
+			}
+		}
+		ByteBuffer bb = ByteBuffer.allocate(size * Integer.BYTES);
+		IntBuffer ib = bb.asIntBuffer();
+		ib.put(MAGIC).put(VERSION).put(in.numVoices);
+		for (Integer[][] m : matrices) {
+			writeRows(ib, m);
+		}
+		ib.put(in.voices.length).put(in.voices);
+		store(new File(dir, getKey(tabFile, midiFile) + BIN_EXT), bb);
+	}
+
+
+	/**
+	 * Returns the key of the given files, i.e., the hex SHA-256 hash of their contents and
+	 * the cache version.
+	 *
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 */
+	static String getKey(File... files) throws IOException {
+		return getKey(Collections.emptyList(), files);
+	}
+
+
+	/**
+	 * Returns the key of the given options and files, i.e., the hex SHA-256 hash of the
+	 * options, the contents of the files, and the cache version.
+	 *
+	 * @param options
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 */
+	static String getKey(List<String> options, File... files) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		md.update(ByteBuffer.allocate(Integer.BYTES).putInt(VERSION).array());
+		for (String o : options) {
+			byte[] b = String.valueOf(o).getBytes(StandardCharsets.UTF_8);
+			md.update(ByteBuffer.allocate(Integer.BYTES).putInt(b.length).array());
+			md.update(b);
+		}
+		for (File f : files) {
+			try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+				// Include the length, so that the contents of consecutive files are kept apart
+				md.update(ByteBuffer.allocate(Long.BYTES).putLong(fc.size()).array());
+				if (fc.size() > 0) {
+					md.update(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+				}
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+
+	private void store(File f, ByteBuffer bb) throws IOException {
+		store(dir, f, bb);
+	}
+
+
+	/**
+	 * Writes the given bytes to the given file in the given directory (which is created if
+	 * necessary), through a temporary file that is then moved into place.
+	 *
+	 * @param dir
+	 * @param f
+	 * @param bb
+	 * @throws IOException
+	 */
+	static void store(File dir, File f, ByteBuffer bb) throws IOException {
+		Files.createDirectories(dir.toPath());
+		Path tmp = Files.createTempFile(dir.toPath(), f.getName(), ".tmp");
+		try {
+			try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				while (bb.hasRemaining()) {
+					fc.write(bb);
+				}
+			}
+			try {
+				Files.move(tmp, f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+
+	private static Integer[][] readRows(IntBuffer ib) {
+		Integer[][] rows = new Integer[ib.get()][];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = new Integer[ib.get()];
+			for (int j = 0; j < rows[i].length; j++) {
+				int val = ib.get();
+				rows[i][j] = val == NULL ? null : val;
+			}
+		}
+		return rows;
+	}
+
+
+	private static void writeRows(IntBuffer ib, Integer[][] rows) {
+		ib.put(rows.length);
+		for (Integer[] row : rows) {
+			ib.put(row.length);
+			for (Integer val : row) {
+				ib.put(val == null ? NULL : val);
+			}
+		}
+	}
+
+}
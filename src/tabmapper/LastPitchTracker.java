@@ -0,0 +1,100 @@
+package tabmapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.uos.fmt.musitech.utility.math.Rational;
+import external.Transcription;
+
+/**
+ * Keeps, per voice in a <code>Transcription</code>, a cursor at the first note that does not
+ * come before the current onset. As long as the onset only moves forward (as it does when
+ * <code>TabMapper.map()</code> walks the grid), the last pitch before the onset in a voice
+ * is found in amortised constant time.
+ *
+ * Gives the same results as <code>TabMapper.getLastPitchInVoices()</code>.
+ */
+final class LastPitchTracker {
+	private final int numVoices;
+	private final Rational[][] onsets;
+	private final int[][] pitches;
+	private final int[] numNotesBefore;
+
+
+	LastPitchTracker(Transcription trans, int numVoices) {
+		this(ModelRegistry.Model.of(trans), numVoices);
+	}
+
+
+	/**
+	 * Makes a tracker on the note sequences of the given model, which are shared (only the 
+	 * cursors belong to the tracker).
+	 *
+	 * @param model
+	 * @param numVoices
+	 */
+	LastPitchTracker(ModelRegistry.Model model, int numVoices) {
+		this(model.onsets, model.pitches, numVoices);
+	}
+
+
+	/**
+	 * Makes a tracker on the given note sequences.
+	 *
+	 * @param onsets Per voice (starting at the highest), the onsets of its notes.
+	 * @param pitches Per voice (starting at the highest), the pitches of its notes.
+	 * @param numVoices
+	 */
+	LastPitchTracker(Rational[][] onsets, int[][] pitches, int numVoices) {
+		this.numVoices = numVoices;
+		this.onsets = onsets;
+		this.pitches = pitches;
+		this.numNotesBefore = new int[numVoices];
+	}
+
+
+	/**
+	 * Moves the cursors in all voices to the given onset. Moving backwards is possible, but
+	 * is not constant time.
+	 *
+	 * @param onset
+	 */
+	void advanceTo(Rational onset) {
+		for (int j = 0; j < numVoices; j++) {
+			int num = numNotesBefore[j];
+			Rational[] onsetsVoice = onsets[j];
+			while (num < onsetsVoice.length && onsetsVoice[num].isLess(onset)) {
+				num++;
+			}
+			while (num > 0 && !onsetsVoice[num-1].isLess(onset)) {
+				num--;
+			}
+			numNotesBefore[j] = num;
+		}
+	}
+
+
+	/**
+	 * Gets, for each voice in the given voices, the pitch of the last note before the current
+	 * onset. As in <code>TabMapper.getLastPitchInVoices()</code>, a voice is skipped if it has
+	 * no note before the onset, or if it contains only a single note.
+	 *
+	 * @param availableVoices
+	 * @return Per given voice (starting at the lowest) an Integer[] containing
+	 *         as element 0: the voice
+	 *         as element 1: the last pitch in that voice
+	 */
+	List<Integer[]> getLastPitchInVoices(List<Integer> availableVoices) {
+		List<Integer[]> lastPitchInAvailableVoices = new ArrayList<>();
+		for (int j = numVoices - 1; j >= 0; j--) {
+			if (availableVoices.contains(j)) {
+				int num = numNotesBefore[j];
+				if (pitches[j].length > 1 && num > 0) {
+					lastPitchInAvailableVoices.add(new Integer[]{j, pitches[j][num-1]});
+				}
+			}
+		}
+		return lastPitchInAvailableVoices;
+	}
+
+}
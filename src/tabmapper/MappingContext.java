@@ -0,0 +1,103 @@
+package tabmapper;
+
+import external.Transcription;
+
+/**
+ * Holds the per-piece information needed while mapping a tablature onto a model. A
+ * <code>MappingContext</code> replaces the global <code>Transcription.MAX_NUM_VOICES</code>
+ * in the mapping methods, so that pieces with different numbers of voices can be mapped
+ * concurrently. It also passes on the piece's {@link MappingMetrics}, and the structures
+ * derived from its model (see {@link ModelRegistry.Model}).
+ */
+final class MappingContext {
+	static final int DEFAULT_MAX_NUM_VOICES = 5;
+
+	private final int numVoices;
+	private final int maxNumVoices;
+	private final int pieceInd;
+	private final MappingMetrics metrics;
+	private ModelRegistry.Model model;
+
+
+	/**
+	 * Creates a context for a model with the given number of voices, without metrics.
+	 *
+	 * @param numVoices
+	 */
+	MappingContext(int numVoices) {
+		this(numVoices, -1, MappingMetrics.NONE);
+	}
+
+
+	/**
+	 * Creates a context for a model with the given number of voices. The maximum number of
+	 * voices (i.e., the size of the voice labels) is 5, or 6 if the model has 6 voices.
+	 *
+	 * @param numVoices
+	 * @param pieceInd The index of the piece, under which its metrics are recorded.
+	 * @param metrics
+	 */
+	MappingContext(int numVoices, int pieceInd, MappingMetrics metrics) {
+		this(numVoices, pieceInd, metrics, null);
+	}
+
+
+	/**
+	 * As {@link #MappingContext(int, int, MappingMetrics)}, for a model shared with other
+	 * pieces.
+	 *
+	 * @param numVoices
+	 * @param pieceInd
+	 * @param metrics
+	 * @param model The shared model, or <code>null</code>.
+	 */
+	MappingContext(int numVoices, int pieceInd, MappingMetrics metrics, 
+		ModelRegistry.Model model) {
+		this.numVoices = numVoices;
+		this.maxNumVoices = Math.max(numVoices, DEFAULT_MAX_NUM_VOICES);
+		this.pieceInd = pieceInd;
+		this.metrics = metrics;
+		this.model = model;
+	}
+
+
+	int getNumVoices() {
+		return numVoices;
+	}
+
+
+	int getMaxNumVoices() {
+		return maxNumVoices;
+	}
+
+
+	long startTimer() {
+		return metrics.startTimer();
+	}
+
+
+	void stopTimer(MappingMetrics.Stage stage, long start) {
+		metrics.stopTimer(pieceInd, stage, start);
+	}
+
+
+	void count(MappingMetrics.Counter counter, long n) {
+		metrics.count(pieceInd, counter, n);
+	}
+
+
+	/**
+	 * Returns the structures derived from the given model: those of the shared model, if 
+	 * it is the given one; otherwise, they are made (once per context).
+	 *
+	 * @param trans
+	 * @return
+	 */
+	synchronized ModelRegistry.Model getModel(Transcription trans) {
+		if (model == null || model.trans != trans) {
+			model = ModelRegistry.Model.of(trans);
+		}
+		return model;
+	}
+
+}
@@ -0,0 +1,124 @@
+package tabmapper;
+
+/**
+ * Receives per-piece timings and counts from the mapping pipeline. Pieces are identified by
+ * their index in the input; timings are in nanoseconds.
+ *
+ * Implementations must be thread-safe, as pieces may be mapped concurrently.
+ */
+interface MappingMetrics {
+
+	/**
+	 * The stages a piece goes through.
+	 */
+	enum Stage {
+		CONVERT_TBP, // TabImport.convertToTbp()
+		MAKE_TAB, // Encoding and Tablature
+		MAKE_MODEL, // Transcription from MIDI file
+		SELECT_MODEL, // mapping onto the candidate models (see ModelSelector); includes the mapping onto the model selected, which is then not mapped again under MAP
+		MAP,
+		EXPORT_WAIT, // waiting for other pieces' exports
+		EXPORT_MIDI,
+		REREAD_MIDI, // Transcription from exported MIDI file, needed for MEI export
+		EXPORT_MEI,
+		ORNAMENTS
+	}
+
+	/**
+	 * The events counted per piece.
+	 */
+	enum Counter {
+		CHORDS_MAPPED,
+		REPETITIONS,
+		ADAPTATIONS,
+		FICTA,
+		PERMUTATIONS_EVALUATED,
+		SPELLING_CACHE_HITS, // ficta checks answered from the cached spellings (see PitchSpellingCache)
+		SEGMENTS // segments mapped concurrently with the first one
+	}
+
+	/**
+	 * Metrics that record nothing.
+	 */
+	MappingMetrics NONE = new MappingMetrics() {
+		@Override
+		public void startPiece(int piece, String name) {
+		}
+
+		@Override
+		public long startTimer() {
+			return 0;
+		}
+
+		@Override
+		public void stopTimer(int piece, Stage stage, long start) {
+		}
+
+		@Override
+		public void count(int piece, Counter counter, long n) {
+		}
+
+		@Override
+		public void endPiece(int piece) {
+		}
+
+		@Override
+		public void finish(String outPath) {
+		}
+	};
+
+
+	/**
+	 * Registers the name of the piece with the given index.
+	 *
+	 * @param piece
+	 * @param name
+	 */
+	void startPiece(int piece, String name);
+
+
+	/**
+	 * Returns the start time for a timer, to be passed to {@link #stopTimer}.
+	 *
+	 * @return
+	 */
+	long startTimer();
+
+
+	/**
+	 * Adds the time since the given start time to the given stage of the given piece.
+	 *
+	 * @param piece
+	 * @param stage
+	 * @param start
+	 */
+	void stopTimer(int piece, Stage stage, long start);
+
+
+	/**
+	 * Adds n to the given counter of the given piece.
+	 *
+	 * @param piece
+	 * @param counter
+	 * @param n
+	 */
+	void count(int piece, Counter counter, long n);
+
+
+	/**
+	 * Forgets the piece with the given index, whose metrics are no longer needed (e.g., in
+	 * service mode, once the response to its request has been made).
+	 *
+	 * @param piece
+	 */
+	void endPiece(int piece);
+
+
+	/**
+	 * Called once all pieces have been mapped.
+	 *
+	 * @param outPath The directory the results are stored in.
+	 */
+	void finish(String outPath);
+
+}
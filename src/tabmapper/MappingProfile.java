@@ -0,0 +1,130 @@
+package tabmapper;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import tools.ToolBox;
+
+/**
+ * {@link MappingMetrics} that stores, after all pieces have been mapped, a profile of the run
+ * as <code>profile.csv</code> and <code>profile.json</code> in the output directory (next to
+ * <code>LaTeX.txt</code>). The profile contains one row (object) per piece, in input order,
+ * with the time spent per stage in nanoseconds and the value of each counter. Pieces that
+ * have been ended (see {@link #endPiece}) are not in the profile.
+ */
+final class MappingProfile implements MappingMetrics {
+	static final String CSV_FILE = "profile.csv";
+	static final String JSON_FILE = "profile.json";
+	private static final int NUM_STAGES = Stage.values().length;
+	private static final int NUM_COUNTERS = Counter.values().length;
+
+	private final Map<Integer, String> names = new ConcurrentSkipListMap<>();
+	// Per piece: the stage timings, followed by the counters
+	private final Map<Integer, AtomicLongArray> values = new ConcurrentSkipListMap<>();
+
+
+	@Override
+	public void startPiece(int piece, String name) {
+		names.put(piece, name);
+	}
+
+
+	@Override
+	public long startTimer() {
+		return System.nanoTime();
+	}
+
+
+	@Override
+	public void stopTimer(int piece, Stage stage, long start) {
+		getValues(piece).addAndGet(stage.ordinal(), System.nanoTime() - start);
+	}
+
+
+	@Override
+	public void count(int piece, Counter counter, long n) {
+		getValues(piece).addAndGet(NUM_STAGES + counter.ordinal(), n);
+	}
+
+
+	@Override
+	public void endPiece(int piece) {
+		names.remove(piece);
+		values.remove(piece);
+	}
+
+
+	@Override
+	public void finish(String outPath) {
+		ToolBox.storeTextFile(toCsv(), new File(outPath + CSV_FILE));
+		ToolBox.storeTextFile(toJson(), new File(outPath + JSON_FILE));
+	}
+
+
+	String toCsv() {
+		StringBuilder sb = new StringBuilder("piece,name");
+		for (Stage s : Stage.values()) {
+			sb.append(",").append(s.name().toLowerCase()).append("_ns");
+		}
+		for (Counter c : Counter.values()) {
+			sb.append(",").append(c.name().toLowerCase());
+		}
+		sb.append("\r\n");
+		for (Map.Entry<Integer, AtomicLongArray> e : values.entrySet()) {
+			sb.append(e.getKey() + 1).append(",").append(toCsvField(names.getOrDefault(e.getKey(), "")));
+			AtomicLongArray v = e.getValue();
+			for (int i = 0; i < v.length(); i++) {
+				sb.append(",").append(v.get(i));
+			}
+			sb.append("\r\n");
+		}
+		return sb.toString();
+	}
+
+
+	String toJson() {
+		StringBuilder sb = new StringBuilder("[");
+		boolean isFirst = true;
+		for (Map.Entry<Integer, AtomicLongArray> e : values.entrySet()) {
+			AtomicLongArray v = e.getValue();
+			sb.append(isFirst ? "\r\n" : ",\r\n");
+			isFirst = false;
+			sb.append("  {\"piece\": ").append(e.getKey() + 1);
+			sb.append(", \"name\": \"").append(
+				names.getOrDefault(e.getKey(), "").replace("\\", "\\\\").replace("\"", "\\\"")
+			).append("\"");
+			sb.append(", \"stages_ns\": {");
+			for (Stage s : Stage.values()) {
+				sb.append(s.ordinal() == 0 ? "" : ", ");
+				sb.append("\"").append(s.name().toLowerCase()).append("\": ").append(v.get(s.ordinal()));
+			}
+			sb.append("}, \"counters\": {");
+			for (Counter c : Counter.values()) {
+				sb.append(c.ordinal() == 0 ? "" : ", ");
+				sb.append("\"").append(c.name().toLowerCase()).append("\": ").append(
+					v.get(NUM_STAGES + c.ordinal())
+				);
+			}
+			sb.append("}}");
+		}
+		sb.append("\r\n]\r\n");
+		return sb.toString();
+	}
+
+
+	// Quotes the given field if it contains a separator, a quote, or a line break
+	private static String toCsvField(String s) {
+		if (s.contains(",") || s.contains("\"") || s.contains("\r") || s.contains("\n")) {
+			return "\"" + s.replace("\"", "\"\"") + "\"";
+		}
+		return s;
+	}
+
+
+	private AtomicLongArray getValues(int piece) {
+		return values.computeIfAbsent(piece, k -> new AtomicLongArray(NUM_STAGES + NUM_COUNTERS));
+	}
+
+}
@@ -0,0 +1,277 @@
+package tabmapper;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+import de.uos.fmt.musitech.utility.math.Rational;
+
+/**
+ * The rows of the mapping CSV, one per mapped tablature note, stored column by column in
+ * primitive arrays.
+ */
+final class MappingRecords implements Serializable {
+	private static final long serialVersionUID = 1L;
+	static final String HEADER = "note,pitch,duration,onset,chord,bar,mapped voice,cost,category";
+	static final int NO_COST = Integer.MIN_VALUE;
+	private static final String NO_COST_STR = "n/a";
+	private static final String LINE_END = "\r\n";
+	// Voices are packed into an int as (voice + 1) per 4 bits, in order
+	private static final int VOICE_BITS = 4;
+	private static final int VOICE_MASK = (1 << VOICE_BITS) - 1;
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * The category of a mapped note.
+	 */
+	enum Category {
+		MATCH, FICTA, REPETITION, ADAPTATION, ORNAMENTATION;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	private int size;
+	private int[] notes = new int[INITIAL_CAPACITY];
+	private int[] pitches = new int[INITIAL_CAPACITY];
+	private int[] durNumers = new int[INITIAL_CAPACITY];
+	private int[] durDenoms = new int[INITIAL_CAPACITY];
+	private int[] onsetNumers = new int[INITIAL_CAPACITY];
+	private int[] onsetDenoms = new int[INITIAL_CAPACITY];
+	private int[] chords = new int[INITIAL_CAPACITY];
+	private String[] bars = new String[INITIAL_CAPACITY];
+	private int[] voices = new int[INITIAL_CAPACITY];
+	private int[] costs = new int[INITIAL_CAPACITY];
+	private byte[] categories = new byte[INITIAL_CAPACITY];
+
+
+	/**
+	 * Adds a row.
+	 *
+	 * @param note The index of the note in the tablature.
+	 * @param pitch
+	 * @param dur Reduced.
+	 * @param onset Reduced.
+	 * @param chord
+	 * @param bar The metric position, as given by
+	 *            <code>TimeMeterTools.getMetricPositionAsString()</code>.
+	 * @param voiceList The voice(s) the note is mapped to.
+	 * @param cost The cost of the mapping, or {@link #NO_COST}.
+	 * @param category
+	 */
+	void add(int note, int pitch, Rational dur, Rational onset, int chord, String bar,
+		List<Integer> voiceList, int cost, Category category) {
+		if (size == notes.length) {
+			grow();
+		}
+		int packed = 0;
+		for (int j = voiceList.size() - 1; j >= 0; j--) {
+			packed = (packed << VOICE_BITS) | (voiceList.get(j) + 1);
+		}
+		notes[size] = note;
+		pitches[size] = pitch;
+		durNumers[size] = dur.getNumer();
+		durDenoms[size] = dur.getDenom();
+		onsetNumers[size] = onset.getNumer();
+		onsetDenoms[size] = onset.getDenom();
+		chords[size] = chord;
+		bars[size] = bar;
+		voices[size] = packed;
+		costs[size] = cost;
+		categories[size] = (byte) category.ordinal();
+		size++;
+	}
+
+
+	/**
+	 * Adds the rows of the given records whose note index is in the given range, shifting
+	 * their note and chord indices by the given amounts.
+	 *
+	 * @param from
+	 * @param fromNote
+	 * @param toNote Exclusive.
+	 * @param noteShift
+	 * @param chordShift
+	 */
+	void addRows(MappingRecords from, int fromNote, int toNote, int noteShift, int chordShift) {
+		for (int i = 0; i < from.size; i++) {
+			if (from.notes[i] >= fromNote && from.notes[i] < toNote) {
+				if (size == notes.length) {
+					grow();
+				}
+				notes[size] = from.notes[i] + noteShift;
+				pitches[size] = from.pitches[i];
+				durNumers[size] = from.durNumers[i];
+				durDenoms[size] = from.durDenoms[i];
+				onsetNumers[size] = from.onsetNumers[i];
+				onsetDenoms[size] = from.onsetDenoms[i];
+				chords[size] = from.chords[i] + chordShift;
+				bars[size] = from.bars[i];
+				voices[size] = from.voices[i];
+				costs[size] = from.costs[i];
+				categories[size] = from.categories[i];
+				size++;
+			}
+		}
+	}
+
+
+	int size() {
+		return size;
+	}
+
+
+	/**
+	 * Removes all rows, keeping the capacity.
+	 */
+	void clear() {
+		Arrays.fill(bars, 0, size, null);
+		size = 0;
+	}
+
+
+	int getNote(int row) {
+		return notes[row];
+	}
+
+
+	/**
+	 * Sorts the rows by note index. Note indices are dense, so a counting sort over the range 
+	 * of the note indices is used; rows with the same note index keep their order.
+	 */
+	void sortByNote() {
+		int minNote = Integer.MAX_VALUE;
+		int maxNote = -1;
+		for (int i = 0; i < size; i++) {
+			minNote = Math.min(minNote, notes[i]);
+			maxNote = Math.max(maxNote, notes[i]);
+		}
+		if (size == 0) {
+			return;
+		}
+		int[] starts = new int[maxNote - minNote + 2];
+		for (int i = 0; i < size; i++) {
+			starts[notes[i] - minNote + 1]++;
+		}
+		for (int n = 1; n < starts.length; n++) {
+			starts[n] += starts[n-1];
+		}
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[starts[notes[i] - minNote]++] = i;
+		}
+		notes = permute(notes, order);
+		pitches = permute(pitches, order);
+		durNumers = permute(durNumers, order);
+		durDenoms = permute(durDenoms, order);
+		onsetNumers = permute(onsetNumers, order);
+		onsetDenoms = permute(onsetDenoms, order);
+		chords = permute(chords, order);
+		voices = permute(voices, order);
+		costs = permute(costs, order);
+		String[] sortedBars = new String[bars.length];
+		byte[] sortedCategories = new byte[categories.length];
+		for (int i = 0; i < size; i++) {
+			sortedBars[i] = bars[order[i]];
+			sortedCategories[i] = categories[order[i]];
+		}
+		bars = sortedBars;
+		categories = sortedCategories;
+	}
+
+
+	/**
+	 * Writes the header and all rows, each followed by a line break, to the given
+	 * <code>Writer</code>.
+	 *
+	 * @param w
+	 * @throws IOException
+	 */
+	void writeCsv(Writer w) throws IOException {
+		writeHeader(w);
+		writeRows(w);
+	}
+
+
+	/**
+	 * Writes the header, followed by a line break, to the given <code>Writer</code>.
+	 *
+	 * @param w
+	 * @throws IOException
+	 */
+	static void writeHeader(Writer w) throws IOException {
+		w.write(HEADER);
+		w.write(LINE_END);
+	}
+
+
+	/**
+	 * Writes all rows, each followed by a line break, to the given <code>Writer</code>.
+	 *
+	 * @param w
+	 * @throws IOException
+	 */
+	void writeRows(Writer w) throws IOException {
+		for (int i = 0; i < size; i++) {
+			w.write(getLine(i));
+			w.write(LINE_END);
+		}
+	}
+
+
+	/**
+	 * Returns the given row as a CSV line.
+	 *
+	 * @param row
+	 * @return
+	 */
+	String getLine(int row) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(notes[row]).append(',');
+		sb.append(pitches[row]).append(',');
+		sb.append(new Rational(durNumers[row], durDenoms[row])).append(',');
+		sb.append(new Rational(onsetNumers[row], onsetDenoms[row])).append(',');
+		sb.append(chords[row]).append(',');
+		sb.append(bars[row]).append(',');
+		for (int packed = voices[row]; packed != 0; packed >>>= VOICE_BITS) {
+			if (packed != voices[row]) {
+				sb.append(" and ");
+			}
+			sb.append((packed & VOICE_MASK) - 1);
+		}
+		sb.append(',');
+		sb.append(costs[row] == NO_COST ? NO_COST_STR : String.valueOf(costs[row])).append(',');
+		sb.append(Category.values()[categories[row]]);
+		return sb.toString();
+	}
+
+
+	private void grow() {
+		int capacity = notes.length * 2;
+		notes = Arrays.copyOf(notes, capacity);
+		pitches = Arrays.copyOf(pitches, capacity);
+		durNumers = Arrays.copyOf(durNumers, capacity);
+		durDenoms = Arrays.copyOf(durDenoms, capacity);
+		onsetNumers = Arrays.copyOf(onsetNumers, capacity);
+		onsetDenoms = Arrays.copyOf(onsetDenoms, capacity);
+		chords = Arrays.copyOf(chords, capacity);
+		bars = Arrays.copyOf(bars, capacity);
+		voices = Arrays.copyOf(voices, capacity);
+		costs = Arrays.copyOf(costs, capacity);
+		categories = Arrays.copyOf(categories, capacity);
+	}
+
+
+	private int[] permute(int[] values, int[] order) {
+		int[] permuted = new int[values.length];
+		for (int i = 0; i < size; i++) {
+			permuted[i] = values[order[i]];
+		}
+		return permuted;
+	}
+
+}
@@ -0,0 +1,379 @@
+package tabmapper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import external.Transcription;
+import tools.labels.LabelTools;
+
+/**
+ * Maps pieces on request, so that the JVM, the Python setup, and the caches are kept warm
+ * between pieces. Requests are read from connections to a socket on the loopback address,
+ * each connection on a thread of its own; the requests are mapped concurrently, by at most
+ * <code>numWorkers</code> threads.
+ *
+ * The protocol is line-based (UTF-8). A request is a line containing the tab file, the MIDI
+ * file, and any options, separated by tabs:
+ * <pre>
+ * &lt;tab file&gt;	&lt;MIDI file&gt;[	orn=y|n][	dur=y|n][	connection=LEFT|RIGHT]
+ * </pre>
+ * Relative file names are resolved against the tab and MIDI input directories; options not
+ * given take the values the service was started with. The response is a single line with a
+ * JSON object, containing either
+ * <ul>
+ * <li><code>"status": "ok"</code>, the voice(s) each tab note is mapped to (or
+ *     <code>null</code> for unmapped ornamental notes), the indices of the notes per
+ *     mismatch category, and the output files; or</li>
+ * <li><code>"status": "error"</code> and a message.</li>
+ * </ul>
+ * A line {@value #SHUTDOWN} stops the service once the requests being handled are done;
+ * no further requests are read from any connection.
+ *
+ * Requests for pieces with the same output files are handled one at a time; the metrics of
+ * a request are forgotten once its response is made, so that a long-running service does
+ * not keep those of all requests.
+ */
+final class MappingService {
+	static final String SHUTDOWN = "SHUTDOWN";
+	private static final String ORN = "orn";
+	private static final String DUR = "dur";
+	private static final String CONNECTION = "connection";
+	private static final String[] CATEGORIES = new String[]{
+		"incorrect", "ornamentation", "repetition", "ficta", "adaptation", "special_ornamentation"
+	};
+
+	private final PieceMapper mapper;
+	private final OutputWriter writer;
+	private final MappingMetrics metrics;
+	private final String inPathTab;
+	private final String inPathMIDI;
+	private final boolean includeOrn;
+	private final boolean completeDurations;
+	private final TabMapper.Connection connection;
+	private final int numWorkers;
+	private final AtomicInteger numRequests = new AtomicInteger();
+	// Per output name (see TabMapper.getStoreName()), the lock its requests are handled under
+	private final Map<String, Object> pieceLocks = new ConcurrentHashMap<>();
+	private volatile ServerSocket server;
+	// The connections open; is added to, and stopping is changed, only under its lock
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private boolean stopping;
+
+
+	/**
+	 * Maps a single piece, in the variant requested and any others that are mapped with it
+	 * (see <code>TabMapper.mapPiece()</code>). Returns a list containing
+	 * <ul>
+	 * <li>As element 0: the index of the variant requested.</li>
+	 * <li>As element 1: for each variant mapped, its results, as returned by
+	 *     <code>TabMapper.mapPiece()</code>.</li>
+	 * </ul>
+	 */
+	interface PieceMapper {
+		List<Object> map(String[] piece, int pieceInd, String inPathTab, String inPathMIDI,
+			boolean includeOrn, boolean completeDurations, TabMapper.Connection connection);
+	}
+
+
+	/**
+	 * @param mapper
+	 * @param writer The writer the mapper stores its output with.
+	 * @param metrics The metrics the mapper records to.
+	 * @param inPathTab
+	 * @param inPathMIDI
+	 * @param includeOrn The default.
+	 * @param completeDurations The default.
+	 * @param connection The default.
+	 * @param numWorkers
+	 */
+	MappingService(PieceMapper mapper, OutputWriter writer, MappingMetrics metrics,
+		String inPathTab, String inPathMIDI, boolean includeOrn, boolean completeDurations,
+		TabMapper.Connection connection, int numWorkers) {
+		this.mapper = mapper;
+		this.writer = writer;
+		this.metrics = metrics;
+		this.inPathTab = inPathTab;
+		this.inPathMIDI = inPathMIDI;
+		this.includeOrn = includeOrn;
+		this.completeDurations = completeDurations;
+		this.connection = connection;
+		this.numWorkers = Math.max(1, numWorkers);
+	}
+
+
+	/**
+	 * Listens on the given port of the loopback address until a {@value #SHUTDOWN} request
+	 * is received.
+	 *
+	 * @param port The port, or 0 for any free port.
+	 * @throws IOException
+	 */
+	void serve(int port) throws IOException {
+		// Each connection waits for its request to be mapped before reading the next one, so
+		// that at most one request per connection is queued
+		ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+		ExecutorService readers = Executors.newCachedThreadPool();
+		try (ServerSocket ss = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			server = ss;
+			System.out.println("listening on " + ss.getInetAddress().getHostAddress() + ":" +
+				ss.getLocalPort());
+			while (!ss.isClosed()) {
+				Socket s;
+				try {
+					s = ss.accept();
+				} catch (SocketException e) {
+					// Closed by a SHUTDOWN request
+					break;
+				}
+				readers.execute(() -> handle(s, workers));
+			}
+		} finally {
+			stop();
+			try {
+				readers.shutdown();
+				readers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				workers.shutdown();
+				workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the port the service listens on.
+	 *
+	 * @return The port, or -1 if the service is not (yet) listening.
+	 */
+	int getPort() {
+		ServerSocket ss = server;
+		return ss == null ? -1 : ss.getLocalPort();
+	}
+
+
+	// Stops accepting connections, and reading requests from those open; a request being
+	// mapped is still answered
+	private void stop() {
+		synchronized (connections) {
+			stopping = true;
+			for (Socket s : connections) {
+				try {
+					s.shutdownInput();
+				} catch (IOException e) {
+					// Closed already
+				}
+			}
+		}
+		try {
+			if (server != null) {
+				server.close();
+			}
+		} catch (IOException e) {
+			System.err.println("could not close the server socket (" + e + ")");
+		}
+	}
+
+
+	private void handle(Socket s, ExecutorService workers) {
+		synchronized (connections) {
+			if (!stopping) {
+				connections.add(s);
+			}
+		}
+		try (Socket socket = s;
+			BufferedReader in = new BufferedReader(
+				new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new BufferedWriter(
+				new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while (connections.contains(s) && (line = in.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				if (line.trim().equals(SHUTDOWN)) {
+					stop();
+					break;
+				}
+				String request = line;
+				String response;
+				try {
+					response = workers.submit(() -> handleRequest(request)).get();
+				} catch (ExecutionException e) {
+					response = "{\"status\": \"error\", \"message\": " + 
+						quote(String.valueOf(e.getCause())) + "}";
+				}
+				out.write(response);
+				out.write("\n");
+				out.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("connection closed (" + e + ")");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			synchronized (connections) {
+				connections.remove(s);
+			}
+		}
+	}
+
+
+	/**
+	 * Maps the piece in the given request.
+	 *
+	 * @param request
+	 * @return The response.
+	 */
+	String handleRequest(String request) {
+		int pieceInd = numRequests.getAndIncrement();
+		try {
+			String[] fields = request.split("\t");
+			if (fields.length < 2) {
+				throw new IllegalArgumentException("expected <tab file>\t<MIDI file>[\t<option>...]");
+			}
+			boolean orn = includeOrn;
+			boolean dur = completeDurations;
+			TabMapper.Connection conn = connection;
+			for (int i = 2; i < fields.length; i++) {
+				String[] kv = fields[i].split("=", 2);
+				if (kv.length != 2) {
+					throw new IllegalArgumentException("invalid option " + fields[i]);
+				}
+				switch (kv[0].trim()) {
+					case ORN:
+						orn = parseYesNo(kv[1]);
+						break;
+					case DUR:
+						dur = parseYesNo(kv[1]);
+						break;
+					case CONNECTION:
+						conn = TabMapper.Connection.valueOf(kv[1].trim().toUpperCase());
+						break;
+					default:
+						throw new IllegalArgumentException("unknown option " + kv[0]);
+				}
+			}
+			File tab = resolve(fields[0].trim(), inPathTab);
+			File midi = resolve(fields[1].trim(), inPathMIDI);
+			// The output files of a piece are overwritten, and its results are cached, only once
+			// those of an earlier request for it have been. The results of all variants mapped
+			// are cached, as the output files of all have been overwritten
+			List<Object> results;
+			Object pieceLock = pieceLocks.computeIfAbsent(
+				TabMapper.getStoreName(tab.getName(), Collections.emptyList(), dur),
+				k -> new Object()
+			);
+			synchronized (pieceLock) {
+				List<Throwable> errors;
+				List<Object> mapped;
+				try {
+					mapped = mapper.map(
+						new String[]{tab.getName(), midi.getName(), null}, pieceInd,
+						tab.getParent() + File.separator, midi.getParent() + File.separator, orn,
+						dur, conn
+					);
+				} finally {
+					errors = writer.awaitPiece(pieceInd);
+				}
+				if (!errors.isEmpty()) {
+					throw new IOException("could not store output", errors.get(0));
+				}
+				List<List<Object>> variantResults = (List<List<Object>>) mapped.get(1);
+				variantResults.forEach(TabMapper::cacheResult);
+				results = variantResults.get((int) mapped.get(0));
+			}
+			return toJson(
+				(List<List<Double>>) results.get(4), (List<List<Integer>>) results.get(5),
+				(List<File>) results.get(6)
+			);
+		} catch (Exception e) {
+			writer.awaitPiece(pieceInd);
+			return "{\"status\": \"error\", \"message\": " + quote(String.valueOf(e)) + "}";
+		} finally {
+			metrics.endPiece(pieceInd);
+		}
+	}
+
+
+	private static File resolve(String name, String dir) {
+		File f = new File(name);
+		return f.isAbsolute() ? f : new File(dir + name);
+	}
+
+
+	private static boolean parseYesNo(String s) {
+		switch (s.trim()) {
+			case "y":
+				return true;
+			case "n":
+				return false;
+			default:
+				throw new IllegalArgumentException("expected y or n, not " + s);
+		}
+	}
+
+
+	static String toJson(List<List<Double>> voiceLabels, List<List<Integer>> mismatchInds,
+		List<File> files) {
+		StringBuilder sb = new StringBuilder("{\"status\": \"ok\", \"voices\": [");
+		for (int i = 0; i < voiceLabels.size(); i++) {
+			sb.append(i == 0 ? "" : ", ");
+			List<Double> vl = voiceLabels.get(i);
+			sb.append(vl == null ? "null" : LabelTools.convertIntoListOfVoices(vl).toString());
+		}
+		sb.append("], \"mismatches\": {");
+		boolean isFirst = true;
+		for (int j = 0; j < mismatchInds.size(); j++) {
+			if (j != Transcription.INCORRECT_IND && mismatchInds.get(j) != null) {
+				sb.append(isFirst ? "" : ", ");
+				isFirst = false;
+				sb.append("\"").append(CATEGORIES[j]).append("\": ").append(mismatchInds.get(j));
+			}
+		}
+		sb.append("}, \"files\": [");
+		for (int i = 0; i < files.size(); i++) {
+			sb.append(i == 0 ? "" : ", ").append(quote(files.get(i).getPath()));
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				sb.append(c);
+			}
+		}
+		return sb.append("\"").toString();
+	}
+
+}
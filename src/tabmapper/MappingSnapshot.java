@@ -0,0 +1,425 @@
+package tabmapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import external.Tablature;
+
+/**
+ * The result of mapping a tablature onto a model, together with the inputs it was made from
+ * and the state of <code>TabMapper.map()</code> after each non-ornamental chord. When the
+ * tablature is edited, the mapping of the edited version can start from the last chord
+ * before the first change (see {@link #getRestartPoint}), and stop as soon as the state
+ * after a chord in the unchanged rest of the tablature is the same as in the previous
+ * mapping (see {@link #getConvergencePoint}); the rest of the previous mapping is then
+ * reused.
+ *
+ * A snapshot can only be reused for the same model, meter, and mapping options (see
+ * {@link #isReusableFor}).
+ */
+final class MappingSnapshot implements Serializable {
+	private static final long serialVersionUID = 1L;
+	static final String EXT = ".ser";
+	// Per note, the btp values that are compared, followed by the chord index, which is not
+	private static final int[] COMPARED_COLS = new int[]{
+		Tablature.PITCH, Tablature.ONSET_TIME, Tablature.MIN_DURATION,
+		Tablature.CHORD_SIZE_AS_NUM_ONSETS
+	};
+	private static final int CHORD_COL = COMPARED_COLS.length;
+
+	private final int[][] notes;
+	private final int[][] model;
+	private final int[][] meter;
+	private final boolean includeOrnamentation;
+	private final TabMapper.Connection connection;
+	private final List<List<Double>> voiceLabels;
+	private final List<List<Integer>> mismatchInds;
+	private final MappingRecords records;
+	private final List<Checkpoint> checkpoints;
+
+
+	/**
+	 * The state of <code>TabMapper.map()</code> after a non-ornamental chord, i.e., the
+	 * information the mapping of the following chords depends on besides the tablature
+	 * and the model.
+	 */
+	static final class Checkpoint implements Serializable {
+		private static final long serialVersionUID = 2L;
+		final int firstNote;
+		final int endNote;
+		final int onset; // in ticks
+		final List<Integer> activeVoices;
+		final List<Integer> pitchesTab;
+		final int[] voiceMasks;
+		final boolean containsTuplet;
+		final List<Integer> pitchesTabWithTuplet;
+		final int[] voiceMasksWithTuplet;
+		final int onsetWithTuplet; // in ticks, or -1
+
+		/**
+		 * @param firstNote The index of the first note of the chord.
+		 * @param endNote The index of the first note after the chord.
+		 * @param onset
+		 * @param activeVoices
+		 * @param pitchesTab
+		 * @param voiceMasks
+		 * @param containsTuplet
+		 * @param pitchesTabWithTuplet
+		 * @param voiceMasksWithTuplet
+		 * @param onsetWithTuplet
+		 */
+		Checkpoint(int firstNote, int endNote, int onset, List<Integer> activeVoices,
+			List<Integer> pitchesTab, int[] voiceMasks, boolean containsTuplet,
+			List<Integer> pitchesTabWithTuplet, int[] voiceMasksWithTuplet,
+			int onsetWithTuplet) {
+			this.firstNote = firstNote;
+			this.endNote = endNote;
+			this.onset = onset;
+			this.activeVoices = activeVoices;
+			this.pitchesTab = pitchesTab;
+			this.voiceMasks = voiceMasks;
+			this.containsTuplet = containsTuplet;
+			this.pitchesTabWithTuplet = pitchesTabWithTuplet;
+			this.voiceMasksWithTuplet = voiceMasksWithTuplet;
+			this.onsetWithTuplet = onsetWithTuplet;
+		}
+
+
+		/**
+		 * Checks whether the state is the same as that in the given checkpoint. The note
+		 * indices are not compared.
+		 *
+		 * @param c
+		 * @return
+		 */
+		boolean hasSameState(Checkpoint c) {
+			return onset == c.onset && activeVoices.equals(c.activeVoices) &&
+				pitchesTab.equals(c.pitchesTab) && Arrays.equals(voiceMasks, c.voiceMasks) &&
+				containsTuplet == c.containsTuplet &&
+				(!containsTuplet || (pitchesTabWithTuplet.equals(c.pitchesTabWithTuplet) &&
+				Arrays.equals(voiceMasksWithTuplet, c.voiceMasksWithTuplet) &&
+				onsetWithTuplet == c.onsetWithTuplet));
+		}
+
+
+		/**
+		 * Returns a copy of the checkpoint with the last chord with a tuplet of the given
+		 * checkpoint.
+		 *
+		 * @param c
+		 * @return
+		 */
+		Checkpoint withTupletOf(Checkpoint c) {
+			return new Checkpoint(firstNote, endNote, onset, activeVoices, pitchesTab,
+				voiceMasks, c.containsTuplet, c.pitchesTabWithTuplet, c.voiceMasksWithTuplet,
+				c.onsetWithTuplet);
+		}
+
+
+		private Checkpoint shift(int noteShift) {
+			return new Checkpoint(firstNote + noteShift, endNote + noteShift, onset,
+				activeVoices, pitchesTab, voiceMasks, containsTuplet, pitchesTabWithTuplet,
+				voiceMasksWithTuplet, onsetWithTuplet);
+		}
+	}
+
+
+	/**
+	 * Makes a snapshot. The lists given are copied, so that they can be changed afterwards.
+	 *
+	 * @param tab
+	 * @param bnp The model's basic note properties.
+	 * @param keyInfo The model's key information.
+	 * @param includeOrnamentation
+	 * @param connection
+	 * @param voiceLabels
+	 * @param mismatchInds
+	 * @param records
+	 * @param checkpoints
+	 */
+	MappingSnapshot(Tablature tab, Integer[][] bnp, List<Integer[]> keyInfo,
+		boolean includeOrnamentation, TabMapper.Connection connection,
+		List<List<Double>> voiceLabels, List<List<Integer>> mismatchInds,
+		MappingRecords records, List<Checkpoint> checkpoints) {
+		this.notes = getNotes(tab.getBasicTabSymbolProperties());
+		this.model = getModel(bnp, keyInfo);
+		this.meter = toIntArray(tab.getMeterInfo());
+		this.includeOrnamentation = includeOrnamentation;
+		this.connection = connection;
+		this.voiceLabels = new ArrayList<>(voiceLabels);
+		this.mismatchInds = new ArrayList<>();
+		mismatchInds.forEach(l -> this.mismatchInds.add(l == null ? null : new ArrayList<>(l)));
+		this.records = records;
+		this.checkpoints = checkpoints;
+	}
+
+
+	/**
+	 * Checks whether the snapshot can be used for mapping the given tablature onto the given
+	 * model.
+	 *
+	 * @param tab
+	 * @param bnp The model's basic note properties.
+	 * @param keyInfo The model's key information.
+	 * @param includeOrnamentation
+	 * @param connection
+	 * @return
+	 */
+	boolean isReusableFor(Tablature tab, Integer[][] bnp, List<Integer[]> keyInfo,
+		boolean includeOrnamentation, TabMapper.Connection connection) {
+		return includeOrnamentation == this.includeOrnamentation &&
+			connection == this.connection &&
+			Arrays.deepEquals(meter, toIntArray(tab.getMeterInfo())) &&
+			Arrays.deepEquals(model, getModel(bnp, keyInfo));
+	}
+
+
+	/**
+	 * Returns the checkpoint the mapping of the given tablature can start from, i.e., that
+	 * of the last non-ornamental chord before the first note that differs from the
+	 * snapshot's tablature.
+	 *
+	 * @param tab
+	 * @return The checkpoint, or <code>null</code> if the mapping must start from the
+	 *         beginning.
+	 */
+	Checkpoint getRestartPoint(Tablature tab) {
+		int firstDiff = getNumCommonNotes(getNotes(tab.getBasicTabSymbolProperties()), false);
+		Checkpoint restart = null;
+		for (Checkpoint c : checkpoints) {
+			if (c.endNote > firstDiff) {
+				break;
+			}
+			restart = c;
+		}
+		return restart;
+	}
+
+
+	/**
+	 * Returns the index of the first note in the given tablature from which on it is the
+	 * same as the snapshot's tablature.
+	 *
+	 * @param tab
+	 * @return
+	 */
+	int getTailStart(Tablature tab) {
+		int[][] newNotes = getNotes(tab.getBasicTabSymbolProperties());
+		int maxTail = Math.min(notes.length, newNotes.length) - getNumCommonNotes(newNotes, false);
+		return newNotes.length - Math.min(maxTail, getNumCommonNotes(newNotes, true));
+	}
+
+
+	/**
+	 * Returns the checkpoint of the chord in the snapshot's tablature that corresponds to
+	 * the chord in the given checkpoint, if its state is the same.
+	 *
+	 * @param c A checkpoint from the mapping of the edited tablature, whose chord is in the
+	 *          unchanged rest (see {@link #getTailStart}).
+	 * @param noteShift The number of notes added to (if positive) or removed from (if
+	 *        negative) the tablature before the chord.
+	 * @return The checkpoint, or <code>null</code> if there is no such checkpoint.
+	 */
+	Checkpoint getConvergencePoint(Checkpoint c, int noteShift) {
+		int low = 0;
+		int high = checkpoints.size() - 1;
+		int firstNote = c.firstNote - noteShift;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			Checkpoint curr = checkpoints.get(mid);
+			if (curr.firstNote < firstNote) {
+				low = mid + 1;
+			}
+			else if (curr.firstNote > firstNote) {
+				high = mid - 1;
+			}
+			else {
+				return curr.hasSameState(c) ? curr : null;
+			}
+		}
+		return null;
+	}
+
+
+	int getNumNotes() {
+		return notes.length;
+	}
+
+
+	/**
+	 * Adds the snapshot's results for the notes before the given note to the given lists
+	 * (which must be empty).
+	 *
+	 * @param endNote
+	 * @param voiceLabels
+	 * @param mismatchInds
+	 * @param records
+	 * @param checkpoints
+	 */
+	void copyHead(int endNote, List<List<Double>> voiceLabels, List<List<Integer>> mismatchInds,
+		MappingRecords records, List<Checkpoint> checkpoints) {
+		voiceLabels.addAll(this.voiceLabels.subList(0, endNote));
+		copyMismatchInds(0, endNote, 0, mismatchInds);
+		records.addRows(this.records, 0, endNote, 0, 0);
+		for (Checkpoint c : this.checkpoints) {
+			if (c.endNote > endNote) {
+				break;
+			}
+			checkpoints.add(c);
+		}
+	}
+
+
+	/**
+	 * Adds the snapshot's results for the notes from the given note on to the given lists,
+	 * shifting all note and chord indices.
+	 *
+	 * @param fromNote
+	 * @param noteShift
+	 * @param chordShift
+	 * @param voiceLabels
+	 * @param mismatchInds
+	 * @param records
+	 * @param checkpoints
+	 */
+	void copyTail(int fromNote, int noteShift, int chordShift, List<List<Double>> voiceLabels,
+		List<List<Integer>> mismatchInds, MappingRecords records, List<Checkpoint> checkpoints) {
+		voiceLabels.addAll(this.voiceLabels.subList(fromNote, this.voiceLabels.size()));
+		copyMismatchInds(fromNote, notes.length, noteShift, mismatchInds);
+		records.addRows(this.records, fromNote, notes.length, noteShift, chordShift);
+		for (Checkpoint c : this.checkpoints) {
+			if (c.firstNote >= fromNote) {
+				checkpoints.add(c.shift(noteShift));
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the chord index of the given note in the snapshot's tablature.
+	 *
+	 * @param note
+	 * @return
+	 */
+	int getChordInd(int note) {
+		return notes[note][CHORD_COL];
+	}
+
+
+	/**
+	 * Stores the snapshot in the given file.
+	 *
+	 * @param f
+	 * @throws IOException
+	 */
+	void store(File f) throws IOException {
+		try (ObjectOutputStream out = new ObjectOutputStream(
+			new BufferedOutputStream(Files.newOutputStream(f.toPath())))) {
+			out.writeObject(this);
+		}
+	}
+
+
+	/**
+	 * Reads a snapshot from the given file.
+	 *
+	 * @param f
+	 * @return The snapshot, or <code>null</code> if the file does not exist or cannot be read
+	 *         (e.g., because it was made by an earlier version).
+	 */
+	static MappingSnapshot load(File f) {
+		if (!f.exists()) {
+			return null;
+		}
+		try (ObjectInputStream in = new ObjectInputStream(
+			new BufferedInputStream(Files.newInputStream(f.toPath())))) {
+			return (MappingSnapshot) in.readObject();
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			System.err.println("could not read " + f + " (" + e + "); mapping from scratch");
+			return null;
+		}
+	}
+
+
+	/**
+	 * Returns the number of notes at the start (or, if fromEnd is <code>true</code>, at
+	 * the end) of the given notes that are the same as in the snapshot.
+	 *
+	 * @param newNotes
+	 * @param fromEnd
+	 * @return
+	 */
+	private int getNumCommonNotes(int[][] newNotes, boolean fromEnd) {
+		int max = Math.min(notes.length, newNotes.length);
+		for (int i = 0; i < max; i++) {
+			int[] n = fromEnd ? notes[notes.length - 1 - i] : notes[i];
+			int[] m = fromEnd ? newNotes[newNotes.length - 1 - i] : newNotes[i];
+			for (int j = 0; j < CHORD_COL; j++) {
+				if (n[j] != m[j]) {
+					return i;
+				}
+			}
+		}
+		return max;
+	}
+
+
+	private void copyMismatchInds(int fromNote, int toNote, int noteShift,
+		List<List<Integer>> target) {
+		for (int j = 0; j < mismatchInds.size(); j++) {
+			List<Integer> l = mismatchInds.get(j);
+			if (l != null) {
+				for (int ind : l) {
+					if (ind >= fromNote && ind < toNote) {
+						target.get(j).add(ind + noteShift);
+					}
+				}
+			}
+		}
+	}
+
+
+	private static int[][] getNotes(Integer[][] btp) {
+		int[][] notes = new int[btp.length][CHORD_COL + 1];
+		for (int i = 0; i < btp.length; i++) {
+			for (int j = 0; j < CHORD_COL; j++) {
+				notes[i][j] = btp[i][COMPARED_COLS[j]];
+			}
+			notes[i][CHORD_COL] = btp[i][Tablature.CHORD_SEQ_NUM];
+		}
+		return notes;
+	}
+
+
+	private static int[][] getModel(Integer[][] bnp, List<Integer[]> keyInfo) {
+		int[][] model = new int[bnp.length + keyInfo.size()][];
+		int[][] notes = toIntArray(Arrays.asList(bnp));
+		int[][] keys = toIntArray(keyInfo);
+		System.arraycopy(notes, 0, model, 0, notes.length);
+		System.arraycopy(keys, 0, model, notes.length, keys.length);
+		return model;
+	}
+
+
+	private static int[][] toIntArray(List<Integer[]> l) {
+		int[][] arr = new int[l.size()][];
+		for (int i = 0; i < l.size(); i++) {
+			Integer[] in = l.get(i);
+			arr[i] = new int[in.length];
+			for (int j = 0; j < in.length; j++) {
+				arr[i][j] = in[j] == null ? Integer.MIN_VALUE : in[j];
+			}
+		}
+		return arr;
+	}
+
+}
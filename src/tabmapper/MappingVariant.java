@@ -0,0 +1,55 @@
+package tabmapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A combination of the options that only affect how the ornamental notes are mapped and
+ * how the results are exported: whether ornamentation is included, and the connection of
+ * ornamental runs. Several variants of a piece can be mapped in a single pass (see
+ * <code>TabMapper.mapVariants()</code>).
+ */
+final class MappingVariant {
+	final boolean includeOrnamentation;
+	final TabMapper.Connection connection;
+
+
+	MappingVariant(boolean includeOrnamentation, TabMapper.Connection connection) {
+		this.includeOrnamentation = includeOrnamentation;
+		this.connection = connection;
+	}
+
+
+	/**
+	 * Returns all variants: with and without ornamentation, each with all connections.
+	 *
+	 * @return
+	 */
+	static List<MappingVariant> all() {
+		List<MappingVariant> variants = new ArrayList<>();
+		for (boolean includeOrnamentation : new boolean[]{true, false}) {
+			for (TabMapper.Connection connection : TabMapper.Connection.values()) {
+				variants.add(new MappingVariant(includeOrnamentation, connection));
+			}
+		}
+		return variants;
+	}
+
+
+	/**
+	 * Returns the name of the variant (e.g., <code>orn-LEFT</code>), under which its output
+	 * files are stored.
+	 *
+	 * @return
+	 */
+	String getName() {
+		return (includeOrnamentation ? "orn-" : "no-orn-") + connection;
+	}
+
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+}
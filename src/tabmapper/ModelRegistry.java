@@ -0,0 +1,178 @@
+package tabmapper;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import de.uos.fmt.musitech.data.score.NotationSystem;
+import de.uos.fmt.musitech.data.score.NotationVoice;
+import de.uos.fmt.musitech.data.structure.Note;
+import de.uos.fmt.musitech.utility.math.Rational;
+import external.Transcription;
+
+/**
+ * Loads each model (i.e., the <code>Transcription</code> made from a MIDI file) once per run,
+ * and shares it, together with the structures derived from it that are needed for mapping
+ * (see {@link Model}), between all pieces that are mapped onto it.
+ *
+ * Models are reference counted: each piece that uses a model is registered beforehand (see
+ * {@link #register}), and the model is released once all of these pieces have released it
+ * (see {@link #release}). Mapping only reads a shared model, through the structures in
+ * {@link Model}, also when several pieces are mapped onto it concurrently. The metrical time
+ * line and the harmony track of its ScorePiece are also passed on to the ScorePieces that
+ * are exported (see <code>TabMapper.makeExportPiece()</code>); making these does not change
+ * them, and exports run one at a time.
+ */
+final class ModelRegistry {
+	private final Map<String, Entry> entries = new HashMap<>();
+
+
+	/**
+	 * A model and the structures derived from it. All fields are read-only.
+	 */
+	static final class Model {
+		final Transcription trans;
+		final Integer[][] bnp;
+		final List<Integer[]> keyInfo;
+		final List<Rational> metricPositionsChords;
+		// Per voice (in score order, i.e., starting at the highest voice): the onsets,
+		// pitches, and durations of its notes
+		final Rational[][] onsets;
+		final int[][] pitches;
+		final Rational[][] durations;
+
+		private Model(Transcription trans) {
+			this.trans = trans;
+			this.bnp = trans.getBasicNoteProperties();
+			this.keyInfo = trans.getKeyInfo();
+			this.metricPositionsChords = trans.getMetricPositionsChords();
+			NotationSystem ns = trans.getScorePiece().getScore();
+			int numVoices = ns.size();
+			this.onsets = new Rational[numVoices][];
+			this.pitches = new int[numVoices][];
+			this.durations = new Rational[numVoices][];
+			for (int j = 0; j < numVoices; j++) {
+				NotationVoice nv = ns.get(j).get(0);
+				onsets[j] = new Rational[nv.size()];
+				pitches[j] = new int[nv.size()];
+				durations[j] = new Rational[nv.size()];
+				for (int k = 0; k < nv.size(); k++) {
+					Note n = nv.get(k).get(0);
+					onsets[j][k] = n.getMetricTime();
+					pitches[j][k] = n.getMidiPitch();
+					durations[j][k] = n.getMetricDuration();
+				}
+			}
+		}
+
+
+		/**
+		 * Makes the structures derived from the given model, without sharing them.
+		 *
+		 * @param trans
+		 * @return
+		 */
+		static Model of(Transcription trans) {
+			return new Model(trans);
+		}
+
+
+		int getNumVoices() {
+			return onsets.length;
+		}
+	}
+
+
+	// The models made from a MIDI file (per meter, which is taken from the tablature), and
+	// the number of pieces still to release them
+	private static final class Entry {
+		int numConsumers;
+		final Map<String, CompletableFuture<Model>> models = new HashMap<>();
+	}
+
+
+	/**
+	 * Registers a piece that uses the model in the given MIDI file.
+	 *
+	 * @param midiFile
+	 */
+	synchronized void register(File midiFile) {
+		entries.computeIfAbsent(getKey(midiFile), k -> new Entry()).numConsumers++;
+	}
+
+
+	/**
+	 * Returns the model in the given MIDI file with the given meter. The model is loaded
+	 * with the given loader if it has not been loaded yet (if it is being loaded by another
+	 * thread, that is waited for). If the MIDI file is not registered, the model is loaded
+	 * but not kept.
+	 *
+	 * @param midiFile
+	 * @param meterInfo
+	 * @param loader
+	 * @return
+	 */
+	Model acquire(File midiFile, List<Integer[]> meterInfo, Supplier<Transcription> loader) {
+		String meterKey = 
+			meterInfo.stream().map(Arrays::toString).collect(Collectors.joining());
+		CompletableFuture<Model> f;
+		boolean load = false;
+		synchronized (this) {
+			Entry e = entries.get(getKey(midiFile));
+			if (e == null) {
+				return Model.of(loader.get());
+			}
+			f = e.models.get(meterKey);
+			if (f == null) {
+				f = new CompletableFuture<>();
+				e.models.put(meterKey, f);
+				load = true;
+			}
+		}
+		if (load) {
+			try {
+				f.complete(Model.of(loader.get()));
+			} catch (RuntimeException ex) {
+				f.completeExceptionally(ex);
+			}
+		}
+		return f.join();
+	}
+
+
+	/**
+	 * Releases the model in the given MIDI file for a piece registered with
+	 * {@link #register}. Once all of its pieces have released it, the model is no longer
+	 * kept.
+	 *
+	 * @param midiFile
+	 */
+	synchronized void release(File midiFile) {
+		String key = getKey(midiFile);
+		Entry e = entries.get(key);
+		if (e != null && --e.numConsumers == 0) {
+			entries.remove(key);
+		}
+	}
+
+
+	/**
+	 * Returns the number of models that are kept.
+	 *
+	 * @return
+	 */
+	synchronized int getNumModels() {
+		return entries.values().stream().mapToInt(e -> e.models.size()).sum();
+	}
+
+
+	private static String getKey(File midiFile) {
+		return midiFile.getAbsolutePath();
+	}
+
+}
@@ -0,0 +1,122 @@
+package tabmapper;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
+import external.Tablature;
+import external.Transcription;
+
+/**
+ * Selects, from several candidate models (e.g., different editions of the vocal model), the
+ * one a tablature follows best. The tablature is mapped onto all candidates concurrently,
+ * and the candidates are ranked by m, then m_oa, then m_a (see
+ * <code>TabMapper.getPieceResults()</code>).
+ *
+ * A candidate is given up as soon as the m it can still reach is lower than that of the
+ * best candidate mapped completely so far; a candidate given up in this way would not have
+ * won.
+ */
+final class ModelSelector {
+
+	private ModelSelector() {
+	}
+
+
+	/**
+	 * Maps the given tablature onto each of the given candidate models and ranks them.
+	 *
+	 * @param tab Is shared by all mappings.
+	 * @param candidates The MIDI files of the candidate models.
+	 * @param includeOrnamentation
+	 * @param connection
+	 * @param modelRegistry The registry the models are taken from.
+	 * @param numWorkers The number of candidates that are mapped concurrently.
+	 * @param pieceInd The index of the piece the counts of the mappings (onto all candidates)
+	 *                 are recorded for.
+	 * @param metrics
+	 * @return A list containing
+	 * <ul>
+	 * <li>As element 0: the index of the best candidate (the first one in case of a tie).</li>
+	 * <li>As element 1: per candidate, its m, m_oa, and m_a, or <code>null</code> if it was
+	 *     given up.</li>
+	 * <li>As element 2: the mapping onto the best candidate, as returned by
+	 *     <code>TabMapper.map()</code>.</li>
+	 * </ul>
+	 */
+	static List<Object> select(Tablature tab, List<File> candidates,
+		boolean includeOrnamentation, TabMapper.Connection connection,
+		ModelRegistry modelRegistry, int numWorkers, int pieceInd, MappingMetrics metrics) {
+		Integer[][] btp = tab.getBasicTabSymbolProperties();
+		// The m of the best candidate mapped completely so far
+		DoubleAccumulator bestM = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+
+		// The mappings of the candidates not given up; each is set by the worker mapping it
+		AtomicReferenceArray<List<Object>> mappings = new AtomicReferenceArray<>(candidates.size());
+		List<Double[]> ms = TabMapper.mapPieces(candidates.size(), numWorkers, i -> {
+			File midiFile = candidates.get(i);
+			ModelRegistry.Model model = modelRegistry.acquire(midiFile, tab.getMeterInfo(),
+				() -> new Transcription(tab.getMeterInfo(), midiFile));
+			MappingContext ctx =
+				new MappingContext(model.getNumVoices(), pieceInd, metrics, model);
+			List<Object> mapping = TabMapper.mapOrAbort(
+				model.trans, tab, ctx, includeOrnamentation, connection,
+				mismatchInds -> getMaxM(btp.length, mismatchInds, includeOrnamentation) < bestM.get()
+			);
+			if (mapping == null) {
+				return null;
+			}
+			mappings.set(i, mapping);
+			Double[] doubles = (Double[]) TabMapper.getPieceResults(
+				btp, model.bnp, null, (List<List<Integer>>) mapping.get(1), includeOrnamentation
+			).get(2);
+			Double[] m = new Double[]{
+				doubles[TabMapper.COLS.indexOf(TabMapper.M)],
+				doubles[TabMapper.COLS.indexOf(TabMapper.M_OA)],
+				doubles[TabMapper.COLS.indexOf(TabMapper.M_A)]
+			};
+			bestM.accumulate(m[0]);
+			return m;
+		});
+
+		int best = -1;
+		for (int i = 0; i < ms.size(); i++) {
+			if (ms.get(i) != null && (best == -1 || isBetter(ms.get(i), ms.get(best)))) {
+				best = i;
+			}
+		}
+		return Arrays.asList(new Object[]{best, ms, mappings.get(best)});
+	}
+
+
+	/**
+	 * Returns the highest m a mapping with the given mismatches so far can reach, i.e., their
+	 * m (see <code>TabMapper.getM()</code>). The mismatches only grow and, if ornamentation
+	 * is not included, the number of notes they are counted against only shrinks.
+	 *
+	 * @param numNotes The number of notes in the tablature.
+	 * @param mismatchInds
+	 * @param includeOrnamentation
+	 * @return
+	 */
+	// TESTED
+	static double getMaxM(int numNotes, List<List<Integer>> mismatchInds,
+		boolean includeOrnamentation) {
+		return TabMapper.getM(numNotes, mismatchInds, includeOrnamentation);
+	}
+
+
+	// Compares m, then m_oa, then m_a
+	private static boolean isBetter(Double[] m1, Double[] m2) {
+		for (int i = 0; i < m1.length; i++) {
+			int c = Double.compare(m1[i], m2[i]);
+			if (c != 0) {
+				return c > 0;
+			}
+		}
+		return false;
+	}
+
+}
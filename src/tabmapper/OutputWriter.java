@@ -0,0 +1,290 @@
+package tabmapper;
+
+import java.io.File;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes text files on a dedicated I/O thread, so that mapping can continue while the output
+ * of previous pieces is stored. At most <code>capacity</code> files can be waiting to be
+ * written; beyond that, {@link #write} blocks until the I/O thread has caught up. Exports
+ * that make output files themselves (e.g., the MIDI and MEI export of a piece) are run on a
+ * dedicated export thread, one at a time (see {@link #export}); at most <code>capacity</code>
+ * exports can be waiting or running, beyond that, {@link #export} blocks.
+ *
+ * Each file or export belongs to a piece (or to the run as a whole, see {@link #RUN});
+ * whether all files of a piece have been written, and which could not be, can be checked
+ * with {@link #awaitPiece}.
+ */
+final class OutputWriter {
+	static final int RUN = -1;
+	static final int DEFAULT_CAPACITY = 64;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final Task END = new Task(null, null);
+
+	/**
+	 * Content that is written directly to a file's <code>Writer</code>, on the I/O thread.
+	 */
+	interface Content {
+		void writeTo(Writer w) throws IOException;
+	}
+
+	/**
+	 * An export, run on the export thread.
+	 */
+	interface Export {
+		void run() throws IOException;
+	}
+
+	private final BlockingQueue<Task> queue;
+	private final Map<Integer, List<CompletableFuture<Void>>> writesPerPiece =
+		new ConcurrentHashMap<>();
+	private final Thread thread;
+	private final ExecutorService exporter;
+	// Bounds the exports waiting or running, each of which holds on to the piece it exports
+	private final Semaphore exportSlots;
+
+
+	OutputWriter(int capacity) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.thread = new Thread(this::run, "tabmapper-writer");
+		// Pending writes are awaited explicitly (see close()), so that the thread does not
+		// keep the JVM alive after an error
+		thread.setDaemon(true);
+		thread.start();
+		this.exportSlots = new Semaphore(capacity);
+		this.exporter = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "tabmapper-export");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+
+	/**
+	 * Queues the given content to be written to the given file. Blocks if the queue is full.
+	 *
+	 * @param piece The index of the piece the file belongs to, or {@link #RUN}.
+	 * @param file
+	 * @param content
+	 * @return A future that completes when the file has been written.
+	 */
+	CompletableFuture<Void> write(int piece, File file, String content) {
+		return write(piece, file, w -> w.write(content));
+	}
+
+
+	/**
+	 * Queues the given content to be written to the given file. Blocks if the queue is full.
+	 * The content must not change until it has been written.
+	 *
+	 * @param piece The index of the piece the file belongs to, or {@link #RUN}.
+	 * @param file
+	 * @param content
+	 * @return A future that completes when the file has been written.
+	 */
+	CompletableFuture<Void> write(int piece, File file, Content content) {
+		Task t = new Task(file, content);
+		List<CompletableFuture<Void>> writes = 
+			writesPerPiece.computeIfAbsent(piece, k -> new ArrayList<>());
+		synchronized (writes) {
+			writes.add(t.done);
+		}
+		try {
+			queue.put(t);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			t.done.completeExceptionally(e);
+		}
+		return t.done;
+	}
+
+
+	/**
+	 * Writes the given content to the given file on the calling thread, so that content that
+	 * is made while it is written (e.g., the mapping CSV of a streamed mapping, see
+	 * {@link StreamingMapper}) need not be kept until the I/O thread gets to it. An
+	 * <code>IOException</code> is recorded for the piece, as with {@link #write}; any other
+	 * exception is recorded and thrown.
+	 *
+	 * @param piece The index of the piece the file belongs to, or {@link #RUN}.
+	 * @param file
+	 * @param content
+	 * @return A future that is complete, exceptionally if the file could not be written.
+	 */
+	CompletableFuture<Void> stream(int piece, File file, Content content) {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		List<CompletableFuture<Void>> writes = 
+			writesPerPiece.computeIfAbsent(piece, k -> new ArrayList<>());
+		synchronized (writes) {
+			writes.add(done);
+		}
+		try {
+			store(file, content);
+			done.complete(null);
+		} catch (IOException e) {
+			done.completeExceptionally(e);
+		} catch (Throwable e) {
+			done.completeExceptionally(e);
+			throw e;
+		}
+		return done;
+	}
+
+
+	/**
+	 * Queues the given export to be run on the export thread. Blocks if the maximum number of
+	 * exports is waiting or running. The export must store its files itself (e.g., with
+	 * {@link #store}), and not queue them with {@link #write}.
+	 *
+	 * @param piece The index of the piece the export belongs to, or {@link #RUN}.
+	 * @param export
+	 * @return A future that completes when the export has been run.
+	 */
+	CompletableFuture<Void> export(int piece, Export export) {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		List<CompletableFuture<Void>> writes = 
+			writesPerPiece.computeIfAbsent(piece, k -> new ArrayList<>());
+		synchronized (writes) {
+			writes.add(done);
+		}
+		try {
+			exportSlots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			done.completeExceptionally(e);
+			return done;
+		}
+		exporter.execute(() -> {
+			try {
+				export.run();
+				done.complete(null);
+			} catch (Throwable e) {
+				done.completeExceptionally(e);
+			} finally {
+				exportSlots.release();
+			}
+		});
+		return done;
+	}
+
+
+	/**
+	 * Waits until all files queued for the given piece have been written. The piece is then
+	 * forgotten, so that a long-running writer does not keep the futures of all pieces it
+	 * has written.
+	 *
+	 * @param piece
+	 * @return The errors that occurred while writing the piece's files (empty if all files
+	 *         have been written).
+	 */
+	List<Throwable> awaitPiece(int piece) {
+		List<CompletableFuture<Void>> writes = writesPerPiece.remove(piece);
+		List<Throwable> errors = new ArrayList<>();
+		if (writes == null) {
+			return errors;
+		}
+		List<CompletableFuture<Void>> copy;
+		synchronized (writes) {
+			copy = new ArrayList<>(writes);
+		}
+		for (CompletableFuture<Void> f : copy) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				errors.add(e);
+				break;
+			} catch (ExecutionException e) {
+				errors.add(e.getCause());
+			}
+		}
+		return errors;
+	}
+
+
+	/**
+	 * Runs all queued exports, writes all queued files, and stops the export and I/O threads.
+	 */
+	void close() {
+		try {
+			exporter.shutdown();
+			exporter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			queue.put(END);
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	private void run() {
+		while (true) {
+			Task t;
+			try {
+				t = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (t == END) {
+				return;
+			}
+			try {
+				store(t.file, t.content);
+				t.done.complete(null);
+			} catch (Throwable e) {
+				t.done.completeExceptionally(e);
+			}
+		}
+	}
+
+
+	/**
+	 * Writes the given content, in the platform's default charset (as does
+	 * <code>ToolBox.storeTextFile()</code>), to the given file, replacing the file if it
+	 * exists.
+	 *
+	 * @param file
+	 * @param content
+	 * @throws IOException
+	 */
+	static void store(File file, Content content) throws IOException {
+		try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			Writer w = new BufferedWriter(Channels.newWriter(fc, Charset.defaultCharset().newEncoder(), 
+			BUFFER_SIZE))) {
+			content.writeTo(w);
+		}
+	}
+
+
+	private static final class Task {
+		final File file;
+		final Content content;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Task(File file, Content content) {
+			this.file = file;
+			this.content = content;
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+package tabmapper;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import tools.music.PitchKeyTools;
+
+/**
+ * The spelling of all MIDI pitches in a key, as given by <code>PitchKeyTools.spellPitch()</code>,
+ * together with their octave.
+ *
+ * The spellings are cached per key (i.e., key signature and mode). A key is spelled the first
+ * time it is asked for; the cache is lock-free and can be shared by all mapping threads.
+ */
+final class PitchSpellingCache {
+	private static final int MAX_NUM_ACCIDENTALS = 7;
+	private static final int NUM_MODES = 2;
+	private static final int NUM_PITCHES = 128;
+
+	private static final AtomicReferenceArray<PitchSpellingCache> CACHE =
+		new AtomicReferenceArray<>((2*MAX_NUM_ACCIDENTALS + 1) * NUM_MODES);
+
+	private final int keySig;
+	private final List<Object> grids;
+	private final String[] pitchNames;
+	// Pitches with the same pitch name have the same pitchNameId
+	private final int[] pitchNameIds;
+	private final int[] octaves;
+
+
+	private PitchSpellingCache(int keySig, int mode) {
+		this.keySig = keySig;
+		this.grids = PitchKeyTools.createGrids(keySig, mode);
+		this.pitchNames = new String[NUM_PITCHES];
+		this.pitchNameIds = new int[NUM_PITCHES];
+		this.octaves = new int[NUM_PITCHES];
+		Map<String, Integer> ids = new HashMap<>();
+		for (int p = 0; p < NUM_PITCHES; p++) {
+			// Pitches that cannot be spelled are left null, and spelled (and fail) only when 
+			// asked for, as before
+			try {
+				pitchNames[p] = spell(p);
+				pitchNameIds[p] = ids.computeIfAbsent(pitchNames[p], k -> ids.size());
+			} catch (RuntimeException e) {
+				pitchNames[p] = null;
+			}
+			octaves[p] = PitchKeyTools.getOctave(p);
+		}
+	}
+
+
+	/**
+	 * Returns the spellings for the given key.
+	 *
+	 * @param keySig The number of flats (<0) or sharps (>0).
+	 * @param mode Major (0) or minor (1).
+	 * @return
+	 */
+	static PitchSpellingCache forKey(int keySig, int mode) {
+		if (Math.abs(keySig) > MAX_NUM_ACCIDENTALS || mode < 0 || mode >= NUM_MODES) {
+			return new PitchSpellingCache(keySig, mode);
+		}
+		int ind = getIndex(keySig, mode);
+		PitchSpellingCache spelling = CACHE.get(ind);
+		if (spelling == null) {
+			// Two threads may spell the same key; only the first result is kept
+			CACHE.compareAndSet(ind, null, new PitchSpellingCache(keySig, mode));
+			spelling = CACHE.get(ind);
+		}
+		return spelling;
+	}
+
+
+	/**
+	 * Returns the pitch name (element 0 of the <code>String[]</code> returned by
+	 * <code>PitchKeyTools.spellPitch()</code>) of the given pitch.
+	 *
+	 * @param pitch
+	 * @return
+	 */
+	String getPitchName(int pitch) {
+		return isSpelled(pitch) ? pitchNames[pitch] : spell(pitch);
+	}
+
+
+	/**
+	 * Returns the octave of the given pitch, as given by <code>PitchKeyTools.getOctave()</code>.
+	 *
+	 * @param pitch
+	 * @return
+	 */
+	int getOctave(int pitch) {
+		return isInRange(pitch) ? octaves[pitch] : PitchKeyTools.getOctave(pitch);
+	}
+
+
+	/**
+	 * Checks whether the given pitches are ficta variations of each other, i.e., whether they
+	 * are different, but have the same pitch name and octave (Bb vs. B; F# vs. F; etc.).
+	 *
+	 * @param pitch
+	 * @param otherPitch
+	 * @return
+	 */
+	boolean isFicta(int pitch, int otherPitch) {
+		return isFicta(pitch, otherPitch, null);
+	}
+
+
+	/**
+	 * As {@link #isFicta(int, int)}, counting the lookup as a
+	 * <code>SPELLING_CACHE_HITS</code> of the given context's piece if it is answered from the
+	 * cached spellings.
+	 *
+	 * @param pitch
+	 * @param otherPitch
+	 * @param ctx Can be <code>null</code>.
+	 * @return
+	 */
+	boolean isFicta(int pitch, int otherPitch, MappingContext ctx) {
+		if (pitch == otherPitch) {
+			return false;
+		}
+		if (isSpelled(pitch) && isSpelled(otherPitch)) {
+			if (ctx != null) {
+				ctx.count(MappingMetrics.Counter.SPELLING_CACHE_HITS, 1);
+			}
+			return pitchNameIds[pitch] == pitchNameIds[otherPitch] &&
+				octaves[pitch] == octaves[otherPitch];
+		}
+		return getPitchName(pitch).equals(getPitchName(otherPitch)) &&
+			getOctave(pitch) == getOctave(otherPitch);
+	}
+
+
+	private String spell(int pitch) {
+		return ((String[]) PitchKeyTools.spellPitch(pitch, keySig, grids, null, -1).get(0))[0];
+	}
+
+
+	private static int getIndex(int keySig, int mode) {
+		return (keySig + MAX_NUM_ACCIDENTALS) * NUM_MODES + mode;
+	}
+
+
+	private static boolean isInRange(int pitch) {
+		return pitch >= 0 && pitch < NUM_PITCHES;
+	}
+
+
+	private boolean isSpelled(int pitch) {
+		return isInRange(pitch) && pitchNames[pitch] != null;
+	}
+
+}
@@ -0,0 +1,264 @@
+package tabmapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import tools.ToolBox;
+
+/**
+ * An on-disk cache of mapping results, kept next to the {@link InputCache}. The key of a
+ * result is the hash of the contents of the piece's tablature and MIDI files and of the
+ * options it was mapped with; a piece whose input and options have not changed since it
+ * was last mapped does not need to be mapped and exported again.
+ *
+ * As the output files of a piece are overwritten whenever it is mapped, the key of the
+ * last result stored for each output name is kept too (see {@link #isLastKey}); a cached
+ * result is only valid for the output files on disk if its key is that key, and if the
+ * files are those stored with it (see {@link #getOutputKey}). A result is to be stored
+ * only once all its output files have been.
+ *
+ * Pieces can be excluded from the cache by name (see {@link #isInvalidated}), so that
+ * they are mapped again and their results replaced.
+ */
+final class ResultCache {
+	static final String ALL = "all";
+	private static final String EXT = ".result";
+	private static final String LAST_KEY_EXT = ".last";
+	// Part of all keys; to be incremented when the format of the results changes
+	private static final int VERSION = 1;
+	// The key of the code that makes the results (see getCodeKey()); is computed once
+	private static volatile String codeKey;
+
+	private final File dir;
+	private final Set<String> invalidated;
+
+
+	/**
+	 * The results of mapping a piece.
+	 */
+	static final class Result implements Serializable {
+		private static final long serialVersionUID = 2L;
+		final List<List<Double>> voiceLabels;
+		final List<List<Integer>> mismatchInds;
+		final MappingRecords records;
+		// The ornaments CSV, or null; is set after the exports
+		List<String> csvOrn;
+		// The key of the output files; is set when the result is stored
+		String outputKey;
+
+		/**
+		 * Makes a result. The lists given are copied, so that they can be changed afterwards.
+		 *
+		 * @param voiceLabels
+		 * @param mismatchInds
+		 * @param records
+		 */
+		Result(List<List<Double>> voiceLabels, List<List<Integer>> mismatchInds,
+			MappingRecords records) {
+			this.voiceLabels = new ArrayList<>(voiceLabels);
+			this.mismatchInds = new ArrayList<>();
+			mismatchInds.forEach(l -> this.mismatchInds.add(l == null ? null : new ArrayList<>(l)));
+			this.records = records;
+		}
+	}
+
+
+	/**
+	 * @param dir
+	 * @param invalidated The names of the pieces (with or without extension) whose cached
+	 *        results are not used, or {@link #ALL}.
+	 */
+	ResultCache(File dir, Set<String> invalidated) {
+		this.dir = dir;
+		this.invalidated = invalidated;
+	}
+
+
+	/**
+	 * Checks whether the cached results of the piece with the given name must not be used.
+	 *
+	 * @param tabName
+	 * @return
+	 */
+	boolean isInvalidated(String tabName) {
+		return invalidated.contains(ALL) || invalidated.contains(tabName) ||
+			invalidated.contains(ToolBox.splitExt(tabName)[0]);
+	}
+
+
+	/**
+	 * Returns the key of the given piece and options. It includes the version of the cache
+	 * and the key of the code (see {@link #getCodeKey}), so that results made by other code
+	 * are not used.
+	 *
+	 * @param tabFile
+	 * @param midiFile
+	 * @param includeOrn
+	 * @param completeDurations
+	 * @param connection
+	 * @param mappingOnly
+	 * @param cliOptsVals
+	 * @return
+	 * @throws IOException
+	 */
+	static String getKey(File tabFile, File midiFile, boolean includeOrn,
+		boolean completeDurations, TabMapper.Connection connection, boolean mappingOnly,
+		Map<String, String> cliOptsVals) throws IOException {
+		return InputCache.getKey(Arrays.asList(
+			EXT, String.valueOf(VERSION), 
+			getCodeKey(),
+			String.valueOf(includeOrn), String.valueOf(completeDurations),
+			String.valueOf(connection), String.valueOf(mappingOnly),
+			String.valueOf(cliOptsVals)), tabFile, midiFile
+		);
+	}
+
+
+	/**
+	 * Returns the key of the code that makes the results, i.e., the hash of the class files of
+	 * this package (or of the jar file it is loaded from). If the code cannot be read, a key
+	 * that is new for each run is returned, so that only results of the same run are used.
+	 *
+	 * @return
+	 */
+	static String getCodeKey() {
+		String key = codeKey;
+		if (key == null) {
+			try {
+				URL location = ResultCache.class.getProtectionDomain().getCodeSource().getLocation();
+				File codeFile = new File(location.toURI());
+				File[] classFiles;
+				if (codeFile.isDirectory()) {
+					String pkg = ResultCache.class.getPackage().getName();
+					classFiles = new File(codeFile, pkg.replace('.', File.separatorChar)).listFiles(
+						(d, name) -> name.endsWith(".class")
+					);
+					Arrays.sort(classFiles);
+				}
+				else {
+					classFiles = new File[]{codeFile};
+				}
+				key = InputCache.getKey(classFiles);
+			} catch (IOException | URISyntaxException | RuntimeException e) {
+				System.err.println("could not read the code of the mapping (" + e + "); " + 
+					"cached results of earlier runs are not used");
+				key = UUID.randomUUID().toString();
+			}
+			codeKey = key;
+		}
+		return key;
+	}
+
+
+	/**
+	 * Returns the key of the given output files of a piece, i.e., the hash of the contents of
+	 * those that are not rewritten when its cached result is used (all but the CSV files).
+	 *
+	 * @param outputFiles
+	 * @return The key, or <code>null</code> if any of the files is missing.
+	 * @throws IOException
+	 */
+	static String getOutputKey(List<File> outputFiles) throws IOException {
+		List<File> files = new ArrayList<>();
+		for (File f : outputFiles) {
+			if (!f.getName().endsWith(".csv")) {
+				if (!f.exists()) {
+					return null;
+				}
+				files.add(f);
+			}
+		}
+		return InputCache.getKey(files.toArray(new File[0]));
+	}
+
+
+	/**
+	 * Returns the cached result with the given key.
+	 *
+	 * @param key
+	 * @return The result, or <code>null</code> if it is not in the cache or cannot be read.
+	 */
+	Result get(String key) {
+		File f = new File(dir, key + EXT);
+		if (!f.exists()) {
+			return null;
+		}
+		try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(f.toPath()))) {
+			return (Result) in.readObject();
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			System.err.println("could not read " + f + " (" + e + ")");
+			return null;
+		}
+	}
+
+
+	/**
+	 * Checks whether the given key is that of the last result stored for the given output
+	 * name.
+	 *
+	 * @param storeName
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	boolean isLastKey(String storeName, String key) throws IOException {
+		File f = new File(dir, storeName + LAST_KEY_EXT);
+		return f.exists() &&
+			new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).equals(key);
+	}
+
+
+	/**
+	 * Forgets the last result stored for the given output name; to be called before its
+	 * output files are overwritten.
+	 *
+	 * @param storeName
+	 * @throws IOException
+	 */
+	void clearLastKey(String storeName) throws IOException {
+		Files.deleteIfExists(new File(dir, storeName + LAST_KEY_EXT).toPath());
+	}
+
+
+	/**
+	 * Adds the given result to the cache under the given key, together with the key of the
+	 * given output files, and makes it the last result stored for the given output name.
+	 *
+	 * @param storeName
+	 * @param key
+	 * @param r
+	 * @param outputFiles The output files of the result, which must all have been stored.
+	 * @throws IOException
+	 */
+	void put(String storeName, String key, Result r, List<File> outputFiles) throws IOException {
+		r.outputKey = getOutputKey(outputFiles);
+		if (r.outputKey == null) {
+			throw new IOException("missing output files");
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(r);
+		}
+		InputCache.store(dir, new File(dir, key + EXT), ByteBuffer.wrap(bytes.toByteArray()));
+		InputCache.store(
+			dir, new File(dir, storeName + LAST_KEY_EXT),
+			ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8))
+		);
+	}
+
+}
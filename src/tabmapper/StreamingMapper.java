@@ -0,0 +1,215 @@
+package tabmapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import de.uos.fmt.musitech.data.score.NotationSystem;
+import de.uos.fmt.musitech.data.score.NotationVoice;
+import de.uos.fmt.musitech.data.structure.Note;
+import de.uos.fmt.musitech.utility.math.Rational;
+import external.Tablature;
+import external.Transcription;
+import tools.ToolBox;
+
+/**
+ * Maps a tablature onto a model without making the grid and mask of the whole piece and
+ * without collecting the results, so that very long tablatures (e.g., all movements of a
+ * mass) can be mapped in bounded memory. The chords of the tablature and those of the model
+ * are read from two onset-ordered iterators that are merged on the fly; the results are
+ * passed on to a {@link ChordMapper.Sink} as soon as they are known.
+ *
+ * Gives the same voice labels, mapping CSV rows, and mismatch indices as
+ * <code>TabMapper.map()</code>. Is used in mapping-only mode, where the rows are written to
+ * the mapping CSV as they are made (see <code>TabMapper.mapPiece()</code>).
+ */
+final class StreamingMapper {
+
+	/**
+	 * A chord in the tablature.
+	 */
+	static final class TabChord {
+		final int onset; // in ticks
+		final List<Integer> pitches; // low-high
+		final List<Integer> indices;
+		final int dur; // the minimum duration of the lowest note, in ticks
+
+		TabChord(int onset, List<Integer> pitches, List<Integer> indices, int dur) {
+			this.onset = onset;
+			this.pitches = pitches;
+			this.indices = indices;
+			this.dur = dur;
+		}
+	}
+
+
+	/**
+	 * A chord in the model, i.e., the notes at an onset time.
+	 */
+	static final class ModelChord {
+		final Rational onset;
+		// The onset, rounded to the closest multiple of 1/TabMapper.SMALLEST_DUR if necessary,
+		// in ticks
+		final int ticks;
+		final List<Integer> pitches; // per voice (low-high); null if the voice has no note
+
+		ModelChord(Rational onset, int ticks, List<Integer> pitches) {
+			this.onset = onset;
+			this.ticks = ticks;
+			this.pitches = pitches;
+		}
+	}
+
+
+	/**
+	 * Maps the given tablature onto the given model.
+	 *
+	 * @param trans
+	 * @param tab
+	 * @param ctx
+	 * @param includeOrnamentation
+	 * @param connection
+	 * @param sink
+	 */
+	static void map(Transcription trans, Tablature tab, MappingContext ctx,
+		boolean includeOrnamentation, TabMapper.Connection connection, ChordMapper.Sink sink) {
+		map(
+			tabChords(tab.getBasicTabSymbolProperties()), modelChords(trans),
+			new ChordMapper(trans, tab, ctx, includeOrnamentation, connection, sink),
+			ctx.getNumVoices()
+		);
+	}
+
+
+	/**
+	 * Maps the given tablature chords onto the given model chords. As in the grid made by
+	 * <code>TabMapper.makeGridAndMask()</code>, a tablature chord goes with the first model
+	 * chord whose rounded onset is the same as its onset.
+	 *
+	 * @param tabChords Ordered by onset.
+	 * @param modelChords Ordered by onset.
+	 * @param chordMapper
+	 * @param numVoices
+	 */
+	static void map(Iterator<TabChord> tabChords, Iterator<ModelChord> modelChords,
+		ChordMapper chordMapper, int numVoices) {
+		ModelChord model = modelChords.hasNext() ? modelChords.next() : null;
+		int row = 0;
+		while (tabChords.hasNext()) {
+			TabChord tc = tabChords.next();
+			// Skip the model chords before the tablature chord (these include any further
+			// model chords rounded to the onset of the previous tablature chord)
+			while (model != null && model.ticks < tc.onset) {
+				model = modelChords.hasNext() ? modelChords.next() : null;
+			}
+			List<Integer> pitchesModel = model != null && model.ticks == tc.onset ?
+				new ArrayList<>(model.pitches) :
+				new ArrayList<>(Collections.nCopies(numVoices, (Integer) null));
+			chordMapper.map(row, tc.onset, tc.pitches, tc.indices, tc.dur, pitchesModel);
+			row++;
+		}
+		chordMapper.finish();
+	}
+
+
+	/**
+	 * Returns the chords in the given basic tab symbol properties, ordered by onset.
+	 *
+	 * @param btp
+	 * @return
+	 */
+	static Iterator<TabChord> tabChords(Integer[][] btp) {
+		return new Iterator<TabChord>() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < btp.length;
+			}
+
+			@Override
+			public TabChord next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int first = next;
+				int chordSize = btp[first][Tablature.CHORD_SIZE_AS_NUM_ONSETS];
+				List<Integer> pitches = new ArrayList<>(chordSize);
+				List<Integer> indices = new ArrayList<>(chordSize);
+				for (int j = first; j < first + chordSize; j++) {
+					pitches.add(btp[j][Tablature.PITCH]);
+					indices.add(j);
+				}
+				next += chordSize;
+				return new TabChord(
+					btp[first][Tablature.ONSET_TIME], pitches, indices,
+					btp[first][Tablature.MIN_DURATION]
+				);
+			}
+		};
+	}
+
+
+	/**
+	 * Returns the chords in the given model, ordered by onset. The voices are merged through
+	 * a cursor per voice.
+	 *
+	 * @param trans
+	 * @return
+	 */
+	static Iterator<ModelChord> modelChords(Transcription trans) {
+		NotationSystem score = trans.getScorePiece().getScore();
+		int numVoices = score.size();
+		NotationVoice[] voices = new NotationVoice[numVoices];
+		for (int i = 0; i < numVoices; i++) {
+			voices[i] = score.get(i).get(0);
+		}
+		int[] cursors = new int[numVoices];
+		Rational gridValue = new Rational(1, TabMapper.SMALLEST_DUR);
+		return new Iterator<ModelChord>() {
+			@Override
+			public boolean hasNext() {
+				for (int i = 0; i < numVoices; i++) {
+					if (cursors[i] < voices[i].size()) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			@Override
+			public ModelChord next() {
+				Rational onset = null;
+				for (int i = 0; i < numVoices; i++) {
+					if (cursors[i] < voices[i].size()) {
+						Rational curr = voices[i].get(cursors[i]).get(0).getMetricTime();
+						if (onset == null || curr.isLess(onset)) {
+							onset = curr;
+						}
+					}
+				}
+				if (onset == null) {
+					throw new NoSuchElementException();
+				}
+				List<Integer> pitches = new ArrayList<>(Collections.nCopies(numVoices, (Integer) null));
+				for (int i = 0; i < numVoices; i++) {
+					if (cursors[i] < voices[i].size()) {
+						Note n = voices[i].get(cursors[i]).get(0);
+						if (!onset.isLess(n.getMetricTime())) {
+							pitches.set((numVoices-1) - i, n.getMidiPitch());
+							cursors[i]++;
+						}
+					}
+				}
+				// If the onset is not a multiple of the grid value, it is an imprecise triplet
+				// onset that must rounded to the nearest triplet value
+				Rational rounded = ToolBox.isMultiple(onset, gridValue) ? onset :
+					TabMapper.findClosestMultiple(onset, gridValue);
+				return new ModelChord(onset, TabMapper.toTicks(rounded, TabMapper.SMALLEST_DUR), pitches);
+			}
+		};
+	}
+
+}
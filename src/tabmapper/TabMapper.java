@@ -2,6 +2,7 @@ package tabmapper;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -9,9 +10,22 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -43,12 +57,14 @@ import tools.music.TimeMeterTools;
 import tools.text.StringTools;
 
 public class TabMapper {
-	private static final int BAR_IND = 0;
-	private static final int ONSET_IND = 1;
-	private static final int PITCHES_IND = 2;
 	public static final int SMALLEST_DUR = Tablature.SRV_DEN;
 	private static final int NUM_COURSES = 6;
-	private static enum Connection {LEFT, RIGHT};
+	// The default minimum number of grid rows for which the initial mapping is done in 
+	// parallel (see PARALLEL_MATCHING_MIN_ROWS_PROP)
+	private static final int PARALLEL_MATCHING_MIN_ROWS = 256;
+	// The minimum number of grid rows per segment when a piece is mapped in segments
+	private static final int PARALLEL_SEGMENT_MIN_ROWS = 1024;
+	static enum Connection {LEFT, RIGHT};
 	private static final String NUM_NOTES_MODEL = "N_model";
 	private static final String NUM_NOTES_INTAB = "N_intab";
 	private static final String NUM_MISMATCHES = "M";
@@ -56,11 +72,11 @@ public class TabMapper {
 	private static final String NUM_MISMATCHES_REP = "M_r";
 	private static final String NUM_MISMATCHES_FIC = "M_f";
 	private static final String NUM_MISMATCHES_ADA = "M_a";
-	private static final String M = "m";
-	private static final String M_OA = "m_oa";
-	private static final String M_A = "m_a"; 
+	static final String M = "m";
+	static final String M_OA = "m_oa";
+	static final String M_A = "m_a"; 
 	private static final String P_O = "p_o";
-	private static final List<String> COLS = Arrays.asList(
+	static final List<String> COLS = Arrays.asList(
 		"piece", // String
 		NUM_NOTES_MODEL, NUM_NOTES_INTAB, NUM_MISMATCHES, NUM_MISMATCHES_ORN, 
 		NUM_MISMATCHES_REP, NUM_MISMATCHES_FIC, NUM_MISMATCHES_ADA, // int
@@ -69,6 +85,21 @@ public class TabMapper {
 	private static final String TAB_DIR = "in/tab/";
 	private static final String MIDI_DIR = "in/MIDI/";
 	private static final String OUT_DIR = "out/";
+	private static final String WORKERS_PROP = "tabmapper.workers"; // number of pieces mapped concurrently
+	private static final String PROFILE_PROP = "tabmapper.profile"; // store per-piece timings and counts
+	private static final String STORE_MIDI_PROP = "tabmapper.storeMIDI"; // store mapped MIDI files (default true)
+	private static final String INCREMENTAL_PROP = "tabmapper.incremental"; // reuse the previous mapping of each piece
+	private static final String INPUT_CACHE_PROP = "tabmapper.inputCache"; // cache parsed input and results in out/cache/ (default false)
+	private static final String INVALIDATE_PROP = "tabmapper.invalidate"; // comma-separated pieces (or "all") whose cached results are not used
+	private static final String SERVICE_PROP = "tabmapper.service"; // port to serve mapping requests on (see MappingService)
+	private static final String MAPPING_ONLY_PROP = "tabmapper.mappingOnly"; // store only the mapping CSVs (no MIDI, MEI, ornaments, LaTeX)
+	private static final String VARIANTS_PROP = "tabmapper.variants"; // map all variants (ornamentation y/n, connection LEFT/RIGHT) in one pass; output per variant in out/<variant>/
+	static final String PARALLEL_MATCHING_MIN_ROWS_PROP = "tabmapper.parallelMatchingMinRows"; // minimum number of grid rows for which the initial mapping is done in parallel (default 256)
+	private static final Object EXPORT_LOCK = new Object();
+	private static final Object PYTHON_LOCK = new Object();
+	// Set in main(); run by ensurePython() when Python is first needed
+	private static Runnable pythonSetup = () -> {};
+	private static boolean pythonSet = false;
 
 	private static final List<Integer> MAJOR = Arrays.asList(new Integer[]{0, 2, 4, 5, 7, 9, 11});
 	private static final List<Integer> MINOR = Arrays.asList(new Integer[]{0, 2, 3, 5, 7, 8, 10});
@@ -172,7 +203,10 @@ public class TabMapper {
 	public static void main(String[] args) {
 		boolean dev = args.length == 0 ? true : args[CLInterface.DEV_IND].equals(String.valueOf(true));
 		Map<String, String> paths = CLInterface.getPaths(dev);
-		PythonInterface.setPython(dev, paths.get("VENV_PATH"));
+		// Python is only set up once it is needed (for converting non-.tbp input or for 
+		// exporting MEI), so that runs that need neither start faster
+		pythonSetup = () -> PythonInterface.setPython(dev, paths.get("VENV_PATH"));
+		boolean mappingOnly = Boolean.getBoolean(MAPPING_ONLY_PROP);
 
 		// Paths
 		String tmp = paths.get("TABMAPPER_PATH");
@@ -187,6 +221,9 @@ public class TabMapper {
 
 		Map<String, String> cliOptsVals = null;
 		List<String[]> piecesArr = new ArrayList<>();
+		// The candidate models per piece for which the model is to be selected (see 
+		// ModelSelector)
+		Map<Integer, List<String>> candidateModels = new LinkedHashMap<>();
 		if (args.length > 0) {
 			// Parse CLI args and set variables
 			List<Object> parsed = CLInterface.parseCLIArgs(
@@ -198,9 +235,16 @@ public class TabMapper {
 			includeOrn = cliOptsVals.get(CLInterface.ORNAMENTATION).equals("y") ? true : false;
 			completeDurations = cliOptsVals.get(CLInterface.DURATION).equals("y") ? true : false;
 			if (pieces.get(0).contains(",")) {
-				pieces.forEach(p -> piecesArr.add(
-					new String[]{p.split(",")[0], p.split(",")[1], null}
-				));
+				// A tab followed by more than one model is mapped onto the best of them
+				for (String p : pieces) {
+					String[] split = p.split(",");
+					if (split.length > 2) {
+						candidateModels.put(
+							piecesArr.size(), Arrays.asList(split).subList(1, split.length)
+						);
+					}
+					piecesArr.add(new String[]{split[0], split[1], null});
+				}
 			}
 			else {
 				pieces.forEach(p -> piecesArr.add(
@@ -223,6 +267,177 @@ public class TabMapper {
 		List<String> piecesNoExt = StringTools.removeExtensions(ToolBox.getItemsAtIndex(piecesArr, 0));
 
 		// Map pieces; add to tables, store output files
+		// The pieces are mapped independently (concurrently if more than one worker is set); 
+		// their results are added to the tables in input order
+		int numWorkers = Math.max(1, Integer.getInteger(WORKERS_PROP, 1));
+		MappingMetrics metrics = Boolean.getBoolean(PROFILE_PROP) ? new MappingProfile() : 
+			MappingMetrics.NONE;
+		// Output files are stored on a separate thread while the next pieces are mapped
+		OutputWriter writer = new OutputWriter(OutputWriter.DEFAULT_CAPACITY);
+		// Parsed input and mapping results are cached, so that unchanged pieces are not 
+		// mapped again
+		InputCache inputCache = null;
+		ResultCache resultCache = null;
+		if (Boolean.getBoolean(INPUT_CACHE_PROP)) {
+			File cacheDir = new File(outPath + InputCache.DIR);
+			inputCache = new InputCache(cacheDir);
+			resultCache = new ResultCache(cacheDir, new HashSet<>(
+				Arrays.asList(System.getProperty(INVALIDATE_PROP, "").split(",")))
+			);
+		}
+		Map<String, String> cliOptsValsFinal = cliOptsVals;
+		InputCache inputCacheFinal = inputCache;
+		ResultCache resultCacheFinal = resultCache;
+
+		// In variants mode, all variants are mapped in a single pass; the output files and 
+		// tables of each variant are stored in its own directory
+		List<MappingVariant> variants = Boolean.getBoolean(VARIANTS_PROP) ? MappingVariant.all() : 
+			Collections.singletonList(new MappingVariant(includeOrn, connection));
+		List<String> outPaths = new ArrayList<>();
+		for (MappingVariant variant : variants) {
+			String variantOutPath = outPath;
+			if (variants.size() > 1) {
+				variantOutPath = StringTools.getPathString(Arrays.asList(outPath, variant.getName()));
+				new File(variantOutPath).mkdirs();
+			}
+			outPaths.add(variantOutPath);
+		}
+
+		// Pieces that use the same MIDI file share its model, which is released after the 
+		// last of them is mapped
+		ModelRegistry modelRegistry = new ModelRegistry();
+
+		// In service mode, map the pieces requested instead of those given. A piece is mapped 
+		// as in batch mode; in variants mode, the response is that of the variant requested, 
+		// and the results of all variants are cached
+		Integer servicePort = Integer.getInteger(SERVICE_PROP);
+		if (servicePort != null) {
+			if (cliOptsVals == null) {
+				System.err.println("service mode needs the CLI options the pieces are mapped with");
+				return;
+			}
+			MappingService service = new MappingService(
+				(piece, pieceInd, tabDir, midiDir, orn, dur, conn) -> {
+					Map<String, String> cliOptsValsRequest = new LinkedHashMap<>(cliOptsValsFinal);
+					cliOptsValsRequest.put(CLInterface.ORNAMENTATION, orn ? "y" : "n");
+					cliOptsValsRequest.put(CLInterface.DURATION, dur ? "y" : "n");
+					List<MappingVariant> requestVariants = variants.size() > 1 ? variants : 
+						Collections.singletonList(new MappingVariant(orn, conn));
+					File midiFile = new File(midiDir + piece[1]);
+					modelRegistry.register(midiFile);
+					try {
+						List<List<Object>> results = mapPiece(
+							piece, pieceInd, Arrays.asList(ToolBox.splitExt(piece[0])[0]), 
+							cliOptsValsRequest, paths, tabDir, midiDir, 
+							variants.size() > 1 ? outPaths : Collections.singletonList(outPath), 
+							requestVariants, dur, metrics, writer, inputCacheFinal, 
+							resultCacheFinal, modelRegistry, null
+						);
+						int requested = IntStream.range(0, requestVariants.size())
+							.filter(v -> requestVariants.get(v).includeOrnamentation == orn && 
+								requestVariants.get(v).connection == conn)
+							.findFirst().getAsInt();
+						return Arrays.asList(new Object[]{requested, results});
+					} finally {
+						modelRegistry.release(midiFile);
+					}
+				}, 
+				writer, metrics, inPathTab, inPathMIDI, includeOrn, completeDurations, connection, 
+				numWorkers
+			);
+			try {
+				service.serve(servicePort);
+			} catch (IOException e) {
+				System.err.println("service stopped (" + e + ")");
+			}
+			writer.close();
+			metrics.finish(outPath);
+			return;
+		}
+
+		// The candidate models of a piece are held until it has been registered with the 
+		// model selected, so that that model is not loaded again
+		candidateModels.values().forEach(c -> 
+			c.forEach(m -> modelRegistry.register(new File(inPathMIDI + m)))
+		);
+		// The mapping onto the model selected is kept, so that the piece is not mapped again 
+		// (unless in variants mode, where the other variants are mapped too); each mapping is 
+		// removed, by the worker mapping its piece, once it is used
+		Map<Integer, List<Object>> selectedMappings = new ConcurrentHashMap<>();
+		for (Map.Entry<Integer, List<String>> e : candidateModels.entrySet()) {
+			List<Object> selection = selectModel(
+				piecesArr.get(e.getKey())[0], e.getValue(), paths, inPathTab, inPathMIDI, 
+				includeOrn, connection, inputCacheFinal, modelRegistry, e.getKey(), metrics
+			);
+			piecesArr.get(e.getKey())[1] = (String) selection.get(0);
+			if (variants.size() == 1) {
+				selectedMappings.put(e.getKey(), (List<Object>) selection.get(1));
+			}
+		}
+		for (String[] p : piecesArr) {
+			modelRegistry.register(new File(inPathMIDI + p[1]));
+		}
+		candidateModels.values().forEach(c -> 
+			c.forEach(m -> modelRegistry.release(new File(inPathMIDI + m)))
+		);
+		List<List<List<Object>>> pieceResults = mapPieces(piecesArr.size(), numWorkers, i -> {
+			try {
+				return mapPiece(
+					piecesArr.get(i), i, piecesNoExt, cliOptsValsFinal, paths, inPathTab, 
+					inPathMIDI, outPaths, variants, completeDurations, metrics, writer, 
+					inputCacheFinal, resultCacheFinal, modelRegistry, selectedMappings.remove(i)
+				);
+			} finally {
+				modelRegistry.release(new File(inPathMIDI + piecesArr.get(i)[1]));
+			}
+		});
+
+		// Wait for the output files of all pieces; cache the results of those whose output 
+		// files have all been stored
+		for (int i = 0; i < piecesArr.size(); i++) {
+			List<Throwable> errors = writer.awaitPiece(i);
+			for (Throwable t : errors) {
+				System.err.println(piecesArr.get(i)[2] + " could not store output: " + t);
+			}
+			if (errors.isEmpty()) {
+				pieceResults.get(i).forEach(TabMapper::cacheResult);
+			}
+		}
+
+		for (int v = 0; v < variants.size(); v++) {
+			if (variants.size() > 1) {
+				System.out.println();
+				System.out.println(variants.get(v));
+			}
+			int variantInd = v;
+			storeTables(
+				pieceResults.stream().map(r -> r.get(variantInd)).collect(Collectors.toList()), 
+				piecesArr, outPaths.get(v), variants.get(v).includeOrnamentation, mappingOnly, 
+				writer
+			);
+		}
+		writer.close();
+		for (Throwable t : writer.awaitPiece(OutputWriter.RUN)) {
+			System.err.println("Could not store output: " + t);
+		}
+		metrics.finish(outPath);
+	}
+
+
+	/**
+	 * Adds the results of all pieces to the results tables, prints the results table, and 
+	 * stores the tables of the run (unless in mapping-only mode). The tables are queued on 
+	 * the given writer.
+	 * 
+	 * @param pieceResults The results of each piece, as returned by {@link #mapPiece}.
+	 * @param piecesArr
+	 * @param outPath
+	 * @param includeOrn
+	 * @param mappingOnly
+	 * @param writer
+	 */
+	private static void storeTables(List<List<Object>> pieceResults, List<String[]> piecesArr, 
+		String outPath, boolean includeOrn, boolean mappingOnly, OutputWriter writer) {
 		StringBuffer table = new StringBuffer();
 		table.append(COLS.stream().collect(Collectors.joining("\t", "", "\r\n")));
 		String[][] latexTable = new String[piecesArr.size()+1][COLS.size()];
@@ -235,59 +450,314 @@ public class TabMapper {
 		Arrays.fill(doublesToAvg, 0.0);
 		List<String> uniqueOrns = new ArrayList<>();
 		for (int i = 0; i < piecesArr.size(); i++) {
-			// Make local copy of cliOptsVals so that INPUT values do not get overwritten when this 
-			// method is called in a loop 
-			Map<String, String> cliOptsValsLocal = new LinkedHashMap<>(cliOptsVals);
-			
-			String[] piece = piecesArr.get(i);
-			String tabName = piece[0]; // name of piece, w/ extension. needed for convertToTbp() and ExportMEIFile() (2nd arg) 
-			String tabNameNoExt = ToolBox.splitExt(tabName)[0]; // name of piece, w/o extension. needed for Encoding (only setting name)
-			String storeName = // needed for all files that are stored (.mei, .mid, .csv, .csv); gets an extension
-				Collections.frequency(piecesNoExt, tabNameNoExt) > 1 ? tabName : tabNameNoExt;
-			storeName += completeDurations ? "-dur" : "";
-			String modelName = piece[1];
-			String shortName = "[" + (i+1) + "]";
-			piece[2] = shortName;
-			System.out.println("... mapping " + shortName + " " + tabName + " ...");
-
-			// Make tab; make model transcription
-			String rawEncoding = TabImport.convertToTbp(inPathTab, tabName, paths);
-			Encoding e = new Encoding(rawEncoding, tabNameNoExt, Stage.RULES_CHECKED);
-			Tablature tab = new Tablature(e, false);
+			List<Object> pieceResult = pieceResults.get(i);
+			String shortName = piecesArr.get(i)[2];
+			String tableRow = (String) pieceResult.get(0);
+			Integer[] ints = (Integer[]) pieceResult.get(1);
+			Double[] doubles = (Double[]) pieceResult.get(2);
+			List<String> csvOrn = (List<String>) pieceResult.get(3);
+
+
+			// Update
+			// a. table
+			table.append(tableRow);
+			// b. latexTable
+			if (!mappingOnly) {
+				for (int j = 0; j < ints.length; j++) {
+					latexTable[i][j] = j == 0 ? shortName : 
+						(intInds.contains(j) ? String.valueOf(ints[j]) : ToolBox.formatDouble(doubles[j], 0, 5));	
+				}
+			}
+			// c. lists to average
+			for (int j = 1; j < ints.length; j++) {
+				if (intInds.contains(j)) {
+					intsToAvg[j] += ints[j];
+				}
+				else {
+					doublesToAvg[j] += doubles[j];
+				}
+			}
+			// d. uniqueOrns
+			if (includeOrn && !mappingOnly) {
+				csvOrn.forEach(s -> { 
+					if (!s.startsWith("ornament") && !uniqueOrns.contains(s.substring(0, s.indexOf(",")))) { 
+						uniqueOrns.add(s.substring(0, s.indexOf(","))); 
+					} 
+				});
+			}
+		}
+
+		// Print
+		System.out.println();
+		System.out.println(
+			piecesArr.size() + (piecesArr.size() == 1 ? " piece (" : " pieces (") + 
+			intsToAvg[COLS.indexOf(NUM_NOTES_INTAB)] + " notes) processed"
+		);
+		piecesArr.forEach(p -> System.out.println(p[2] + " " + p[0]));
+		System.out.println();
+		System.out.println(table);
+
+		// Store
+		if (!mappingOnly) {
+			StringBuffer uniqueOrnsSb = new StringBuffer();
+			uniqueOrns.forEach(s -> uniqueOrnsSb.append(s + "\r\n"));
+			writer.write(OutputWriter.RUN, new File(outPath + "ornaments.csv"), uniqueOrnsSb.toString());
+			String fullLatexTable = StringTools.createLaTeXTable(
+				latexTable, intsToAvg, doublesToAvg, intInds, 0, 5, true
+			);
+			writer.write(OutputWriter.RUN, new File(outPath + "LaTeX.txt"), fullLatexTable);
+		}
+	}
+
+
+	/**
+	 * Maps the given piece for each of the given variants and stores the output files 
+	 * (mapping CSV, MIDI, MEI, and, if ornamentation is included, ornaments CSV) of each 
+	 * variant in its own output directory. The CSV files are queued on the given writer. The 
+	 * input is parsed, and the variants not in the result cache are mapped, only once (see 
+	 * {@link #mapVariants}).
+	 * 
+	 * @param piece
+	 * @param pieceInd
+	 * @param piecesNoExt
+	 * @param cliOptsVals
+	 * @param paths
+	 * @param inPathTab
+	 * @param inPathMIDI
+	 * @param outPaths The output directory of each variant.
+	 * @param variants
+	 * @param completeDurations
+	 * @param metrics
+	 * @param writer
+	 * @param inputCache The cache of parsed input, or <code>null</code>.
+	 * @param resultCache The cache of mapping results, or <code>null</code>. Is only used 
+	 *                    together with inputCache.
+	 * @param modelRegistry The registry the model is taken from, or <code>null</code>. If the 
+	 *                      piece is registered with it, the model (and the structures derived 
+	 *                      from it) are shared with the other pieces that use it.
+	 * @param selectedMapping The mapping of the piece onto its model, as made when the model 
+	 *                        was selected (see {@link #selectModel}), or <code>null</code>. 
+	 *                        Is used instead of mapping the piece if there is only one variant 
+	 *                        and the mapping is not incremental.
+	 * @return For each variant, a list containing
+	 * <ul>
+	 * <li>As element 0: the piece's row in the results table.</li>
+	 * <li>As element 1: the piece's int results (see {@link #getPieceResults}).</li>
+	 * <li>As element 2: the piece's double results (see {@link #getPieceResults}).</li>
+	 * <li>As element 3: the ornaments CSV, or <code>null</code> if ornamentation is not included;
+	 *     it is filled in once the piece's output is exported (see {@link OutputWriter#awaitPiece}).</li>
+	 * <li>As element 4: the voice labels, as returned by {@link #map}.</li>
+	 * <li>As element 5: the mismatch indices, as returned by {@link #map}.</li>
+	 * <li>As element 6: the output files.</li>
+	 * <li>As element 7: the task that adds the piece's result to the result cache, or 
+	 *     <code>null</code>; to be run (see {@link #cacheResult}) only once all output files 
+	 *     have been stored.</li>
+	 * </ul>
+	 */
+	private static List<List<Object>> mapPiece(String[] piece, int pieceInd, 
+		List<String> piecesNoExt, Map<String, String> cliOptsVals, Map<String, String> paths, 
+		String inPathTab, String inPathMIDI, List<String> outPaths, 
+		List<MappingVariant> variants, boolean completeDurations, MappingMetrics metrics, 
+		OutputWriter writer, InputCache inputCache, ResultCache resultCache, 
+		ModelRegistry modelRegistry, List<Object> selectedMapping) {
+		// Make local copy of cliOptsVals so that INPUT values do not get overwritten when this 
+		// method is called in a loop 
+		Map<String, String> cliOptsValsLocal = new LinkedHashMap<>(cliOptsVals);
+		
+		String tabName = piece[0]; // name of piece, w/ extension. needed for convertToTbp() and ExportMEIFile() (2nd arg) 
+		String tabNameNoExt = ToolBox.splitExt(tabName)[0]; // name of piece, w/o extension. needed for Encoding (only setting name)
+		String storeName = // needed for all files that are stored (.mei, .mid, .csv, .csv); gets an extension
+			getStoreName(tabName, piecesNoExt, completeDurations);
+		String modelName = piece[1];
+		String shortName = "[" + (pieceInd+1) + "]";
+		piece[2] = shortName;
+		metrics.startPiece(pieceInd, tabName);
+		File tabFile = new File(inPathTab + tabName);
+		File midiFile = new File(inPathMIDI + modelName);
+		boolean storeMIDI = 
+			Boolean.parseBoolean(System.getProperty(STORE_MIDI_PROP, String.valueOf(true)));
+		boolean mappingOnly = Boolean.getBoolean(MAPPING_ONLY_PROP);
+
+		// For each variant: if its output files are still those of a mapping with the same 
+		// input and options, reuse the results
+		List<List<Object>> pieceResults = new ArrayList<>(Collections.nCopies(variants.size(), null));
+		List<String> resultKeys = new ArrayList<>(Collections.nCopies(variants.size(), null));
+		// The variants' output files have the same names, in different directories
+		List<String> cacheNames = new ArrayList<>();
+		for (MappingVariant variant : variants) {
+			cacheNames.add(variants.size() == 1 ? storeName : variant.getName() + "-" + storeName);
+		}
+		List<Integer> toMap = new ArrayList<>();
+		for (int v = 0; v < variants.size(); v++) {
+			MappingVariant variant = variants.get(v);
+			String cacheName = cacheNames.get(v);
+			if (inputCache != null && resultCache != null) {
+				try {
+					String resultKey = ResultCache.getKey(
+						tabFile, midiFile, variant.includeOrnamentation, completeDurations, 
+						variant.connection, mappingOnly, getVariantCliOptsVals(cliOptsVals, variant)
+					);
+					resultKeys.set(v, resultKey);
+					if (!resultCache.isInvalidated(tabName) && resultCache.isLastKey(cacheName, resultKey)) {
+						List<Object> cached = getCachedPieceResults(
+							resultCache.get(resultKey), inputCache.get(tabFile, midiFile), pieceInd, 
+							shortName, outPaths.get(v), storeName, variant.includeOrnamentation, 
+							storeMIDI, mappingOnly, writer
+						);
+						if (cached != null) {
+							pieceResults.set(v, cached);
+							continue;
+						}
+					}
+					resultCache.clearLastKey(cacheName);
+				} catch (IOException ex) {
+					System.err.println(shortName + " could not read result cache (" + ex + ")");
+				}
+			}
+			toMap.add(v);
+		}
+		if (toMap.isEmpty()) {
+			System.out.println("... reusing " + shortName + " " + tabName + " ...");
+			return pieceResults;
+		}
+		System.out.println("... mapping " + shortName + " " + tabName + 
+			(variants.size() == 1 ? "" : " " + toMap.stream().map(v -> variants.get(v).getName())
+			.collect(Collectors.toList())) + " ...");
+
+		// Make tab; make model transcription. The .tbp encoding is taken from the input cache 
+		// if the tab file has not changed
+		String rawEncoding = null;
+		long start = metrics.startTimer();
+		if (inputCache != null) {
+			try {
+				rawEncoding = inputCache.getEncoding(tabFile);
+			} catch (IOException ex) {
+				System.err.println(shortName + " could not read input cache (" + ex + ")");
+			}
+		}
+		boolean encodingCached = rawEncoding != null;
+		if (!encodingCached) {
+			if (!tabName.endsWith(Encoding.TBP_EXT)) {
+				ensurePython();
+			}
+			rawEncoding = TabImport.convertToTbp(inPathTab, tabName, paths);
+		}
+		metrics.stopTimer(pieceInd, MappingMetrics.Stage.CONVERT_TBP, start);
+		start = metrics.startTimer();
+		Encoding e = new Encoding(rawEncoding, tabNameNoExt, Stage.RULES_CHECKED);
+		Tablature tab = new Tablature(e, false);
 //			Tablature tab = new Tablature(new File(inPathTab + tabName + Encoding.TBP_EXT));
-			
-			Transcription model = new Transcription(
-				tab.getMeterInfo(), new File(inPathMIDI + modelName)
+		metrics.stopTimer(pieceInd, MappingMetrics.Stage.MAKE_TAB, start);
+		
+		start = metrics.startTimer();
+		ModelRegistry.Model sharedModel = modelRegistry != null ? 
+			modelRegistry.acquire(midiFile, tab.getMeterInfo(), 
+			() -> new Transcription(tab.getMeterInfo(), midiFile)) : null;
+		Transcription model = sharedModel != null ? sharedModel.trans : 
+			new Transcription(tab.getMeterInfo(), midiFile);
+		metrics.stopTimer(pieceInd, MappingMetrics.Stage.MAKE_MODEL, start);
+		// The parsed input is only read when the results of the piece are reused (see 
+		// getCachedPieceResults()), where it stands in for the tab and the model
+		if (inputCache != null) {
+			try {
+				if (!encodingCached) {
+					inputCache.putEncoding(tabFile, rawEncoding);
+				}
+				inputCache.put(tabFile, midiFile, InputCache.ParsedInput.of(tab, model));
+			} catch (IOException ex) {
+				System.err.println(shortName + " could not update input cache (" + ex + ")");
+			}
+		}
+		MappingContext ctx = 
+			new MappingContext(model.getNumberOfVoices(), pieceInd, metrics, sharedModel);
+		Integer[][] btp = tab.getBasicTabSymbolProperties();
+		Integer[][] bnp = model.getBasicNoteProperties();
+
+		// Map tab onto model (for all variants to map at once). In incremental mode, only the 
+		// part of the tab that has changed since the previous run is mapped (if there is only 
+		// one variant to map). In mapping-only mode, a single variant is streamed (see 
+		// StreamingMapper), so that long pieces are mapped in bounded memory; not if its result 
+		// is to be cached, as that holds all rows of the mapping CSV
+		boolean incremental = Boolean.getBoolean(INCREMENTAL_PROP);
+		boolean streaming = mappingOnly && toMap.size() == 1 && !incremental && 
+			selectedMapping == null && resultKeys.get(toMap.get(0)) == null;
+		start = ctx.startTimer();
+		List<List<Object>> mappings = null;
+		if (variants.size() == 1 && selectedMapping != null && !incremental) {
+			mappings = Collections.singletonList(selectedMapping);
+		}
+		else if (streaming) {
+			MappingVariant variant = variants.get(toMap.get(0));
+			List<Object> mapping = streamMapping(
+				model, tab, ctx, variant.includeOrnamentation, variant.connection, 
+				new File(outPaths.get(toMap.get(0)) + storeName + "-mapping.csv"), pieceInd, writer
 			);
-			// If necessary: adapt maximum number of voices 
-			if (model.getNumberOfVoices() == 6) {
-				Transcription.setMaxNumVoices(6);
+			// If the CSV could not be written, the piece is mapped as usual
+			if (mapping != null) {
+				mappings = Collections.singletonList(mapping);
 			}
-			if (Transcription.MAX_NUM_VOICES == 6 && model.getNumberOfVoices() < 6) {
-				Transcription.setMaxNumVoices(5);
+		}
+		if (mappings == null && toMap.size() == 1) {
+			MappingVariant variant = variants.get(toMap.get(0));
+			File snapshotFile = 
+				new File(outPaths.get(toMap.get(0)) + storeName + "-mapping" + MappingSnapshot.EXT);
+			mappings = Collections.singletonList(incremental ? 
+				map(
+					model, tab, ctx, variant.includeOrnamentation, variant.connection, 
+					MappingSnapshot.load(snapshotFile)
+				) : 
+				map(model, tab, ctx, variant.includeOrnamentation, variant.connection)
+			);
+		}
+		else if (mappings == null) {
+			mappings = map(
+				model, tab, ctx, toMap.stream().map(variants::get).collect(Collectors.toList()), 
+				null, -1, incremental, null
+			);
+		}
+		ctx.stopTimer(MappingMetrics.Stage.MAP, start);
+
+		// Calculate results and store output files per variant
+		for (int m = 0; m < toMap.size(); m++) {
+			int v = toMap.get(m);
+			boolean includeOrn = variants.get(v).includeOrnamentation;
+			String outPath = outPaths.get(v);
+			List<Object> mapping = mappings.get(m);
+			Tablature tabVariant = tab;
+			Integer[][] btpVariant = btp;
+			if (incremental) {
+				File snapshotFile = new File(outPath + storeName + "-mapping" + MappingSnapshot.EXT);
+				try {
+					((MappingSnapshot) mapping.get(3)).store(snapshotFile);
+				} catch (IOException ex) {
+					System.err.println("could not store " + snapshotFile + " (" + ex + ")");
+				}
 			}
-			Integer[][] btp = tab.getBasicTabSymbolProperties();
-			Integer[][] bnp = model.getBasicNoteProperties();
-
-			// Map tab onto model and calculate results
-			List<Object> mapping = map(model, tab, includeOrn, connection);
 			List<List<Double>> voiceLabels = (List<List<Double>>) mapping.get(0);
 			List<List<Integer>> mismatchInds = (List<List<Integer>>) mapping.get(1);
-			List<String> csv = (List<String>) mapping.get(2);
+			MappingRecords records = (MappingRecords) mapping.get(2);
+			// Copy of the results as returned by map(), as the lists are adapted below
+			ResultCache.Result result = new ResultCache.Result(voiceLabels, mismatchInds, records);
+			// The mismatches other than ornamentation are the same for all variants
+			if (m == 0) {
+				ctx.count(MappingMetrics.Counter.REPETITIONS, mismatchInds.get(Transcription.REPETITION_IND).size());
+				ctx.count(MappingMetrics.Counter.ADAPTATIONS, mismatchInds.get(Transcription.ADAPTATION_IND).size());
+				ctx.count(MappingMetrics.Counter.FICTA, mismatchInds.get(Transcription.FICTA_IND).size());
+			}
 			List<Object> results = getPieceResults(
-				btp, bnp, shortName, mismatchInds, includeOrn
+				btpVariant, bnp, shortName, mismatchInds, includeOrn
 			);
 			String tableRow = (String) results.get(0);
 			Integer[] ints = (Integer[]) results.get(1);
 			Double[] doubles = (Double[]) results.get(2);
 
-			// Store
-			// a. CSV with mapping statistics
-			StringBuffer csvSb = new StringBuffer();
-			csv.forEach(s -> csvSb.append(s + "\r\n"));
-			ToolBox.storeTextFile(csvSb.toString(), new File(outPath + storeName + "-mapping.csv"));
+			// Store (in mapping-only mode, only a.)
+			// a. CSV with mapping statistics (if not streamed already)
+			if (records != null) {
+				writer.write(pieceInd, new File(outPath + storeName + "-mapping.csv"), records::writeCsv);
+			}
 			// b. MIDI (used to create a GT transcription for training a model)
-			if (!includeOrn) {
+			if (!includeOrn && !mappingOnly) {
 				List<Integer> repInds = mismatchInds.get(Transcription.REPETITION_IND);
 				List<Integer> ornInds = mismatchInds.get(Transcription.ORNAMENTATION_IND);
 				List<Integer> ficInds = mismatchInds.get(Transcription.FICTA_IND);
@@ -298,7 +768,7 @@ public class TabMapper {
 				List<List<Double>> voiceLabelsNoOrn = new ArrayList<>();
 				for (int j = 0; j < voiceLabels.size(); j++) {
 					if (!ornInds.contains(j)) {
-//					if (voiceLabels.get(j) != null) {
+//						if (voiceLabels.get(j) != null) {
 						voiceLabelsNoOrn.add(voiceLabels.get(j));
 					}
 
@@ -322,34 +792,222 @@ public class TabMapper {
 				// Clear ornInds
 				ornInds.clear();
 
-				Tablature tabDeorn = new Tablature(tab);
+				Tablature tabDeorn = new Tablature(tabVariant);
 				tabDeorn.augment(
 					RhythmSymbol.SEMIMINIM.getDuration(), mismatchInds.get(Transcription.SPECIAL_ORN_IND),
 					-1, "deornament"
 				);
-				tab = tabDeorn;
-				btp = tab.getBasicTabSymbolProperties();
+				tabVariant = tabDeorn;
+				btpVariant = tabVariant.getBasicTabSymbolProperties();
 			}
-			ScorePiece p = new ScorePiece(
-				btp, null, voiceLabels, null, model.getScorePiece().getMetricalTimeLine(), 
-				model.getScorePiece().getHarmonyTrack(), model.getNumberOfVoices(), 
-				model.getScorePiece().getName()
-			);
-			if (completeDurations) {
-				p.completeDurations(Rational.HALF); // TODO OK for all meters?
+			// c. MIDI and MEI (used to visualise the mismatches), and d. CSV with ornaments. These 
+			// are exported on the writer's export thread, so that mapping can go on; csvOrn is 
+			// filled in once they are
+			List<String> csvOrn = includeOrn && !mappingOnly ? new ArrayList<>() : null;
+			result.csvOrn = csvOrn;
+			List<File> outputFiles = 
+				getOutputFiles(outPath, storeName, includeOrn, storeMIDI, mappingOnly);
+			// The result is only cached once all output files have been stored
+			String cacheName = cacheNames.get(v);
+			String resultKey = resultKeys.get(v);
+			Runnable cacheResult = resultKey == null ? null : () -> {
+				try {
+					resultCache.put(cacheName, resultKey, result, outputFiles);
+				} catch (IOException ex) {
+					System.err.println(shortName + " could not update result cache (" + ex + ")");
+				}
+			};
+			if (!mappingOnly) {
+				Tablature tabExport = tabVariant;
+				Integer[][] btpExport = btpVariant;
+				List<List<Double>> voiceLabelsExport = voiceLabels;
+				Map<String, String> cliOptsValsVariant = 
+					getVariantCliOptsVals(cliOptsValsLocal, variants.get(v));
+				writer.export(pieceInd, () -> {
+					exportPiece(
+						tabExport, btpExport, voiceLabelsExport, mismatchInds, model, ctx, 
+						cliOptsValsVariant, paths, tabName, outPath, storeName, 
+						completeDurations, storeMIDI, csvOrn
+					);
+				});
 			}
+
+			pieceResults.set(v, Arrays.asList(new Object[]{tableRow, ints, doubles, csvOrn, 
+				result.voiceLabels, result.mismatchInds, outputFiles, cacheResult}));
+		}
+		return pieceResults;
+	}
+
+
+	/**
+	 * Returns the name the output files of the given piece are stored under (without 
+	 * extension).
+	 * 
+	 * @param tabName
+	 * @param piecesNoExt The names of all pieces mapped, without extension; if the given 
+	 *                    piece's name occurs more than once, its extension is kept.
+	 * @param completeDurations
+	 * @return
+	 */
+	static String getStoreName(String tabName, List<String> piecesNoExt, 
+		boolean completeDurations) {
+		String tabNameNoExt = ToolBox.splitExt(tabName)[0];
+		String storeName = 
+			Collections.frequency(piecesNoExt, tabNameNoExt) > 1 ? tabName : tabNameNoExt;
+		return storeName + (completeDurations ? "-dur" : "");
+	}
+
+
+	/**
+	 * Adds the result of the given piece, as returned by {@link #mapPiece}, to the result 
+	 * cache (if it is not there yet). To be called only once all output files of the piece 
+	 * have been stored (see {@link OutputWriter#awaitPiece}).
+	 * 
+	 * @param pieceResult
+	 */
+	static void cacheResult(List<Object> pieceResult) {
+		Runnable cacheResult = (Runnable) pieceResult.get(7);
+		if (cacheResult != null) {
+			cacheResult.run();
+		}
+	}
+
+
+	// Returns a copy of the given CLI options with the ornamentation option of the given 
+	// variant
+	private static Map<String, String> getVariantCliOptsVals(Map<String, String> cliOptsVals, 
+		MappingVariant variant) {
+		Map<String, String> cliOptsValsVariant = new LinkedHashMap<>(cliOptsVals);
+		cliOptsValsVariant.put(CLInterface.ORNAMENTATION, variant.includeOrnamentation ? "y" : "n");
+		return cliOptsValsVariant;
+	}
+
+
+	private static List<File> getOutputFiles(String outPath, String storeName, 
+		boolean includeOrn, boolean storeMIDI, boolean mappingOnly) {
+		List<File> files = new ArrayList<>();
+		files.add(new File(outPath + storeName + "-mapping.csv"));
+		if (!mappingOnly) {
+			if (storeMIDI) {
+				files.add(new File(outPath + storeName + MIDIImport.MID_EXT));
+			}
+			files.add(new File(outPath + storeName + MEIExport.MEI_EXT));
+			if (includeOrn) {
+				files.add(new File(outPath + storeName + "-ornaments.csv"));
+			}
+		}
+		return files;
+	}
+
+
+	/**
+	 * Sets up Python, if that has not been done yet.
+	 */
+	private static void ensurePython() {
+		synchronized (PYTHON_LOCK) {
+			if (!pythonSet) {
+				pythonSetup.run();
+				pythonSet = true;
+			}
+		}
+	}
+
+
+	/**
+	 * Makes the results of a piece from its cached results, without mapping or exporting 
+	 * it again, and stores its CSV files.
+	 * 
+	 * @param result The cached results, or <code>null</code>.
+	 * @param parsed The cached parsed input, or <code>null</code>.
+	 * @param pieceInd
+	 * @param shortName
+	 * @param outPath
+	 * @param storeName
+	 * @param includeOrn
+	 * @param storeMIDI
+	 * @param mappingOnly
+	 * @param writer
+	 * @return As {@link #mapPiece}, or <code>null</code> if there are no cached results or 
+	 *         parsed input, or if any output file that is not rewritten is missing or is not 
+	 *         the one stored with the results.
+	 */
+	private static List<Object> getCachedPieceResults(ResultCache.Result result, 
+		InputCache.ParsedInput parsed, int pieceInd, String shortName, String outPath, 
+		String storeName, boolean includeOrn, boolean storeMIDI, boolean mappingOnly, 
+		OutputWriter writer) {
+		if (result == null || parsed == null) {
+			return null;
+		}
+		List<File> outputFiles = getOutputFiles(outPath, storeName, includeOrn, storeMIDI, mappingOnly);
+		try {
+			String outputKey = ResultCache.getOutputKey(outputFiles);
+			if (outputKey == null || !outputKey.equals(result.outputKey)) {
+				return null;
+			}
+		} catch (IOException ex) {
+			return null;
+		}
+		List<Object> results = getPieceResults(
+			parsed.btp, parsed.bnp, shortName, result.mismatchInds, includeOrn
+		);
+		writer.write(
+			pieceInd, new File(outPath + storeName + "-mapping.csv"), result.records::writeCsv
+		);
+		if (includeOrn && !mappingOnly) {
+			StringBuffer csvOrnSb = new StringBuffer();
+			result.csvOrn.forEach(s -> csvOrnSb.append(s + "\r\n"));
+			writer.write(pieceInd, new File(outPath + storeName + "-ornaments.csv"), csvOrnSb.toString());
+		}
+		return Arrays.asList(new Object[]{results.get(0), results.get(1), results.get(2), 
+			result.csvOrn, result.voiceLabels, result.mismatchInds, outputFiles, null});
+	}
+
+
+	/**
+	 * Exports the MIDI and MEI files of the given mapping, and, if csvOrn is given, the CSV 
+	 * with ornaments.
+	 * 
+	 * The ScorePiece and the exports still depend on the global maximum number of voices, 
+	 * which is set per piece; pieces are therefore exported one at a time.
+	 * 
+	 * @param tab
+	 * @param btp
+	 * @param voiceLabels
+	 * @param mismatchInds
+	 * @param model
+	 * @param ctx
+	 * @param cliOptsVals
+	 * @param paths
+	 * @param tabName
+	 * @param outPath
+	 * @param storeName
+	 * @param completeDurations
+	 * @param storeMIDI
+	 * @param csvOrn The list to add the ornaments CSV to, or <code>null</code>.
+	 * @throws IOException
+	 */
+	private static void exportPiece(Tablature tab, Integer[][] btp, 
+		List<List<Double>> voiceLabels, List<List<Integer>> mismatchInds, Transcription model, 
+		MappingContext ctx, Map<String, String> cliOptsVals, Map<String, String> paths, 
+		String tabName, String outPath, String storeName, boolean completeDurations, 
+		boolean storeMIDI, List<String> csvOrn) throws IOException {
+		Transcription trans;
+		long start = ctx.startTimer();
+		synchronized (EXPORT_LOCK) {
+			ctx.stopTimer(MappingMetrics.Stage.EXPORT_WAIT, start);
+			Transcription.setMaxNumVoices(ctx.getMaxNumVoices());
+			ScorePiece p = makeExportPiece(btp, voiceLabels, model, completeDurations);
 			File f = new File(outPath + storeName + MIDIImport.MID_EXT);
 //			File f = new File(outPath + (completeDurations ? storeName + "-dur" : storeName) + MIDIImport.MID_EXT);
-			MIDIExport.exportMidiFile(
-				p, Arrays.asList(new Integer[]{MIDIExport.GUITAR}), model.getMeterInfo(), 
-				model.getKeyInfo(), f.getAbsolutePath()
-			);
-			// c. MEI (used to visualise the mismatches)
-			cliOptsValsLocal = CLInterface.setPieceSpecificTransParams(cliOptsValsLocal, tab, "tabmapper");
-			Transcription trans = new Transcription(f);
+			trans = makeMappedTranscription(p, model, storeMIDI ? f : null, ctx);
+			// MEI (used to visualise the mismatches)
+			ensurePython();
+			Map<String, String> cliOptsValsPiece = 
+				CLInterface.setPieceSpecificTransParams(cliOptsVals, tab, "tabmapper");
+			start = ctx.startTimer();
 			MEIExport.exportMEIFile(
-				trans, tab, mismatchInds, CLInterface.getTranscriptionParams(cliOptsValsLocal), 
-				paths, new String[]{
+				trans, tab, mismatchInds, 
+				CLInterface.getTranscriptionParams(cliOptsValsPiece), paths, new String[]{
 					outPath + storeName + MEIExport.MEI_EXT, 
 //					outPath + (completeDurations ? storeName + "-dur" : storeName) + MEIExport.MEI_EXT, 
 					tabName,
@@ -357,66 +1015,227 @@ public class TabMapper {
 					"abtab -- tabmapper"
 				}
 			);
-			// d. CSV with ornaments
-			List<String> csvOrn = null;
-			if (includeOrn) {
-				csvOrn = getOrnaments(
-					tab, trans, mismatchInds.get(Transcription.ORNAMENTATION_IND)
-				);
-				StringBuffer csvOrnSb = new StringBuffer();
-				csvOrn.forEach(s -> csvOrnSb.append(s + "\r\n"));
-				ToolBox.storeTextFile(csvOrnSb.toString(), new File(outPath + storeName + "-ornaments.csv"));
+			ctx.stopTimer(MappingMetrics.Stage.EXPORT_MEI, start);
+		}
+		// CSV with ornaments
+		if (csvOrn != null) {
+			start = ctx.startTimer();
+			csvOrn.addAll(getOrnaments(tab, trans, mismatchInds.get(Transcription.ORNAMENTATION_IND)));
+			StringBuffer csvOrnSb = new StringBuffer();
+			csvOrn.forEach(s -> csvOrnSb.append(s + "\r\n"));
+			OutputWriter.store(
+				new File(outPath + storeName + "-ornaments.csv"), w -> w.write(csvOrnSb.toString())
+			);
+			ctx.stopTimer(MappingMetrics.Stage.ORNAMENTS, start);
+		}
+	}
+
+
+	/**
+	 * Makes the ScorePiece of the given mapping that is exported. The metrical time line and 
+	 * the harmony track are those of the given model, which may be shared with other pieces 
+	 * (see {@link ModelRegistry}), also while they are mapped; the library has no way to 
+	 * copy them, and they are only read.
+	 * 
+	 * @param btp
+	 * @param voiceLabels
+	 * @param model
+	 * @param completeDurations
+	 * @return
+	 */
+	static ScorePiece makeExportPiece(Integer[][] btp, List<List<Double>> voiceLabels, 
+		Transcription model, boolean completeDurations) {
+		ScorePiece p = new ScorePiece(
+			btp, null, voiceLabels, null, model.getScorePiece().getMetricalTimeLine(), 
+			model.getScorePiece().getHarmonyTrack(), model.getNumberOfVoices(), 
+			model.getScorePiece().getName()
+		);
+		if (completeDurations) {
+			p.completeDurations(Rational.HALF); // TODO OK for all meters?
+		}
+		return p;
+	}
+
+
+	/**
+	 * Makes the mapped transcription from the given ScorePiece. 
+	 * 
+	 * NB: A Transcription can only be made from a MIDI file, so the ScorePiece is exported 
+	 * and then read back. If no MIDI file is given, a temporary file is used and deleted 
+	 * afterwards.
+	 * 
+	 * @param p
+	 * @param model
+	 * @param midiFile The MIDI file to store, or <code>null</code>.
+	 * @param ctx
+	 * @return
+	 */
+	private static Transcription makeMappedTranscription(ScorePiece p, Transcription model, 
+		File midiFile, MappingContext ctx) {
+		Path tmp = null;
+		try {
+			if (midiFile == null) {
+				tmp = Files.createTempFile("tabmapper-", MIDIImport.MID_EXT);
+				midiFile = tmp.toFile();
+			}
+			long start = ctx.startTimer();
+			MIDIExport.exportMidiFile(
+				p, Arrays.asList(new Integer[]{MIDIExport.GUITAR}), model.getMeterInfo(), 
+				model.getKeyInfo(), midiFile.getAbsolutePath()
+			);
+			ctx.stopTimer(MappingMetrics.Stage.EXPORT_MIDI, start);
+			start = ctx.startTimer();
+			Transcription trans = new Transcription(midiFile);
+			ctx.stopTimer(MappingMetrics.Stage.REREAD_MIDI, start);
+			return trans;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			if (tmp != null) {
+				tmp.toFile().delete();
 			}
+		}
+	}
 
-			// Update
-			// a. table
-			table.append(tableRow);
-			// b. latexTable
-			for (int j = 0; j < ints.length; j++) {
-				latexTable[i][j] = j == 0 ? shortName : 
-					(intInds.contains(j) ? String.valueOf(ints[j]) : ToolBox.formatDouble(doubles[j], 0, 5));	
+
+	/**
+	 * Selects, from the given candidate models, the one the given tablature is mapped onto 
+	 * (see {@link ModelSelector}). The tablature is made once for all candidates; its .tbp 
+	 * encoding is added to the input cache, so that it is not converted again when the piece 
+	 * is mapped.
+	 * 
+	 * @param tabName
+	 * @param candidates
+	 * @param paths
+	 * @param inPathTab
+	 * @param inPathMIDI
+	 * @param includeOrn
+	 * @param connection
+	 * @param inputCache
+	 * @param modelRegistry
+	 * @param pieceInd
+	 * @param metrics The metrics the selection is recorded to, under the piece's index.
+	 * @return A list containing
+	 * <ul>
+	 * <li>As element 0: the name of the model selected.</li>
+	 * <li>As element 1: the mapping of the tablature onto it, as returned by {@link #map}.</li>
+	 * </ul>
+	 */
+	private static List<Object> selectModel(String tabName, List<String> candidates, 
+		Map<String, String> paths, String inPathTab, String inPathMIDI, boolean includeOrn, 
+		Connection connection, InputCache inputCache, ModelRegistry modelRegistry, int pieceInd, 
+		MappingMetrics metrics) {
+		File tabFile = new File(inPathTab + tabName);
+		String rawEncoding = null;
+		if (inputCache != null) {
+			try {
+				rawEncoding = inputCache.getEncoding(tabFile);
+			} catch (IOException ex) {
+				System.err.println(tabName + " could not read input cache (" + ex + ")");
 			}
-			// c. lists to average
-			for (int j = 1; j < ints.length; j++) {
-				if (intInds.contains(j)) {
-					intsToAvg[j] += ints[j];
-				}
-				else {
-					doublesToAvg[j] += doubles[j];
-				}
+		}
+		if (rawEncoding == null) {
+			if (!tabName.endsWith(Encoding.TBP_EXT)) {
+				ensurePython();
 			}
-			// d. uniqueOrns
-			if (includeOrn) {
-				csvOrn.forEach(s -> { 
-					if (!s.startsWith("ornament") && !uniqueOrns.contains(s.substring(0, s.indexOf(",")))) { 
-						uniqueOrns.add(s.substring(0, s.indexOf(","))); 
-					} 
-				});
+			rawEncoding = TabImport.convertToTbp(inPathTab, tabName, paths);
+			if (inputCache != null) {
+				try {
+					inputCache.putEncoding(tabFile, rawEncoding);
+				} catch (IOException ex) {
+					System.err.println(tabName + " could not update input cache (" + ex + ")");
+				}
 			}
 		}
-
-		// Print
-		System.out.println();
-		System.out.println(
-			piecesArr.size() + (piecesArr.size() == 1 ? " piece (" : " pieces (") + 
-			intsToAvg[COLS.indexOf(NUM_NOTES_INTAB)] + " notes) processed"
+		Tablature tab = new Tablature(
+			new Encoding(rawEncoding, ToolBox.splitExt(tabName)[0], Stage.RULES_CHECKED), false
 		);
-		piecesArr.forEach(p -> System.out.println(p[2] + " " + p[0]));
-		System.out.println();
-		System.out.println(table);
 
-		// Store
-		StringBuffer uniqueOrnsSb = new StringBuffer();
-		uniqueOrns.forEach(s -> uniqueOrnsSb.append(s + "\r\n"));
-		ToolBox.storeTextFile(uniqueOrnsSb.toString(), new File(outPath + "ornaments.csv"));
-		String fullLatexTable = StringTools.createLaTeXTable(
-			latexTable, intsToAvg, doublesToAvg, intInds, 0, 5, true
+		System.out.println("... selecting model for " + tabName + " ...");
+		long start = metrics.startTimer();
+		List<Object> selection = ModelSelector.select(
+			tab, candidates.stream().map(m -> new File(inPathMIDI + m)).collect(Collectors.toList()), 
+			includeOrn, connection, modelRegistry, Runtime.getRuntime().availableProcessors(), 
+			pieceInd, metrics
 		);
-		ToolBox.storeTextFile(fullLatexTable, new File(outPath + "LaTeX.txt"));
+		metrics.stopTimer(pieceInd, MappingMetrics.Stage.SELECT_MODEL, start);
+		int best = (int) selection.get(0);
+		List<Double[]> candidateMs = (List<Double[]>) selection.get(1);
+		for (int i = 0; i < candidates.size(); i++) {
+			Double[] m = candidateMs.get(i);
+			System.out.println("    " + candidates.get(i) + ": " + (m == null ? "given up" : 
+				"m = " + ToolBox.formatDouble(m[0], 0, 5) + ", m_oa = " + 
+				ToolBox.formatDouble(m[1], 0, 5) + ", m_a = " + ToolBox.formatDouble(m[2], 0, 5)) + 
+				(i == best ? " (selected)" : ""));
+		}
+		return Arrays.asList(new Object[]{candidates.get(best), selection.get(2)});
 	}
 
 
-	private static List<Object> getPieceResults(Integer[][] btp, Integer[][] bnp, 
+	/**
+	 * Calls the given piece mapper for all pieces. If numWorkers is greater than 1, the pieces 
+	 * are mapped concurrently on a pool of numWorkers threads; the results are always returned 
+	 * in input order.
+	 * 
+	 * @param numPieces
+	 * @param numWorkers
+	 * @param pieceMapper
+	 * @return
+	 */
+	static <T> List<T> mapPieces(int numPieces, int numWorkers, 
+		IntFunction<T> pieceMapper) {
+		List<T> pieceResults = new ArrayList<>();
+		if (numWorkers <= 1 || numPieces <= 1) {
+			for (int i = 0; i < numPieces; i++) {
+				pieceResults.add(pieceMapper.apply(i));
+			}
+		}
+		else {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(numWorkers, numPieces));
+			try {
+				List<Future<T>> futures = new ArrayList<>();
+				for (int i = 0; i < numPieces; i++) {
+					int pieceInd = i;
+					futures.add(pool.submit(() -> pieceMapper.apply(pieceInd)));
+				}
+				for (Future<T> f : futures) {
+					pieceResults.add(f.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		return pieceResults;
+	}
+
+
+	/**
+	 * Returns m, i.e., the share of the notes in the tablature that are not mismatches, 
+	 * where ornamentation (if included), repetition, ficta, and adaptation count as 
+	 * mismatch. If ornamentation is not included, the ornamental notes are not counted.
+	 * 
+	 * @param numNotes The number of notes in the tablature.
+	 * @param mismatchInds
+	 * @param includeOrn
+	 * @return
+	 */
+	static double getM(int numNotes, List<List<Integer>> mismatchInds, boolean includeOrn) {
+		int numOrn = mismatchInds.get(Transcription.ORNAMENTATION_IND).size();
+		int numNotesTab = numNotes - (!includeOrn ? numOrn : 0);
+		int numMismatches = (includeOrn ? numOrn : 0) + 
+			mismatchInds.get(Transcription.REPETITION_IND).size() + 
+			mismatchInds.get(Transcription.FICTA_IND).size() + 
+			mismatchInds.get(Transcription.ADAPTATION_IND).size();
+		return (numNotesTab - numMismatches) / (double) numNotesTab;
+	}
+
+
+	static List<Object> getPieceResults(Integer[][] btp, Integer[][] bnp, 
 		String shortName, List<List<Integer>> mismatchInds, boolean includeOrn) {
 
 		int numOrn = mismatchInds.get(Transcription.ORNAMENTATION_IND).size();
@@ -430,7 +1249,7 @@ public class TabMapper {
 		int numMismatches = mo + mr + mf + mad;
 
 		// m: o, r, f, a count as mismatch
-		double m = (numNotesTab - (mo + mr + mf + mad)) / (double) numNotesTab; 
+		double m = getM(btp.length, mismatchInds, includeOrn);
 		// m_oa: only o and a count as mismatch
 		double moa = (numNotesTab - (mo + mad)) / (double) numNotesTab;
 		// m_a: only a count as mismatch
@@ -658,391 +1477,683 @@ public class TabMapper {
 					currEnc.addAll(Arrays.asList(String.valueOf(nextStep)));
 				}
 
-				// Get (spelled) pitch
-				boolean spellPitch = false;
-				if (spellPitch) {
-					Integer[] currKi = trans.getLocalKeyInfo(currMt);
-					String[] pa = (String[]) PitchKeyTools.spellPitch(
-						currPitch, currKi[Transcription.KI_KEY], PitchKeyTools.createGrids(
-							currKi[Transcription.KI_KEY], currKi[Transcription.KI_MODE]
-						), null, -1).get(0);
+				// Get (spelled) pitch
+				boolean spellPitch = false;
+				if (spellPitch) {
+					Integer[] currKi = trans.getLocalKeyInfo(currMt);
+					String[] pa = (String[]) PitchKeyTools.spellPitch(
+						currPitch, currKi[Transcription.KI_KEY], PitchKeyTools.createGrids(
+							currKi[Transcription.KI_KEY], currKi[Transcription.KI_MODE]
+						), null, -1).get(0);
+				}
+			}
+			csv.add(String.join(" ", currEnc) + "," + String.join(",", currLoc));
+		}
+
+		return csv;
+	}
+
+
+	/**
+	 * Rounds the given fraction by incrementally decreasing and increasing its numerator
+	 * (-1, +1, -2, +2, -3, +3, ...) until the denominator of the resulting reduced fraction 
+	 * equals 1.
+	 * 
+	 * @param r
+	 * @return
+	 */
+	// TESTED
+	static Rational roundFraction(Rational r) {
+		int numer = r.getNumer();
+		int denom = r.getDenom(); 
+		int diff = 1;
+		while (r.getDenom() != 1) {
+			// Try subtraction 
+			r = new Rational((numer-diff), denom);
+			r.reduce();
+			if (r.getDenom() == 1) {
+				break;
+			}
+			// Reset and try addition
+			r = new Rational(numer, denom);
+			r = new Rational((numer+diff), denom);
+			r.reduce();
+			if (r.getDenom() == 1) {
+				break;
+			}
+			diff++;
+		}
+		return r; 
+	}
+
+
+	/**
+	 * Maps the notes in the given tablature onto the notes in the given transcription.
+	 * 
+	 * @param trans
+	 * @param tab
+	 * @param ctx
+	 * @param includeOrnamentation
+	 * @param connection
+	 * 
+	 * @return A list containing
+	 * <ul>
+	 * <li>As element 0: the voice labels.</li>
+	 * <li>As element 1: the mismatch indices.</li>
+	 * <li>As element 2: the rows of the mapping CSV, sorted by note index.</li>
+	 * <li>As element 3: <code>null</code>; when mapping incrementally (see 
+	 *     {@link #map(Transcription, Tablature, MappingContext, boolean, Connection, 
+	 *     MappingSnapshot)}), the {@link MappingSnapshot} of the mapping.</li>
+	 * </ul>
+	 */
+	static List<Object> map(Transcription trans, Tablature tab, MappingContext ctx, 
+		boolean includeOrnamentation, Connection connection) {
+		return map(
+			trans, tab, ctx, 
+			Collections.singletonList(new MappingVariant(includeOrnamentation, connection)), 
+			null, -1, false, null
+		).get(0);
+	}
+
+
+	/**
+	 * Maps the notes in the given tablature onto the notes in the given transcription, 
+	 * reusing the given previous mapping of an earlier version of the tablature as far as 
+	 * possible. Only the part of the tablature from the last non-ornamental chord before 
+	 * the first change up to the first chord after the change after which the mapping 
+	 * is in the same state as in the previous mapping is mapped; the results for the rest 
+	 * are taken from the previous mapping. The mapping is returned with its snapshot, so 
+	 * that it can be reused in turn.
+	 * 
+	 * @param trans
+	 * @param tab
+	 * @param ctx
+	 * @param includeOrnamentation
+	 * @param connection
+	 * @param previous The previous mapping, or <code>null</code>. Is ignored if it was made 
+	 *                 with a different model or with different options.
+	 * 
+	 * @return As {@link #map(Transcription, Tablature, MappingContext, boolean, Connection)}, 
+	 *         with the {@link MappingSnapshot} as element 3.
+	 */
+	static List<Object> map(Transcription trans, Tablature tab, MappingContext ctx, 
+		boolean includeOrnamentation, Connection connection, MappingSnapshot previous) {
+		return map(trans, tab, ctx, includeOrnamentation, connection, previous, -1);
+	}
+
+
+	/**
+	 * As {@link #map(Transcription, Tablature, MappingContext, boolean, Connection, 
+	 * MappingSnapshot)}. If there is no usable previous mapping, the tablature is split into 
+	 * (at most) the given number of segments, which are mapped concurrently (see 
+	 * {@link #getSplitRows}). The results are the same as when the tablature is mapped as a 
+	 * whole.
+	 * 
+	 * @param trans
+	 * @param tab
+	 * @param ctx
+	 * @param includeOrnamentation
+	 * @param connection
+	 * @param previous
+	 * @param numSegments The number of segments, or -1 to have it depend on the length of 
+	 *                    the tablature and on the number of processors.
+	 * 
+	 * @return As {@link #map(Transcription, Tablature, MappingContext, boolean, Connection)}.
+	 */
+	static List<Object> map(Transcription trans, Tablature tab, MappingContext ctx, 
+		boolean includeOrnamentation, Connection connection, MappingSnapshot previous, 
+		int numSegments) {
+		return map(
+			trans, tab, ctx, 
+			Collections.singletonList(new MappingVariant(includeOrnamentation, connection)), 
+			previous, numSegments, true, null
+		).get(0);
+	}
+
+
+	/**
+	 * As {@link #map(Transcription, Tablature, MappingContext, boolean, Connection)}, but 
+	 * gives up as soon as the given test on the mismatch indices so far, which is done after 
+	 * each chord, holds.
+	 * 
+	 * @param trans
+	 * @param tab
+	 * @param ctx
+	 * @param includeOrnamentation
+	 * @param connection
+	 * @param abort
+	 * 
+	 * @return As {@link #map(Transcription, Tablature, MappingContext, boolean, Connection)}, 
+	 *         or <code>null</code> if the mapping was given up.
+	 */
+	static List<Object> mapOrAbort(Transcription trans, Tablature tab, MappingContext ctx, 
+		boolean includeOrnamentation, Connection connection, 
+		Predicate<List<List<Integer>>> abort) {
+		List<List<Object>> mappings = map(
+			trans, tab, ctx, 
+			Collections.singletonList(new MappingVariant(includeOrnamentation, connection)), 
+			null, 1, false, abort
+		);
+		return mappings != null ? mappings.get(0) : null;
+	}
+
+
+	/**
+	 * Maps the notes in the given tablature onto the notes in the given transcription for 
+	 * each of the given variants, in a single pass. Only the mapping of the ornamental notes 
+	 * is done per variant; the grid and mask and the mapping of all other notes are shared.
+	 * 
+	 * @param trans
+	 * @param tab
+	 * @param ctx
+	 * @param variants
+	 * 
+	 * @return For each variant, as {@link #map(Transcription, Tablature, MappingContext, 
+	 *         boolean, Connection)}.
+	 */
+	static List<List<Object>> mapVariants(Transcription trans, Tablature tab, 
+		MappingContext ctx, List<MappingVariant> variants) {
+		return map(trans, tab, ctx, variants, null, -1, false, null);
+	}
+
+
+	private static List<List<Object>> map(Transcription trans, Tablature tab, 
+		MappingContext ctx, List<MappingVariant> variants, MappingSnapshot previous, 
+		int numSegments, boolean incremental, Predicate<List<List<Integer>>> abort) {
+//		System.out.println("\r\n>>> TabMapper.map() called");
+
+		Integer[][] btp = tab.getBasicTabSymbolProperties();
+		int numVoices = ctx.getNumVoices();
+		ModelRegistry.Model model = ctx.getModel(trans);
+		List<Integer[]> keyInfo = model.keyInfo;
+
+		List<ChordGrid> gridAndMask = makeGridAndMask(model, tab);
+		ChordGrid grid = gridAndMask.get(0); // notes in MIDI
+		ChordGrid mask = gridAndMask.get(1); // notes in tab
+//		System.out.println("G R I D");
+//		Arrays.stream(grid).forEach(in -> System.out.println(Arrays.asList(in)));		
+//		System.out.println("M A S K");	
+//		Arrays.stream(mask).forEach(in -> System.out.println(Arrays.asList(in)));
+		
+		// The voice labels, mismatch indices, and rows of the mapping CSV per variant
+		List<List<Object>> results = new ArrayList<>();
+		List<ChordMapper.Sink> sinks = new ArrayList<>();
+		for (int v = 0; v < variants.size(); v++) {
+			results.add(makeResults());
+			sinks.add(collectInto(results.get(v)));
+		}
+		// The checkpoints do not depend on the variant. They are only kept when mapping 
+		// incrementally, for the snapshot
+		List<MappingSnapshot.Checkpoint> checkpoints = new ArrayList<>();
+		ChordMapper chordMapper = new ChordMapper(trans, tab, ctx, variants, sinks);
+
+		// If there is a usable previous mapping (only when mapping a single variant): restore 
+		// the state after the last non-ornamental chord before the first change, and take the 
+		// results up to there from the previous mapping
+		int startRow = 0;
+		int tailStart = Integer.MAX_VALUE;
+		int noteShift = 0;
+		if (previous != null && (variants.size() != 1 || !previous.isReusableFor(
+			tab, model.bnp, keyInfo, variants.get(0).includeOrnamentation, 
+			variants.get(0).connection))) {
+			previous = null;
+		}
+		List<List<Double>> voiceLabels = (List<List<Double>>) results.get(0).get(0);
+		List<List<Integer>> mismatchInds = (List<List<Integer>>) results.get(0).get(1);
+		MappingRecords records = (MappingRecords) results.get(0).get(2);
+		if (previous != null) {
+			tailStart = previous.getTailStart(tab);
+			noteShift = btp.length - previous.getNumNotes();
+			MappingSnapshot.Checkpoint restart = previous.getRestartPoint(tab);
+			if (restart != null) {
+				previous.copyHead(restart.endNote, voiceLabels, mismatchInds, records, checkpoints);
+				while (mask.getOnset(startRow) <= restart.onset) {
+					startRow++;
+				}
+				chordMapper.restore(restart, startRow - 1);
+			}
+		}
+
+		// Do the initial mapping (i.e., handle direct matches and ficta) of all non-ornamental 
+		// chords in parallel, as it does not depend on the mapping of earlier chords. Not when 
+		// mapping incrementally, where most chords are not mapped at all
+		if (numSegments == -1) {
+			numSegments = Math.min(
+				ForkJoinPool.getCommonPoolParallelism(), grid.getNumRows() / PARALLEL_SEGMENT_MIN_ROWS
+			);
+		}
+		List<List<Object>> initialMappings = null;
+		if (previous == null && 
+			(numSegments > 1 || grid.getNumRows() >= 
+			Integer.getInteger(PARALLEL_MATCHING_MIN_ROWS_PROP, PARALLEL_MATCHING_MIN_ROWS))) {
+			initialMappings = IntStream.range(0, grid.getNumRows()).parallel().mapToObj(i -> {
+				if (mask.getPitch(i, 0) == ChordGrid.EMPTY) {
+					return null;
+				}
+				int numPitchesTab = mask.getNumPitches(i);
+				List<Integer> pitchesModel = grid.getPitches(i, numVoices);
+				List<Integer> pitchesTab = mask.getPitches(i, numPitchesTab);
+				if (chordMapper.isOrnamental(pitchesTab, mask.getDuration(i, 0), pitchesModel)) {
+					return null;
+				}
+				return chordMapper.match(
+					mask.getOnset(i), pitchesTab, mask.getTabIndices(i, numPitchesTab), pitchesModel
+				);
+			}).collect(Collectors.toList());
+		}
+
+		// If there is no usable previous mapping: map the segments after the first one 
+		// concurrently, each from the state after its split row, which follows from the 
+		// initial mapping alone. The first segment is mapped below
+		int endRow = grid.getNumRows();
+		List<MappingSnapshot.Checkpoint> segmentStarts = new ArrayList<>();
+		List<CompletableFuture<List<Object>>> segments = new ArrayList<>();
+		// Set when the mapping is given up, so that the segments stop too
+		AtomicBoolean cancelled = new AtomicBoolean();
+		if (previous == null && numSegments > 1) {
+			List<List<Object>> im = initialMappings;
+			List<Integer> splitRows = getSplitRows(mask, im, numSegments);
+			for (int s = 0; s < splitRows.size(); s++) {
+				int splitRow = splitRows.get(s);
+				int segmentEndRow = 
+					s < splitRows.size() - 1 ? splitRows.get(s + 1) + 1 : grid.getNumRows();
+				MappingSnapshot.Checkpoint start = getSplitCheckpoint(mask, im, splitRow);
+				segmentStarts.add(start);
+				segments.add(CompletableFuture.supplyAsync(() -> mapSegment(
+					trans, tab, ctx, variants, grid, mask, im, start, splitRow, segmentEndRow, 
+					incremental, cancelled
+				)));
+			}
+			ctx.count(MappingMetrics.Counter.SEGMENTS, segments.size());
+			if (!splitRows.isEmpty()) {
+				endRow = splitRows.get(0) + 1;
+			}
+		}
+
+		// For each chord
+		for (int i = startRow; i < endRow; i++) {
+			// Map (if the chord is ornamental, it is mapped with the next non-ornamental 
+			// chord)
+			MappingSnapshot.Checkpoint cp = 
+				mapChord(chordMapper, grid, mask, numVoices, initialMappings, i, incremental);
+			if (cp != null) {
+				// Keep the state after the chord. If the chord is in the unchanged rest 
+				// of the tablature and the state is the same as in the previous mapping, 
+				// the rest of the mapping is too
+				checkpoints.add(cp);
+				if (cp.firstNote >= tailStart) {
+					MappingSnapshot.Checkpoint prevCp = previous.getConvergencePoint(cp, noteShift);
+					if (prevCp != null) {
+						int chordInd = btp[cp.firstNote][Tablature.CHORD_SEQ_NUM];
+						previous.copyTail(
+							prevCp.endNote, noteShift, 
+							chordInd - previous.getChordInd(prevCp.firstNote), 
+							voiceLabels, mismatchInds, records, checkpoints
+						);
+						break;
+					}
+				}
+			}
+			// Give up if the mismatches so far (of the first variant) call for it
+			if (abort != null && abort.test(mismatchInds)) {
+				cancelled.set(true);
+				return null;
+			}
+		}
+		chordMapper.finish();
+
+		// Append the results of the other segments. Up to its first chord with a tuplet, a 
+		// segment may not know the last chord with a tuplet before it (which it does not 
+		// need, see getSplitRows()); its checkpoints then take it from the previous segment
+		for (int s = 0; s < segments.size(); s++) {
+			List<Object> res = segments.get(s).join();
+			List<List<Object>> segmentResults = (List<List<Object>>) res.get(0);
+			for (int v = 0; v < variants.size(); v++) {
+				appendResults(results.get(v), segmentResults.get(v));
+			}
+			boolean inheritsTuplet = !segmentStarts.get(s).containsTuplet;
+			for (MappingSnapshot.Checkpoint cp : (List<MappingSnapshot.Checkpoint>) res.get(1)) {
+				inheritsTuplet &= !cp.containsTuplet;
+				checkpoints.add(inheritsTuplet ? 
+					cp.withTupletOf(checkpoints.get(checkpoints.size() - 1)) : cp);
+			}
+		}
+
+		List<List<Object>> mappings = new ArrayList<>();
+		for (int v = 0; v < variants.size(); v++) {
+			List<Object> r = results.get(v);
+			((MappingRecords) r.get(2)).sortByNote();
+			MappingSnapshot snapshot = !incremental ? null : new MappingSnapshot(
+				tab, model.bnp, keyInfo, variants.get(v).includeOrnamentation, 
+				variants.get(v).connection, (List<List<Double>>) r.get(0), 
+				(List<List<Integer>>) r.get(1), (MappingRecords) r.get(2), checkpoints
+			);
+			mappings.add(Arrays.asList(new Object[]{r.get(0), r.get(1), r.get(2), snapshot}));
+		}
+		return mappings;
+	}
+
+
+	/**
+	 * Maps the chord in the given row of the given grid and mask (see 
+	 * {@link ChordMapper#map}).
+	 * 
+	 * @param chordMapper
+	 * @param grid
+	 * @param mask
+	 * @param numVoices
+	 * @param initialMappings The initial mapping per row, or <code>null</code>.
+	 * @param row
+	 * @param checkpoint Whether to return the state after the chord.
+	 * @return The state after the chord, or <code>null</code> if the row contains no 
+	 *         tablature chord, or an ornamental one, or if it is not asked for.
+	 */
+	private static MappingSnapshot.Checkpoint mapChord(ChordMapper chordMapper, 
+		ChordGrid grid, ChordGrid mask, int numVoices, List<List<Object>> initialMappings, 
+		int row, boolean checkpoint) {
+		// Only if the tablature has a note at this onset time
+		if (mask.getPitch(row, 0) == ChordGrid.EMPTY) {
+			return null;
+		}
+		int numPitchesTab = mask.getNumPitches(row);
+		// Get pitches, arranged per voice (low-high), from model; can contain nulls
+		// NB: if there is a voice crossing, the list is not sorted
+		List<Integer> pitchesModel = grid.getPitches(row, numVoices);
+		// Get pitches and indices, arranged low-high, from tablature; exclude trailing 
+		// empty values
+		List<Integer> pitchesTab = mask.getPitches(row, numPitchesTab);
+		List<Integer> indicesTab = mask.getTabIndices(row, numPitchesTab);
+
+		if (!chordMapper.map(row, mask.getOnset(row), pitchesTab, indicesTab, 
+			mask.getDuration(row, 0), pitchesModel, 
+			initialMappings == null ? null : initialMappings.get(row)) || !checkpoint) {
+			return null;
+		}
+		int firstNote = indicesTab.get(0);
+		return chordMapper.getCheckpoint(firstNote, firstNote + numPitchesTab, mask.getOnset(row));
+	}
+
+
+	/**
+	 * Returns the rows after which the given mask can be split into (at most) the given 
+	 * number of segments that can be mapped independently. The state of the mapping after 
+	 * the chord in such a split row follows from the initial mapping alone, i.e., 
+	 * <ul>
+	 * <li>the chord is non-ornamental and fully mapped by the initial mapping, so that its 
+	 *     voices do not depend on those of the chords before it; and</li>
+	 * <li>all non-ornamental chords less than a whole note (or exactly a whole note) 
+	 *     before it are fully mapped by the initial mapping, so that it is known which of 
+	 *     them contain a tuplet. Chords after the split row are not mapped with a chord 
+	 *     with a tuplet any further back (see <code>ChordMapper.map()</code>).</li>
+	 * </ul>
+	 * Any ornamental notes before the chord are mapped with it, and therefore belong to the 
+	 * segment before the split row.
+	 * 
+	 * @param mask
+	 * @param initialMappings The initial mapping per row (<code>null</code> for rows 
+	 *                        without a non-ornamental chord).
+	 * @param numSegments
+	 * @return The split rows, in increasing order; the segments are of about equal length.
+	 */
+	private static List<Integer> getSplitRows(ChordGrid mask, List<List<Object>> initialMappings, 
+		int numSegments) {
+		List<Integer> splitRows = new ArrayList<>();
+		int numRows = mask.getNumRows();
+		for (int s = 1; s < numSegments; s++) {
+			int first = s * numRows / numSegments;
+			if (!splitRows.isEmpty()) {
+				first = Math.max(first, splitRows.get(splitRows.size() - 1) + 1);
+			}
+			for (int i = first; i < (s + 1) * numRows / numSegments; i++) {
+				if (isFullyMapped(initialMappings.get(i)) && 
+					getTupletRow(mask, initialMappings, i) != Integer.MIN_VALUE) {
+					splitRows.add(i);
+					break;
+				}
+			}
+		}
+		return splitRows;
+	}
+
+
+	/**
+	 * Returns the last row up to and including the given row whose chord contains a tuplet, 
+	 * looking back a whole note at most.
+	 * 
+	 * @param mask
+	 * @param initialMappings
+	 * @param row
+	 * @return The row, -1 if there is none, or <code>Integer.MIN_VALUE</code> if this is not 
+	 *         known because a non-ornamental chord in between is not fully mapped by the 
+	 *         initial mapping.
+	 */
+	private static int getTupletRow(ChordGrid mask, List<List<Object>> initialMappings, 
+		int row) {
+		int tupletRow = -1;
+		int minOnset = mask.getOnset(row) - SMALLEST_DUR;
+		for (int j = row; j >= 0 && mask.getOnset(j) >= minOnset; j--) {
+			List<Object> im = initialMappings.get(j);
+			if (im != null) {
+				if (!isFullyMapped(im)) {
+					return Integer.MIN_VALUE;
+				}
+				if (tupletRow == -1 && ChordMapper.containsTuplet((int[]) im.get(1))) {
+					tupletRow = j;
 				}
 			}
-			csv.add(String.join(" ", currEnc) + "," + String.join(",", currLoc));
 		}
+		return tupletRow;
+	}
 
-		return csv;
+
+	private static boolean isFullyMapped(List<Object> initialMapping) {
+		return initialMapping != null && 
+			Arrays.stream((int[]) initialMapping.get(1)).noneMatch(m -> m == VoiceMask.NONE);
 	}
 
 
 	/**
-	 * Rounds the given fraction by incrementally decreasing and increasing its numerator
-	 * (-1, +1, -2, +2, -3, +3, ...) until the denominator of the resulting reduced fraction 
-	 * equals 1.
+	 * Returns the state of the mapping after the chord in the given split row (see 
+	 * {@link #getSplitRows}). If none of the chords a whole note before it contains a tuplet, 
+	 * the state has no last chord with a tuplet.
 	 * 
-	 * @param r
+	 * @param mask
+	 * @param initialMappings
+	 * @param splitRow
 	 * @return
 	 */
-	// TESTED
-	static Rational roundFraction(Rational r) {
-		int numer = r.getNumer();
-		int denom = r.getDenom(); 
-		int diff = 1;
-		while (r.getDenom() != 1) {
-			// Try subtraction 
-			r = new Rational((numer-diff), denom);
-			r.reduce();
-			if (r.getDenom() == 1) {
-				break;
-			}
-			// Reset and try addition
-			r = new Rational(numer, denom);
-			r = new Rational((numer+diff), denom);
-			r.reduce();
-			if (r.getDenom() == 1) {
-				break;
+	private static MappingSnapshot.Checkpoint getSplitCheckpoint(ChordGrid mask, 
+		List<List<Object>> initialMappings, int splitRow) {
+		List<Integer> activeVoices = new ArrayList<>();
+		for (int j = 0; j <= splitRow; j++) {
+			if (initialMappings.get(j) != null) {
+				List<List<Integer>> initialIntLists = 
+					(List<List<Integer>>) initialMappings.get(j).get(0);
+				initialIntLists.get(6).forEach(v -> { 
+					if (!activeVoices.contains(v)) activeVoices.add(v); 
+				});
 			}
-			diff++;
 		}
-		return r; 
+		Collections.sort(activeVoices);
+		Collections.reverse(activeVoices);
+
+		int numPitchesTab = mask.getNumPitches(splitRow);
+		int firstNote = mask.getTabIndex(splitRow, 0);
+		int tupletRow = getTupletRow(mask, initialMappings, splitRow);
+		boolean containsTuplet = tupletRow != -1;
+		return new MappingSnapshot.Checkpoint(
+			firstNote, firstNote + numPitchesTab, mask.getOnset(splitRow), activeVoices, 
+			mask.getPitches(splitRow, numPitchesTab), (int[]) initialMappings.get(splitRow).get(1), 
+			containsTuplet, 
+			containsTuplet ? mask.getPitches(tupletRow, mask.getNumPitches(tupletRow)) : null, 
+			containsTuplet ? (int[]) initialMappings.get(tupletRow).get(1) : null, 
+			containsTuplet ? mask.getOnset(tupletRow) : -1
+		);
 	}
 
 
 	/**
-	 * Maps the notes in the given tablature onto the notes in the given transcription.
+	 * Maps the segment of the tablature from the row after the given split row up to the 
+	 * given end row.
 	 * 
 	 * @param trans
 	 * @param tab
-	 * @param includeOrnamentation
-	 * @param connection
-	 * @param shortName
-	 * 
-	 * @return 
+	 * @param ctx
+	 * @param variants
+	 * @param grid
+	 * @param mask
+	 * @param initialMappings
+	 * @param start The state after the chord in the split row.
+	 * @param splitRow
+	 * @param endRow Exclusive.
+	 * @param incremental Whether to keep the checkpoints of the segment.
+	 * @param cancelled Is checked before each chord; once it is set, the segment is given up.
+	 * @return A list containing the voice labels, the mismatch indices, and the rows of the 
+	 *         mapping CSV of the segment per variant (see {@link #makeResults}), and the 
+	 *         checkpoints of the segment (if kept); or <code>null</code> if the segment was 
+	 *         given up.
 	 */
-	private static List<Object> map(Transcription trans, Tablature tab, boolean includeOrnamentation, 
-		Connection connection) {
-//		System.out.println("\r\n>>> TabMapper.map() called");
-
-		Integer[][] btp = tab.getBasicTabSymbolProperties();
-		int numVoices = trans.getNumberOfVoices();
-		int srv = Tablature.SMALLEST_RHYTHMIC_VALUE.getDenom();
-
-		// Get key information
-		List<Integer[]> keyInfo = trans.getKeyInfo();
-		Integer[] firstKey = keyInfo.get(0);
-		int firstKeySig = firstKey[Transcription.KI_KEY]; // num b (<0) / # (>0)
-		int firstMode = firstKey[Transcription.KI_MODE]; // major (0) / minor (1)
-		List<Object> firstGrids = PitchKeyTools.createGrids(firstKeySig, firstMode);
-
-		// Get meter information
-		Timeline tl = tab.getEncoding().getTimeline();
-		List<Integer[]> meterInfo = tab.getMeterInfo();
-
-		// Set ornamentation threshold to the duration value two levels below beat level
-		// n/1: beat level is W; two levels below is Q (RhythmSymbol.MINIM = 24)
-		// n/2: beat level is H; two levels below is E (RhythmSymbol.SEMIMINIM = 12)
-		// n/4: beat level is Q; two levels below is S (RhythmSymbol.FUSA = 6)
-		// n/8: beat level is E; two levels below is T (RhythmSymbol.SEMIFUSA = 3)
-		int ornThreshold = RhythmSymbol.MINIM.getDuration() / meterInfo.get(0)[Transcription.MI_DEN];
-
-		List<Integer[][]> gridAndMask = makeGridAndMask(trans, tab);
-		Integer[][] grid = gridAndMask.get(0); // notes in MIDI
-		Integer[][] mask = gridAndMask.get(1); // notes in tab
-//		System.out.println("G R I D");
-//		Arrays.stream(grid).forEach(in -> System.out.println(Arrays.asList(in)));		
-//		System.out.println("M A S K");	
-//		Arrays.stream(mask).forEach(in -> System.out.println(Arrays.asList(in)));
-		
-		List<List<Double>> voiceLabels = new ArrayList<List<Double>>();
-		List<String> csv = new ArrayList<>();
-		List<Integer> ornamentationInds = new ArrayList<>();
-		List<Integer> repetitionInds = new ArrayList<>();
-		List<Integer> fictaInds = new ArrayList<>();
-		List<Integer> adaptationInds = new ArrayList<>();
-		List<Integer> specialOrnInds = new ArrayList<>();
-		List<Integer> activeVoices = new ArrayList<>();
-		List<Integer> currOrn = new ArrayList<>();
-		int indLastNonOrnChord = -1;
-		List<Integer> pitchesTabLastNonOrnChord = null;
-		List<List<Double>> voiceLabelsLastNonOrnChord = null;
-		boolean lastNonOrnChordContainsTuplet = false;
-		List<Integer> pitchesTabLastNonOrnChordWithTuplet = null;
-		List<List<Double>> voiceLabelsLastNonOrnChordWithTuplet = null;
-		Rational onsetLastOrnChord = null;
-		// For each chord
-		for (int i = 0; i < grid.length; i++) {
-			Integer[] currGrid = grid[i];
-			Integer[] currMask = mask[i];
-
-			// Only if the tablature has a note at this onset time
-			if (currMask[PITCHES_IND] != null) {
-				Rational currOnset = new Rational(currMask[ONSET_IND], SMALLEST_DUR);
-				int currDur = currMask[(PITCHES_IND) + NUM_COURSES];
-				int chordInd = btp[currMask[(PITCHES_IND) + 2*NUM_COURSES]][Tablature.CHORD_SEQ_NUM];
-				String bmp = TimeMeterTools.getMetricPositionAsString(
-					tl.getMetricPosition(currMask[ONSET_IND])
-				);
+	private static List<Object> mapSegment(Transcription trans, Tablature tab, 
+		MappingContext ctx, List<MappingVariant> variants, ChordGrid grid, ChordGrid mask, 
+		List<List<Object>> initialMappings, MappingSnapshot.Checkpoint start, int splitRow, 
+		int endRow, boolean incremental, AtomicBoolean cancelled) {
+		List<List<Object>> results = new ArrayList<>();
+		List<ChordMapper.Sink> sinks = new ArrayList<>();
+		for (int v = 0; v < variants.size(); v++) {
+			results.add(makeResults());
+			sinks.add(collectInto(results.get(v)));
+		}
+		List<MappingSnapshot.Checkpoint> checkpoints = new ArrayList<>();
+		ChordMapper chordMapper = new ChordMapper(trans, tab, ctx, variants, sinks);
+		chordMapper.restore(start, splitRow);
+		for (int i = splitRow + 1; i < endRow; i++) {
+			if (cancelled.get()) {
+				return null;
+			}
+			MappingSnapshot.Checkpoint cp = 
+				mapChord(chordMapper, grid, mask, ctx.getNumVoices(), initialMappings, i, incremental);
+			if (cp != null) {
+				checkpoints.add(cp);
+			}
+		}
+		chordMapper.finish();
+		return Arrays.asList(new Object[]{results, checkpoints});
+	}
 
-				// Get pitches, arranged per voice (low-high), from model; can contain nulls
-				// NB: if there is a voice crossing, the list is not sorted
-				List<Integer> pitchesModel = Arrays.asList(
-					Arrays.copyOfRange(currGrid, PITCHES_IND, PITCHES_IND + numVoices)
-				);
-				// Get pitches and indices, arranged low-high, from tablature; exclude trailing nulls 
-				List<Integer> pitchesTab = Arrays.asList(
-					Arrays.copyOfRange(currMask, PITCHES_IND, PITCHES_IND + NUM_COURSES)
-				);
-				List<Integer> indicesTab = Arrays.asList(
-					Arrays.copyOfRange(currMask, PITCHES_IND + 2*NUM_COURSES, PITCHES_IND + 3*NUM_COURSES));
-				if (pitchesTab.contains(null)) {
-					pitchesTab = pitchesTab.subList(0, pitchesTab.indexOf(null));
-					indicesTab = indicesTab.subList(0, indicesTab.indexOf(null));
-				}
-
-				// If the chord is ornamental: add note index to currOrn and skip iteration.
-				// A chord is ornamental if
-				// a. It is a single onset in the tablature AND
-				// b. Its duration is less than or equal to the ornamentation threshold AND
-				// c. There is no note at the current onset time in the model (i.e., currGrid, 
-				//    has only null values after from bar and onset values)
-				if ((pitchesTab.size() == 1) && (currDur <= ornThreshold) &&
-					Arrays.stream(Arrays.copyOfRange(currGrid, 2, currGrid.length)).allMatch(e -> e == null)) {
-					currOrn.add(indicesTab.get(0));
-					voiceLabels.add(null);
-				}
-				// If the chord is non-ornamental: map
-				else {
-					Integer[] key = keyInfo.size() == 1 ? firstKey : trans.getLocalKeyInfo(currOnset);
-					int keySig = keyInfo.size() == 1 ? firstKeySig : key[Transcription.KI_KEY];
-					int mode = keyInfo.size() == 1 ? firstMode : key[Transcription.KI_MODE];
-					List<Object> grids = keyInfo.size() == 1 ? firstGrids : PitchKeyTools.createGrids(keySig, mode);
-
-					// 1. Do initial mapping (i.e., handle direct matches and ficta)
-					List<Object> initialMapping = mapTabChordToMIDI(
-						pitchesTab, indicesTab, pitchesModel, keySig, grids, numVoices
-					);
-					List<List<Integer>> initialIntLists = (List<List<Integer>>) initialMapping.get(0);
-					List<Integer> pitchesInMIDI = initialIntLists.get(0);
-					List<Integer> indPitchesInMIDI = initialIntLists.get(1);
-					List<Integer> pitchesNotInMIDI = initialIntLists.get(2);
-					List<Integer> indPitchesNotInMIDI = initialIntLists.get(3);
-					List<Integer> nonMappedSNUPitches = initialIntLists.get(4);
-					List<Integer> mappedVoices = initialIntLists.get(5);
-					List<Integer> currActiveVoices = initialIntLists.get(6);
-					List<Integer> extendedSNUVoices = initialIntLists.get(7);
-					List<Integer> currFictaInds = initialIntLists.get(8);
-					List<Integer> pitchesNotInMIDIOriginal = new ArrayList<Integer>(pitchesNotInMIDI);
-					List<List<Double>> voiceLabelsCurrChord = (List<List<Double>>) initialMapping.get(1);
-
-					// Update activeVoices if it does not yet contain all voices
-					if (activeVoices.size() < numVoices) {
-						currActiveVoices.forEach(v -> { if (!activeVoices.contains(v)) activeVoices.add(v); });
-						Collections.sort(activeVoices);
-						Collections.reverse(activeVoices);
-					}
 
-					if (indPitchesInMIDI.size() != 0) {
-						// Make CSV entries for direct matches and ficta
-						for (int j = 0; j < indPitchesInMIDI.size(); j++) {
-							int ind = indPitchesInMIDI.get(j);
-							int pitch = btp[ind][Tablature.PITCH];
-							Rational dur = new Rational(btp[ind][Tablature.MIN_DURATION], srv);
-							dur.reduce();
-							Rational onset = new Rational(btp[ind][Tablature.ONSET_TIME], srv);
-							onset.reduce();
-							List<Integer> voicesList = LabelTools.convertIntoListOfVoices(
-								voiceLabelsCurrChord.get(indicesTab.indexOf(ind))
-							);
-							String voices = voicesList.stream()
-								.map(String::valueOf)
-								.collect(Collectors.joining(" and "));
-							csv.add(String.join(",", Arrays.stream(new Object[]{
-								ind, pitch, dur, onset, 
-								chordInd, bmp, voices, "n/a", 
-								currFictaInds.contains(ind) ? "ficta" : "match"})
-								.map(String::valueOf).toArray(String[]::new)
-							));
-						}
+	/**
+	 * Returns a list containing an empty list of voice labels, empty mismatch indices, and 
+	 * empty rows of the mapping CSV.
+	 */
+	private static List<Object> makeResults() {
+		return Arrays.asList(new Object[]{
+			new ArrayList<List<Double>>(), makeMismatchInds(), new MappingRecords()
+		});
+	}
 
-						if (currFictaInds.size() != 0) {
-//							System.out.println(pitchesInMIDI);
-//							System.out.println(indPitchesInMIDI);
-//							System.out.println(currFictaInds);
-//							if (Collections.frequency(currFictaInds, 89) == 2) {
-//								currFictaInds = Arrays.asList(89);
-//							}
-//							System.out.println(currFictaInds);
-//							for (int j = 0; j < currFictaInds.size(); j++) {
-//								int ind = currFictaInds.get(j);
-//								int pitch = btp[ind][Tablature.PITCH];
-//
-//								// Get voices for ficta note
-//								int voice = -1;
-//								String pNameTab = ((String[]) PitchKeyTools.spellPitch(
-//									pitch, keySig, grids, null).get(0)
-//								)[0];
-//								for (int k = 0; k < pitchesModel.size(); k++) {
-//									if (pitchesModel.get(k) != null) {
-//										String pNameModel = ((String[]) PitchKeyTools.spellPitch(
-//											pitchesModel.get(k), keySig, grids, null).get(0)
-//										)[0];
-//										if (pNameTab.equals(pNameModel)) {
-//											voice = (numVoices-1) - k;
-//											break;
-//										}
-//									}
-//								}
-//
-//								csv.add(String.join(",", Arrays.stream(new Object[]{
-//									ind, pitch, chordInd, bmpStr, voice, "n/a", "ficta"})
-//									.map(String::valueOf).toArray(String[]::new)
-//								));
-//							}
-
-							// Add to lists
-							fictaInds.addAll(currFictaInds);
-							if (pitchesTab.size() == 1 && currDur <= ornThreshold) {
-								specialOrnInds.add(currFictaInds.get(0));
-							}
-						}
-					}
 
-					// 2. Complete mapping (i.e., handle repetitions and adaptations)
-					if (voiceLabelsCurrChord.contains(null)) {
-						List<Integer[]> cheapestMappingTotal = null;
-
-						// In case of possible consecutive tupletChord
-						List<Integer> prevPitches = null;
-						List<List<Double>> prevVoiceLabels = null;
-						if (lastNonOrnChordContainsTuplet && Arrays.asList(
-							new Rational(1, 1), new Rational(1, 2), new Rational(1, 4)).contains(
-							currOnset.sub(onsetLastOrnChord))) { // TODO why these values?
-							prevPitches = pitchesTabLastNonOrnChordWithTuplet;
-							prevVoiceLabels = voiceLabelsLastNonOrnChordWithTuplet;
-						}
+	// Appends the given results (see makeResults()) of a later part of the tablature
+	private static void appendResults(List<Object> to, List<Object> from) {
+		((List<List<Double>>) to.get(0)).addAll((List<List<Double>>) from.get(0));
+		List<List<Integer>> mismatchInds = (List<List<Integer>>) to.get(1);
+		for (int j = 0; j < mismatchInds.size(); j++) {
+			if (mismatchInds.get(j) != null) {
+				mismatchInds.get(j).addAll(((List<List<Integer>>) from.get(1)).get(j));
+			}
+		}
+		((MappingRecords) to.get(2)).addRows(
+			(MappingRecords) from.get(2), 0, Integer.MAX_VALUE, 0, 0
+		);
+	}
 
-						List<Object> completedMapping = mapPitchesNotInMIDI(
-							pitchesTab, pitchesModel, pitchesNotInMIDI, indPitchesNotInMIDI, 
-							pitchesNotInMIDIOriginal, nonMappedSNUPitches, extendedSNUVoices, 
-							mappedVoices, voiceLabelsCurrChord, keyInfo, currOnset, trans, 
-							prevPitches, prevVoiceLabels
-						);
-						List<List<Integer>> completedIntLists = (List<List<Integer>>) completedMapping.get(0);
-						pitchesNotInMIDI = completedIntLists.get(0);
-						indPitchesNotInMIDI = completedIntLists.get(1);
-						pitchesNotInMIDIOriginal = completedIntLists.get(2);
-						List<Integer> currRepetitionInds = completedIntLists.get(3);
-						List<Integer> currAdaptationInds = completedIntLists.get(4);
-						voiceLabelsCurrChord = (List<List<Double>>) completedMapping.get(1);
-						cheapestMappingTotal = (List<Integer[]>) completedMapping.get(2);
-
-						// Make CSV entries for repetitions and adaptations
-						for (int j = 0; j < cheapestMappingTotal.size(); j++) {
-							Integer[] in = cheapestMappingTotal.get(j);
-							int pitch = in[1];
-							int ind = indPitchesNotInMIDI.get(pitchesNotInMIDIOriginal.indexOf(pitch));
-							// In case of second unison pitch
-							if (Collections.frequency(pitchesNotInMIDIOriginal, pitch) == 2 &&
-								ToolBox.getItemsAtIndex(cheapestMappingTotal, 1).lastIndexOf(pitch) == j) {
-								ind = indPitchesNotInMIDI.get(pitchesNotInMIDIOriginal.lastIndexOf(pitch));
-							}
-							Rational dur = new Rational(btp[ind][Tablature.MIN_DURATION], srv);
-							dur.reduce();
-							Rational onset = new Rational(btp[ind][Tablature.ONSET_TIME], srv);
-							onset.reduce();
-							int voice = in[0];
-							int cost = in[2];
-							csv.add(String.join(",", Arrays.stream(new Object[]{
-								ind, pitch, dur, onset, 
-								chordInd, bmp, voice, cost, 
-								currRepetitionInds.contains(ind) ? "repetition" : "adaptation"})
-								.map(String::valueOf).toArray(String[]::new)
-							));
-						}
 
-						// Add to lists
-						repetitionInds.addAll(currRepetitionInds);
-						adaptationInds.addAll(currAdaptationInds);
-						if (pitchesTab.size() == 1 && currDur <= ornThreshold) {
-							specialOrnInds.add(
-								currRepetitionInds.size() != 0 ? currRepetitionInds.get(0) : currAdaptationInds.get(0)
-							);
-						}
+	/**
+	 * Maps the given tablature onto the given model with a {@link StreamingMapper}, and 
+	 * writes the mapping CSV while doing so, so that its rows are not kept.
+	 * 
+	 * @param trans
+	 * @param tab
+	 * @param ctx
+	 * @param includeOrnamentation
+	 * @param connection
+	 * @param csvFile
+	 * @param pieceInd
+	 * @param writer
+	 * @return As {@link #map}, but without the rows of the mapping CSV (element 2 is 
+	 *         <code>null</code>); or <code>null</code> if the CSV could not be written.
+	 */
+	private static List<Object> streamMapping(Transcription trans, Tablature tab, 
+		MappingContext ctx, boolean includeOrnamentation, Connection connection, File csvFile, 
+		int pieceInd, OutputWriter writer) {
+		List<List<Double>> voiceLabels = new ArrayList<>();
+		List<List<Integer>> mismatchInds = makeMismatchInds();
+		CompletableFuture<Void> written = writer.stream(pieceInd, csvFile, w -> {
+			MappingRecords.writeHeader(w);
+			try {
+				StreamingMapper.map(trans, tab, ctx, includeOrnamentation, connection, 
+					new ChordMapper.Sink() {
+					@Override
+					public void voiceLabel(int note, List<Double> voiceLabel) {
+						voiceLabels.add(voiceLabel);
 					}
-					voiceLabels.addAll(voiceLabelsCurrChord);
-
-					// 3. Map any preceding ornamental notes still unassigned
-					if (!currOrn.isEmpty()) {						
-						// Add the ornamental notes to the voice going with the closest pitch
-						if (includeOrnamentation) {
-							List<Integer> ornPitches = new ArrayList<>();
-							currOrn.forEach(ind -> ornPitches.add(btp[ind][Tablature.PITCH]));
-							int closestVoice = mapPrecedingOrnamentalNotes(
-								ornPitches, pitchesTab, voiceLabelsCurrChord, i, indLastNonOrnChord, 
-								pitchesTabLastNonOrnChord, voiceLabelsLastNonOrnChord, connection
-							);
-
-							// Make CSV entries for ornamentations
-							for (int ind : currOrn) {
-								int pitch = btp[ind][Tablature.PITCH];
-								Rational dur = new Rational(btp[ind][Tablature.MIN_DURATION], srv);
-								dur.reduce();
-								Rational onset = new Rational(btp[ind][Tablature.ONSET_TIME], srv);
-								onset.reduce();
-								int currChordInd = btp[ind][Tablature.CHORD_SEQ_NUM]; 
-								String currBmp = TimeMeterTools.getMetricPositionAsString(
-									tl.getMetricPosition(btp[ind][Tablature.ONSET_TIME])
-								);
-								csv.add(String.join(",", Arrays.stream(new Object[]{
-									ind, pitch, dur, onset, 
-									currChordInd, currBmp, closestVoice, "n/a", 
-									"ornamentation"})
-									.map(String::valueOf).toArray(String[]::new)
-								));
-							}
-
-							// Replace voiceLabels in currOrn
-							List<Double> vl = LabelTools.createVoiceLabel(
-								new Integer[]{closestVoice}, Transcription.MAX_NUM_VOICES
-							);
-							currOrn.forEach(ind -> voiceLabels.set(ind, vl));
+					@Override
+					public void records(MappingRecords rows) {
+						try {
+							rows.writeRows(w);
+						} catch (IOException ex) {
+							throw new UncheckedIOException(ex);
 						}
-						// Add to list (also if includeOrnamentation == false)
-						ornamentationInds.addAll(currOrn);
-						currOrn.clear();
 					}
-
-					// 4. Set information needed for assignment of any ornamental notes or 
-					// consecutive tuplet chords
-					indLastNonOrnChord = i;
-					pitchesTabLastNonOrnChord = pitchesTab;
-					voiceLabelsLastNonOrnChord = voiceLabelsCurrChord;
-					if (pitchesTab.size() > 1) {
-						for (List<Double> l : voiceLabelsCurrChord) {
-							if (Collections.frequency(voiceLabelsCurrChord, l) > 1) {
-								lastNonOrnChordContainsTuplet = true;
-								pitchesTabLastNonOrnChordWithTuplet = pitchesTab;
-								voiceLabelsLastNonOrnChordWithTuplet = voiceLabelsCurrChord;
-								onsetLastOrnChord = currOnset;
-								break;
-							}
-						}
+					@Override
+					public void mismatch(int category, int note) {
+						mismatchInds.get(category).add(note);
 					}
-				}
+				});
+			} catch (UncheckedIOException ex) {
+				throw ex.getCause();
 			}
+		});
+		if (written.isCompletedExceptionally()) {
+			return null;
 		}
-		csv = ToolBox.bubbleSortStringList(csv, ",");
-		csv.add(0, "note,pitch,duration,onset,chord,bar,mapped voice,cost,category");
+		return Arrays.asList(new Object[]{voiceLabels, mismatchInds, null, null});
+	}
 
+
+	private static List<List<Integer>> makeMismatchInds() {
 		List<List<Integer>> mismatchInds = new ArrayList<>();
 		mismatchInds.add(Transcription.INCORRECT_IND, null);
-		mismatchInds.add(Transcription.ORNAMENTATION_IND, ornamentationInds);
-		mismatchInds.add(Transcription.REPETITION_IND, repetitionInds);
-		mismatchInds.add(Transcription.FICTA_IND, fictaInds);
-		mismatchInds.add(Transcription.ADAPTATION_IND, adaptationInds);
-		mismatchInds.add(Transcription.SPECIAL_ORN_IND, specialOrnInds);
+		mismatchInds.add(Transcription.ORNAMENTATION_IND, new ArrayList<>());
+		mismatchInds.add(Transcription.REPETITION_IND, new ArrayList<>());
+		mismatchInds.add(Transcription.FICTA_IND, new ArrayList<>());
+		mismatchInds.add(Transcription.ADAPTATION_IND, new ArrayList<>());
+		mismatchInds.add(Transcription.SPECIAL_ORN_IND, new ArrayList<>());
+		return mismatchInds;
+	}
 
-		return Arrays.asList(new Object[]{voiceLabels, mismatchInds, csv});
+
+	/**
+	 * Returns a sink that adds the results it receives to the given results (see 
+	 * {@link #makeResults}).
+	 */
+	private static ChordMapper.Sink collectInto(List<Object> results) {
+		List<List<Double>> voiceLabels = (List<List<Double>>) results.get(0);
+		List<List<Integer>> mismatchInds = (List<List<Integer>>) results.get(1);
+		MappingRecords records = (MappingRecords) results.get(2);
+		return new ChordMapper.Sink() {
+			@Override
+			public void voiceLabel(int note, List<Double> voiceLabel) {
+				voiceLabels.add(voiceLabel);
+			}
+			@Override
+			public void records(MappingRecords rows) {
+				records.addRows(rows, 0, Integer.MAX_VALUE, 0, 0);
+			}
+			@Override
+			public void mismatch(int category, int note) {
+				mismatchInds.get(category).add(note);
+			}
+		};
 	}
 
 
@@ -1106,8 +2217,20 @@ public class TabMapper {
 	 * @param tab
 	 * @return
 	 */
-	private static List<Integer[][]> makeGridAndMask(Transcription trans, Tablature tab) {
-		Integer[][] bnp = trans.getBasicNoteProperties();
+	static List<ChordGrid> makeGridAndMask(Transcription trans, Tablature tab) {
+		return makeGridAndMask(ModelRegistry.Model.of(trans), tab);
+	}
+
+
+	/**
+	 * Returns grid and mask, made from the (possibly shared) structures of the given model.
+	 * 
+	 * @param model
+	 * @param tab
+	 * @return
+	 */
+	static List<ChordGrid> makeGridAndMask(ModelRegistry.Model model, Tablature tab) {
+		Integer[][] bnp = model.bnp;
 		Integer[][] btp = tab.getBasicTabSymbolProperties();
 		Timeline tl = tab.getEncoding().getTimeline();
 
@@ -1130,8 +2253,10 @@ public class TabMapper {
 		//               if not (this can occur in the Transcription only), the actual onset 
 		//               time rounded to the closest multiple of 1/SRV
 		List<Rational[]> allOnsetTimes = new ArrayList<>();
+		// The rounded onset times added so far, as multiples of smallestDur 
+		Set<Integer> allOnsetTimesRoundedTicks = new HashSet<>();
 		// a. Get all onset times in the Transcription
-		for (Rational r : trans.getMetricPositionsChords()) {
+		for (Rational r : model.metricPositionsChords) {
 			// If the onset is not a multiple of smallest dur, it is an imprecise triplet 
 			// onset that must rounded to the nearest triplet value
 			Rational rounded = r;
@@ -1139,61 +2264,67 @@ public class TabMapper {
 				rounded = findClosestMultiple(r, new Rational(1, smallestDur));
 			}
 			allOnsetTimes.add(new Rational[]{r, rounded});
+			allOnsetTimesRoundedTicks.add(toTicks(rounded, smallestDur));
 		}
 		// b. Get all onset times in the Tablature
 		for (Rational r : ToolBox.getItemsAtIndex(tab.getMetricTimePerChord(false), 0)) {
 //		for (Rational r : tab.getAllOnsetTimes()) {
 			// Add only if it is not already in the (rounded) onset times in the Transcription
-			if (!ToolBox.getItemsAtIndexRational(allOnsetTimes, 1).contains(r)) {
+			if (allOnsetTimesRoundedTicks.add(toTicks(r, smallestDur))) {
 				allOnsetTimes.add(new Rational[]{r, r});
 			}
 		}
 		// Sort by rounded
 		ToolBox.sortByRational(allOnsetTimes, 1);
 
-		// Make grid; initialise with all values set to null  
-		NotationSystem score = trans.getScorePiece().getScore();
-		int numVoices = score.size();
-		Integer[][] grid = new Integer[allOnsetTimes.size()][PITCHES_IND + 2*numVoices];
+		// Index the onset times. The grid row of a note in the Transcription is found through 
+		// its actual onset time; that of a note in the Tablature through its (rounded) onset 
+		// time in ticks, using binary search on the sorted onsetTicks. In both cases, the first 
+		// row with the onset time is the one used 
+		Map<Long, Integer> rowIndsByActualOnset = new HashMap<>();
+		int[] onsetTicks = new int[allOnsetTimes.size()];
+		for (int i = 0; i < allOnsetTimes.size(); i++) {
+			rowIndsByActualOnset.putIfAbsent(toKey(allOnsetTimes.get(i)[0]), i);
+			onsetTicks[i] = toTicks(allOnsetTimes.get(i)[1], smallestDur);
+		}
+
+		// Make grid; initialise with all pitches and durations set to empty  
+		int numVoices = model.getNumVoices();
+		ChordGrid grid = new ChordGrid(allOnsetTimes.size(), numVoices, false);
 
 		// Set bars and onsets
 		for (int i = 0; i < allOnsetTimes.size(); i++) {
 			Rational onsetFracActual = allOnsetTimes.get(i)[0];
-			Rational onsetFracRounded = allOnsetTimes.get(i)[1];
-			grid[i][BAR_IND] = 
-				tl.getMetricPosition((int) onsetFracActual.mul(Tablature.SRV_DEN).toDouble())[0].getNumer();
+			grid.setBar(i, 
+				tl.getMetricPosition((int) onsetFracActual.mul(Tablature.SRV_DEN).toDouble())[0].getNumer());
 //				Utils.getMetricPosition(onsetFracActual, tab.getMeterInfo())[0].getNumer();
 
 			// Set onset, using the rounded value (which is only different from the actual 
 			// value if rounding was actually necessary)
-			grid[i][ONSET_IND] = onsetFracRounded.mul(smallestDur).getNumer(); // denominator is always 1 because of multiplication with smallest rhythmic value
+			grid.setOnset(i, onsetTicks[i]);
 		}
 		// Set pitches and durations
 		for (int i = numVoices - 1; i >= 0; i--) {
-			NotationVoice nv = score.get(i).get(0);
-			for (NotationChord nc : nv) {
-				Note n = nc.get(0);
-				List<Rational> allOnsetTimesActual = 
-					ToolBox.getItemsAtIndexRational(allOnsetTimes, 0);
-				int gridRowInd = allOnsetTimesActual.indexOf(n.getMetricTime()); 
+			for (int k = 0; k < model.onsets[i].length; k++) {
+				int gridRowInd = rowIndsByActualOnset.get(toKey(model.onsets[i][k])); 
 				// Add pitch at index of voice i
-				grid[gridRowInd][PITCHES_IND + ((numVoices-1)-i)] = n.getMidiPitch();
+				grid.setPitch(gridRowInd, (numVoices-1)-i, model.pitches[i][k]);
 				// Add duration at index of voice i
-				grid[gridRowInd][PITCHES_IND + numVoices + ((numVoices-1)-i)] = 
-					n.getMetricDuration().mul(smallestDur).getNumer(); // denominator is always 1 because of multiplication with smallest rhythmic value
+				grid.setDuration(gridRowInd, (numVoices-1)-i, 
+					model.durations[i][k].mul(smallestDur).getNumer()); // denominator is always 1 because of multiplication with smallest rhythmic value
 			}
 		}
 					
-		// Make mask; initialise with all values set to null
-		Integer[][] mask = new Integer[allOnsetTimes.size()][PITCHES_IND + 3*NUM_COURSES];
+		// Make mask; initialise with all pitches, durations, and indices set to empty
+		ChordGrid mask = new ChordGrid(allOnsetTimes.size(), NUM_COURSES, true);
 		
 		// Set bars and onsets
 		for (int i = 0; i < allOnsetTimes.size(); i++) {
 			Rational onsetFrac = allOnsetTimes.get(i)[1];
-			mask[i][BAR_IND] = 
-				tl.getMetricPosition((int) onsetFrac.mul(Tablature.SRV_DEN).toDouble())[0].getNumer();
+			mask.setBar(i, 
+				tl.getMetricPosition((int) onsetFrac.mul(Tablature.SRV_DEN).toDouble())[0].getNumer());
 //				Utils.getMetricPosition(onsetFrac, tab.getMeterInfo())[0].getNumer();
-			mask[i][ONSET_IND] = onsetFrac.mul(smallestDur).getNumer(); // denominator is always 1 because of multiplication with smallest rhythmic value	
+			mask.setOnset(i, onsetTicks[i]);
 		}
 		// Set pitches and durations
 		for (int i = 0; i < btp.length; i++) {
@@ -1206,18 +2337,16 @@ public class TabMapper {
 //			Rational pos = posInBar[1];
 //			pos.reduce();
 //			System.out.println("i = " + i + "; bar " + bar + "; pos " + pos);
-			List<Rational> allOnsetTimesRounded = 
-				ToolBox.getItemsAtIndexRational(allOnsetTimes, 1);
-			Integer[] currRow = mask[allOnsetTimesRounded.indexOf(new Rational(onset, smallestDur))];
+			int currRowInd = getFirstRowInd(onsetTicks, onset);
 			int chordSize = btp[i][Tablature.CHORD_SIZE_AS_NUM_ONSETS];
 			for (int j = i; j < i + chordSize; j++) {
-				currRow[PITCHES_IND + (j-i)] = btp[j][Tablature.PITCH];
-				currRow[PITCHES_IND + NUM_COURSES + (j-i)] = btp[j][Tablature.MIN_DURATION];
-				currRow[PITCHES_IND + 2*NUM_COURSES + (j-i)] = j;
+				mask.setPitch(currRowInd, j-i, btp[j][Tablature.PITCH]);
+				mask.setDuration(currRowInd, j-i, btp[j][Tablature.MIN_DURATION]);
+				mask.setTabIndex(currRowInd, j-i, j);
 			}
 			i += (chordSize-1);
 		}
-		return Arrays.asList(new Integer[][][]{grid, mask});
+		return Arrays.asList(new ChordGrid[]{grid, mask});
 	}
 
 
@@ -1230,8 +2359,8 @@ public class TabMapper {
 	 * @param indicesTab
 	 * @param pitchesGT
 	 * @param keySig
-	 * @param grids
-	 * @param numVoices
+	 * @param mode
+	 * @param ctx
 	 * 
 	 * @return A {@code <List>} containing
 	 * <ul>
@@ -1248,13 +2377,15 @@ public class TabMapper {
 	 * <li>As element 8: the indices of any pitches flagged as ficta.</li>    
 	 * </ul>
 	 * </li>
-	 * <li>As element 1: a list of voice labels the size of pitchesTab, containing the label for each 
-	 *                   mapped pitch and <code>null</code> for each unmapped pitch.</li>
+	 * <li>As element 1: an int[] of voice masks the size of pitchesTab, containing the 
+	 *                   {@link VoiceMask} for each mapped pitch and <code>VoiceMask.NONE</code> 
+	 *                   for each unmapped pitch.</li>
 	 * </ul>
 	 */
-	private static List<Object> mapTabChordToMIDI(List<Integer> pitchesTab, List<Integer> indicesTab, 
-		List<Integer> pitchesGT, int keySig, List<Object> grids, int numVoices) {
-		List<Double> emptyVoiceLabel = makeEmptyVoiceLabel(numVoices);
+	static List<Object> mapTabChordToMIDI(List<Integer> pitchesTab, List<Integer> indicesTab, 
+		List<Integer> pitchesGT, int keySig, int mode, MappingContext ctx) {
+		int numVoices = ctx.getNumVoices();
+		PitchSpellingCache spelling = PitchSpellingCache.forKey(keySig, mode);
 
 		List<Integer> pitchesInMIDI = new ArrayList<>();
 		List<Integer> indPitchesInMIDI = new ArrayList<>();
@@ -1265,18 +2396,15 @@ public class TabMapper {
 		List<Integer> activeVoices = new ArrayList<>();
 		List<Integer> extendedSNUVoices = new ArrayList<>();
 		List<Integer> fictaInds = new ArrayList<>();
-		List<List<Double>> voiceLabelsChord = new ArrayList<>();
+		int[] voiceMasksChord = new int[pitchesTab.size()];
 
 		for (int i = 0; i < pitchesTab.size(); i++) {
 			int pitchInTab = pitchesTab.get(i);
-			String[] paTab = (String[]) PitchKeyTools.spellPitch(pitchInTab, keySig, grids, null, -1).get(0);
-			String pNameTab = paTab[0];
-			int octTab = PitchKeyTools.getOctave(pitchInTab);
 			int pitchInd = indicesTab.get(i);
 
-			List<Double> currVoiceLabel = new ArrayList<Double>(emptyVoiceLabel);
+			int currVoiceMask = VoiceMask.NONE;
 
-			// Map the pitch to (a) voice(s) and create the voice label
+			// Map the pitch to (a) voice(s) and create the voice mask
 			// case		notes tab 	notes MIDI			
 			// (a)		1			0		--> unmapped pitch
 			// (b)		1			1		--> mapped pitch
@@ -1291,10 +2419,7 @@ public class TabMapper {
 			for (int j = 0; j < pitchesGT.size(); j++) {
 				if (pitchesGT.get(j) != null) {
 					int pitchInGT = pitchesGT.get(j);
-					String[] paGT = (String[]) PitchKeyTools.spellPitch(pitchInGT, keySig, grids, null, -1).get(0);
-					String pNameGT = paGT[0];
-					int octGT = PitchKeyTools.getOctave(pitchInGT);
-					boolean isFicta = (pitchInGT != pitchInTab && (pNameGT.equals(pNameTab) && octGT == octTab));
+					boolean isFicta = spelling.isFicta(pitchInGT, pitchInTab, ctx);
 					if (pitchInGT == pitchInTab || isFicta) {
 						if (isFicta) {
 							if (!fictaInds.contains(pitchInd)) { // added 28.08.2025 to avoid inds of SNU ficta being added twice
@@ -1315,13 +2440,13 @@ public class TabMapper {
 	
 						// (b) Mapped pitch (non-SNU and non-unison note)
 						if (freqInTab == 1 && freqInGT == 1) {
-							currVoiceLabel.set(voice, 1.0);
+							currVoiceMask |= VoiceMask.of(voice);
 						}
 						// (c) Mapped SNU
 						else if (freqInTab == 1 && freqInGT == 2) {
 							// If there is space to assign the SNU note to two voices: set voice
 							if (pitchesTab.size() < numVoices) {
-								currVoiceLabel.set(voice, 1.0);
+								currVoiceMask |= VoiceMask.of(voice);
 							}
 							// If there is no space to assign the SNU note to two voices, it 'downgrades'
 							// from being a SNU note to being a regular note
@@ -1345,7 +2470,7 @@ public class TabMapper {
 							// (turns it from a SNU note into a regular note)
 							else {
 								if (pitchesGT.indexOf(pitchInGT) == j) {
-									currVoiceLabel.set(voice, 1.0);
+									currVoiceMask |= VoiceMask.of(voice);
 								}
 								else {
 //									nonMappedSNUPitches.add(pitchInTab);
@@ -1365,13 +2490,13 @@ public class TabMapper {
 						// (d) Extended SNU (a single note assigned to more than two voices)
 						// NB It is assumed that there will always be room for at least one SNU
 						else if (freqInTab == 1 && freqInGT > 2) {
-							currVoiceLabel.set(voice, 1.0);
+							currVoiceMask |= VoiceMask.of(voice);
 						}
 						// (f) Half-mapped unison
 						else if (freqInTab == 2 && freqInGT == 1 && byrdAfterCorrectionHalfMapped) {
 							// Add only if first unison note 
 							if (!activeVoices.contains(voice)) {
-								currVoiceLabel.set(voice, 1.0);
+								currVoiceMask |= VoiceMask.of(voice);
 							}
 						}
 						// (g) Mapped unison 
@@ -1381,7 +2506,7 @@ public class TabMapper {
 								j == pitchesGT.lastIndexOf(pitchInGT) && i == pitchesTab.lastIndexOf(pitchInTab)) { // 09.05.2024
 //							if (j == pitchesGT.indexOf(pitchInTab) && i == pitchesTab.indexOf(pitchInTab) || 
 //									j == pitchesGT.lastIndexOf(pitchInTab) && i == pitchesTab.lastIndexOf(pitchInTab)) { // 09.05.2024
-								currVoiceLabel.set(voice, 1.0);
+								currVoiceMask |= VoiceMask.of(voice);
 							}
 						}
 						// (h) Extended unison (unison + SNU; the second unison note is a SNU)
@@ -1403,49 +2528,44 @@ public class TabMapper {
 								j == secondInd && i == pitchesTab.lastIndexOf(pitchInTab)) { // 09.05.2024
 //							if (j == pitchesGT.indexOf(pitchInTab) && i == pitchesTab.indexOf(pitchInTab) || 
 //									j == secondInd && i == pitchesTab.lastIndexOf(pitchInTab)) { // 09.05.2024
-								currVoiceLabel.set(voice, 1.0);
+								currVoiceMask |= VoiceMask.of(voice);
 							}
 							// Second unison note: add as SNU
 							if (i == pitchesTab.lastIndexOf(pitchInTab) && j == pitchesGT.lastIndexOf(pitchInGT)) { // 09.05.2024
 //							if (i == pitchesTab.lastIndexOf(pitchInTab) && j == pitchesGT.lastIndexOf(pitchInTab)) { // 09.05.2024
-								currVoiceLabel.set(voice, 1.0);
+								currVoiceMask |= VoiceMask.of(voice);
 							}
 						}
 	
 						// If the voice has been set: add to mapped voices
-						if (currVoiceLabel.get(voice) != 0.0 && !mappedVoices.contains(voice)) {
+						if (VoiceMask.contains(currVoiceMask, voice) && !mappedVoices.contains(voice)) {
 							mappedVoices.add(voice);
 						}
 						// Add to active voices if not done yet
-						if (currVoiceLabel.get(voice) != 0.0 && !activeVoices.contains(voice)) {
+						if (VoiceMask.contains(currVoiceMask, voice) && !activeVoices.contains(voice)) {
 							activeVoices.add(voice);
 						}
 					}
 				}
 			}
-			// Add the voice label to voiceLabelsCurrChord
-			if (!currVoiceLabel.equals(emptyVoiceLabel)) {
-				voiceLabelsChord.add(currVoiceLabel);
+			// Add the voice mask to voiceMasksChord
+			voiceMasksChord[i] = currVoiceMask;
+			if (currVoiceMask != VoiceMask.NONE) {
 				pitchesInMIDI.add(pitchInTab);
 				indPitchesInMIDI.add(pitchInd);
 			}
 			else {
-				voiceLabelsChord.add(null);
 				pitchesNotInMIDI.add(pitchInTab);
 				indPitchesNotInMIDI.add(pitchInd);
 			}
 		}
 
-		// If voiceLabelsChord contains an item with more than two 1s, it represents an 
+		// If voiceMasksChord contains an item with more than two voices, it represents an 
 		// extended SNU
 		// NB It is assumed that there will only be one such item
-		for (List<Double> l : voiceLabelsChord) {
-			if (l != null && Collections.frequency(l, 1.0) > 2) {
-				for (int j = 0; j < l.size(); j++) {
-					if (l.get(j) == 1.0) {
-						extendedSNUVoices.add(j);
-					}
-				}
+		for (int m : voiceMasksChord) {
+			if (VoiceMask.size(m) > 2) {
+				extendedSNUVoices.addAll(VoiceMask.toVoices(m));
 			}
 		}
 
@@ -1459,7 +2579,7 @@ public class TabMapper {
 		intLists.add(activeVoices);
 		intLists.add(extendedSNUVoices);
 		intLists.add(fictaInds);
-		return Arrays.asList(new Object[]{intLists, voiceLabelsChord});
+		return Arrays.asList(new Object[]{intLists, voiceMasksChord});
 	}
 
 
@@ -1475,14 +2595,16 @@ public class TabMapper {
 	 * @param nonMappedSNUPitches
 	 * @param extendedSNUVoices
 	 * @param mappedVoices
-	 * @param voiceLabelsCurrChord Returned in adapted form
+	 * @param voiceMasksCurrChord The {@link VoiceMask}s; returned in adapted form
 	 * @param keyInfo
 	 * @param currOnset
-	 * @param trans
+	 * @param pieceName Only used in log messages.
 	 * @param prevPitches Non-<code>null</code> when the chord is possibly a consecutive
 	 *                    tuplet chord.
-	 * @param prevVoiceLabels Non-<code>null</code> when the chord is possibly a consecutive
+	 * @param prevVoiceMasks Non-<code>null</code> when the chord is possibly a consecutive
 	 *                        tuplet chord.
+	 * @param lastPitchTracker Advanced to currOnset.
+	 * @param ctx
 	 * @return A list containing
 	 * <ul>
 	 * <li>As element 0: a list of lists, containing
@@ -1494,8 +2616,7 @@ public class TabMapper {
 	 *               <li>As element 4: the indices of any pitches flagged as other.</li>
 	 * </ul>
 	 * </li>
-	 * <li>As element 1: a list of voice labels the size of pitchesTab, containing the label for each 
-	 *                   mapped pitch.</li>
+	 * <li>As element 1: the voice masks, containing the mask for each mapped pitch.</li>
 	 * <li>As element 2: a list containing, for each tab pitch not in the MIDI
 	 * <ul>
 	 *               <li>As element 0: the voice it has been assigned to.</li>
@@ -1508,19 +2629,17 @@ public class TabMapper {
 	static List<Object> mapPitchesNotInMIDI(List<Integer> pitchesTab, List<Integer> pitchesGT,
 		List<Integer> pitchesNotInMIDI, List<Integer> indPitchesNotInMIDI,
 		List<Integer> pitchesNotInMIDIOriginal, List<Integer> nonMappedSNUPitches,
-		List<Integer> extendedSNUVoices, List<Integer> mappedVoices, List<List<Double>> 
-		voiceLabelsCurrChord, List<Integer[]> keyInfo, Rational currOnset, Transcription trans,
-		List<Integer> prevPitches, List<List<Double>> prevVoiceLabels){
+		List<Integer> extendedSNUVoices, List<Integer> mappedVoices, int[] voiceMasksCurrChord, 
+		List<Integer[]> keyInfo, Rational currOnset, String pieceName,
+		List<Integer> prevPitches, int[] prevVoiceMasks, 
+		LastPitchTracker lastPitchTracker, MappingContext ctx){
 
-		int mnv = Transcription.MAX_NUM_VOICES;
-		int numVoices = trans.getNumberOfVoices();
+		int numVoices = ctx.getNumVoices();
 		List<Integer> allVoices = 
 			IntStream.rangeClosed(0, numVoices-1).boxed().collect(Collectors.toList());
 		int numVoicesMappedOnto = 0;
-		for (List<Double> l: voiceLabelsCurrChord) {
-			if (l != null) {
-				numVoicesMappedOnto += (Collections.frequency(l, 1.0));
-			}
+		for (int m : voiceMasksCurrChord) {
+			numVoicesMappedOnto += VoiceMask.size(m);
 		}
 		
 //l		System.out.println("* * * * * * * * * *");
@@ -1535,12 +2654,6 @@ public class TabMapper {
 //l		System.out.println("voiceLabelsCurrChord " + voiceLabelsCurrChord);
 //l		System.out.println("* * * * * * * * * *");
 
-		Rational first = new Rational(
-			trans.getBasicNoteProperties()[0][Transcription.ONSET_TIME_NUMER],
-			trans.getBasicNoteProperties()[0][Transcription.ONSET_TIME_DENOM]
-		);
-		boolean isFirstChord = first.equals(currOnset);
-
 //		// Assume one key for the whole piece
 //		Integer[] key = keyInfo.get(0); 
 //		int keySig = key[Transcription.KI_KEY]; // num b (<0) / # (>0)
@@ -1586,7 +2699,7 @@ public class TabMapper {
 			// 2. For each available voice, get the pitch of the last note before currOnset, 
 			// and store voice and pitch together
 			List<Integer[]> lastPitchInAvailableVoices = 
-				getLastPitchInVoices(availableVoices, numVoices, currOnset, trans);
+				lastPitchTracker.getLastPitchInVoices(availableVoices);
 			List<Integer> activeAvailableVoices = 
 				ToolBox.getItemsAtIndex(lastPitchInAvailableVoices, 0);
 //l			System.out.println("LA LA LA lastPitchInAvailable");  
@@ -1606,20 +2719,19 @@ public class TabMapper {
 					) { // the part after the && is to prevent unnecessary iterations
 					if (prevPitches != null && prevPitches.size() == pitchesTab.size()) {
 						isConsecutiveTupletChord = true;
-						System.out.println("isConsecutiveTupletChord in " + trans.getName());
+						System.out.println("isConsecutiveTupletChord in " + pieceName);
 					}
 //l					System.out.println("AIAIAIAIAIA");
 	
 					for (int j = 0; j < mappedVoices.size(); j++) {
 						int mappedVoice = mappedVoices.get(j);
 						if (!activeAvailableVoices.contains(mappedVoice)) {
-							// Find the voice label in which mappedVoice is set to 1.0 and then the 
-							// pitch going with the voice. The elements in pitchesTab correspond to 
-							// those in voiceLabelsCurrChord
+							// Find the voice mask that contains mappedVoice and then the pitch going 
+							// with the voice. The elements in pitchesTab correspond to those in 
+							// voiceMasksCurrChord
 							int mappedPitch = -1;
-							for (int k = 0; k < voiceLabelsCurrChord.size(); k++) {
-								List<Double> curr = voiceLabelsCurrChord.get(k);
-								if (curr != null && curr.get(mappedVoice) == 1.0) {
+							for (int k = 0; k < voiceMasksCurrChord.length; k++) {
+								if (VoiceMask.contains(voiceMasksCurrChord[k], mappedVoice)) {
 									mappedPitch = pitchesTab.get(k);
 								}
 							}
@@ -1648,7 +2760,7 @@ public class TabMapper {
 				if (pitchesNotInMIDI.size() >= availableVoices.size()) {
 //l					System.out.println("iter 0");
 					subsetsOfPitchesNotInMIDI = 
-						ToolBox.getSubsets(pitchesNotInMIDI, availableVoices.size());
+						CombinationTables.getSubsets(pitchesNotInMIDI, availableVoices.size());
 //l					System.out.println("pnim " + pitchesNotInMIDI);
 //l					System.out.println("av " + availableVoices);
 //l					System.out.println(subsetsOfPitchesNotInMIDI);
@@ -1677,11 +2789,11 @@ public class TabMapper {
 //-*-			System.out.println("subsetsOfPtchsNotInMIDI " + subsetsOfPitchesNotInMIDI);
 
 			// 4. For each subset of subsetsOfPitchesNotInMIDI: find the cheapest combination and
-			// set cheapestMapping. comb contains all possible index combinations of 
+			// set cheapestMapping. solver searches all possible index combinations of 
 			// lastPitchInAvailableVoices and a subset of pitchesNotInMIDI
 			int cheapest = Integer.MAX_VALUE;
 			List<Integer[]> cheapestMapping = null;
-			List<List<Integer[]>> comb = ToolBox.getCombinations(lastPitchInAvailableVoices.size());
+			AssignmentSolver solver = CombinationTables.getSolver(lastPitchInAvailableVoices.size());
 			for (int j = 0; j < subsetsOfPitchesNotInMIDI.size(); j++) {
 				List<Integer> currSubset = subsetsOfPitchesNotInMIDI.get(j);
 				// In case of the first chord, there are no previous voices to compare to, and the pitches
@@ -1710,9 +2822,10 @@ public class TabMapper {
 //l					System.out.println(comb.size());
 //l					System.out.println("COMB");
 //l					System.out.println(lastPitchInAvailableVoices.size());
-					List<Integer[]> currCheapestMapping = getCheapestMapping(
-						currSubset, comb, lastPitchInAvailableVoices
+					List<Integer[]> currCheapestMapping = solver.getCheapestMapping(
+						currSubset, lastPitchInAvailableVoices
 					);
+					ctx.count(MappingMetrics.Counter.PERMUTATIONS_EVALUATED, solver.getNumEvaluated());
 //l					System.out.println("currCheapestMapping");
 //l					System.out.println(currCheapestMapping);
 					int currCheapest = 
@@ -1788,9 +2901,8 @@ public class TabMapper {
 						pitchesNotInMIDIOriginal = pitchesNotInMIDIOriginal.subList(
 							0, pitchesNotInMIDIOriginal.indexOf(null)); 
 					}
-					voiceLabelsCurrChord.set(
-						pitchesTab.indexOf(currNonMappedSNUPitch), 
-						LabelTools.convertIntoVoiceLabel(Arrays.asList(new Integer[]{currNonMappedSNUVoice}), mnv));
+					voiceMasksCurrChord[pitchesTab.indexOf(currNonMappedSNUPitch)] = 
+						VoiceMask.of(currNonMappedSNUVoice);
 //-*-					System.out.println("pitchesNotInMIDI        " + pitchesNotInMIDI + " (removal of non-mapped SNU)");
 //					System.out.println("pitchesNotInMIDIOrig    " + pitchesNotInMIDIOriginal + " (removal of non-mapped SNU)");
 //-*-					System.out.println("indPitchesNotInMIDI     " + indPitchesNotInMIDI + " (removal of non-mapped SNU)");
@@ -1806,9 +2918,7 @@ public class TabMapper {
 				cheapestMapping.clear();
 				for (Integer p : pitchesNotInMIDI) {
 					if (p != null) {
-						int voice = 
-							LabelTools.convertIntoListOfVoices(
-							prevVoiceLabels.get(prevPitches.indexOf(p))).get(0);
+						int voice = VoiceMask.first(prevVoiceMasks[prevPitches.indexOf(p)]);
 						// Calculate cost by comparing with the pitch that goes with the 
 						// available voice in the MIDI
 						int pToCompareWith = -1;
@@ -1888,40 +2998,36 @@ public class TabMapper {
 				}
 			}
 
-			// 7. Replace null voice labels with voice labels for unmapped pitches.
-			// voiceLabelsCurrChord is aligned with pitchesTab; the element to replace is 
+			// 7. Replace empty voice masks with voice masks for unmapped pitches.
+			// voiceMasksCurrChord is aligned with pitchesTab; the element to replace is 
 			// determined by finding the index of the unmapped pitch in pitchesTab
 			for (Integer[] in : cheapestMapping) {
 				int pitch = in[1];
 				int voice = in[0];
-				List<Double> label = LabelTools.convertIntoVoiceLabel(
-					Arrays.asList(new Integer[]{voice}), mnv
-				);
+				int mask = VoiceMask.of(voice);
 				// If unmapped unison (half-mapped unison (see above) is assumed not to happen)						
 				if (Collections.frequency(pitchesTab, pitch) == 2) {
 					// If first unison note has already been added: add only last unison note
-					if (voiceLabelsCurrChord.get(pitchesTab.indexOf(pitch)) != null) {
-						voiceLabelsCurrChord.set(pitchesTab.lastIndexOf(pitch), label);
+					if (voiceMasksCurrChord[pitchesTab.indexOf(pitch)] != VoiceMask.NONE) {
+						voiceMasksCurrChord[pitchesTab.lastIndexOf(pitch)] = mask;
 					}
 					// If not: add first unison note
 					else {
-						voiceLabelsCurrChord.set(pitchesTab.indexOf(pitch), label);
+						voiceMasksCurrChord[pitchesTab.indexOf(pitch)] = mask;
 					}
 				}
 				// If unmapped single note
 				// NB: unmapped single notes could be SNUs, but are assumed to be not
 				else {
-					voiceLabelsCurrChord.set(pitchesTab.indexOf(pitch), label);
+					voiceMasksCurrChord[pitchesTab.indexOf(pitch)] = mask;
 				}
 				// Fix any extended SNU case
 				// NB It is assumed that there will only be one item in extendedSNUVoices
 				if (extendedSNUVoices.size() != 0) {
-					// Find extendedSNU label
-					for (List<Double> l : voiceLabelsCurrChord) {
-						if (l != null) {
-							if (Collections.frequency(l, 1.0) > 2) {
-								l.set(voice, 0.0);
-							}
+					// Find extendedSNU mask
+					for (int k = 0; k < voiceMasksCurrChord.length; k++) {
+						if (VoiceMask.size(voiceMasksCurrChord[k]) > 2) {
+							voiceMasksCurrChord[k] &= ~mask;
 						}
 					}
 				}
@@ -1943,11 +3049,11 @@ public class TabMapper {
 		// NB: it is assumed that SNUs and unisons do not occur simultaneously // TODO this actually happens
 		if (numVoicesMappedOnto >= numVoices && pitchesNotInMIDIOriginal.size() > 0) {
 			for (int p : pitchesNotInMIDIOriginal) {
-				int voiceForP = LabelTools.convertIntoListOfVoices(
-					voiceLabelsCurrChord.get(pitchesTab.indexOf(p))).get(0);
-				for (List<Double> l : voiceLabelsCurrChord) {
-					if (l.get(voiceForP) == 1.0 && Collections.frequency(l, 1.0) == 2) {
-						l.set(voiceForP, 0.0);
+				int voiceForP = VoiceMask.first(voiceMasksCurrChord[pitchesTab.indexOf(p)]);
+				for (int k = 0; k < voiceMasksCurrChord.length; k++) {
+					int m = voiceMasksCurrChord[k];
+					if (VoiceMask.contains(m, voiceForP) && VoiceMask.size(m) == 2) {
+						voiceMasksCurrChord[k] &= ~VoiceMask.of(voiceForP);
 					}
 				}
 			}
@@ -1961,7 +3067,7 @@ public class TabMapper {
 		intLists.add(repetitionInds);
 //		intLists.add(fictaInds);
 		intLists.add(otherInds);	
-		return Arrays.asList(new Object[]{intLists, voiceLabelsCurrChord, cheapestMappingTotal});
+		return Arrays.asList(new Object[]{intLists, voiceMasksCurrChord, cheapestMappingTotal});
 	}
 
 
@@ -1973,18 +3079,18 @@ public class TabMapper {
 	 *    
 	 * @param ornPitches
 	 * @param pitchesTab
-	 * @param voiceLabelsCurrChord
+	 * @param voiceMasksCurrChord
 	 * @param indCurrChord
 	 * @param indLastNonOrnChord
 	 * @param pitchesTabLastNonOrnChord
-	 * @param voiceLabelsLastNonOrnChord
+	 * @param voiceMasksLastNonOrnChord
 	 * @param connection If set to Connection.RIGHT, the chord to the right of the run is 
 	 *                   decisive; if set to Connection.LEFT, the chord to its left.
 	 * @return
 	 */
 	static int mapPrecedingOrnamentalNotes(List<Integer> ornPitches, List<Integer> pitchesTab, 
-		List<List<Double>> voiceLabelsCurrChord, int indCurrChord, int indLastNonOrnChord, 
-		List<Integer> pitchesTabLastNonOrnChord, List<List<Double>> voiceLabelsLastNonOrnChord,
+		int[] voiceMasksCurrChord, int indCurrChord, int indLastNonOrnChord, 
+		List<Integer> pitchesTabLastNonOrnChord, int[] voiceMasksLastNonOrnChord,
 		Connection connection) {
 
 		// If the chord is the first non-ornamental chord in the piece: always connect right
@@ -2004,10 +3110,10 @@ public class TabMapper {
 			connection == Connection.RIGHT ? pitchesTab : pitchesTabLastNonOrnChord; 
 		List<Integer> secondaryPitchesTab = 
 			connection == Connection.RIGHT ? pitchesTabLastNonOrnChord : pitchesTab;
-		List<List<Double>> primaryVoiceLabels = 
-			connection == Connection.RIGHT ? voiceLabelsCurrChord : voiceLabelsLastNonOrnChord;
-		List<List<Double>> secondaryVoiceLabels = 
-			connection == Connection.RIGHT ? voiceLabelsLastNonOrnChord : voiceLabelsCurrChord;
+		int[] primaryVoiceMasks = 
+			connection == Connection.RIGHT ? voiceMasksCurrChord : voiceMasksLastNonOrnChord;
+		int[] secondaryVoiceMasks = 
+			connection == Connection.RIGHT ? voiceMasksLastNonOrnChord : voiceMasksCurrChord;
 		int secondaryIndChord = connection == Connection.RIGHT ? indLastNonOrnChord : indCurrChord; 
 //		if (connection == Connection.RIGHT) {
 //			primaryOrnPitch = lastOrnPitch;
@@ -2032,7 +3138,7 @@ public class TabMapper {
 		// a SNU, or if primaryOrnPitch is equally far from two notes in it, two pitches are 
 		// returned
 		List<List<Integer>> closestToPrimary = 
-			findClosestPitchesAndVoices(primaryOrnPitch, primaryPitchesTab, primaryVoiceLabels);
+			findClosestPitchesAndVoices(primaryOrnPitch, primaryPitchesTab, primaryVoiceMasks);
 //		List<List<Integer>> closest = 
 //			findClosestPitchesAndVoices(lastOrnPitch, pitchesTab, voiceLabelsCurrChord);
 		List<Integer> closestPitchesPrimary = closestToPrimary.get(0);
@@ -2052,7 +3158,7 @@ public class TabMapper {
 		else if (closestVoicesPrimary.size() > 1 && pitchesTabLastNonOrnChord != null) {
 			List<List<Integer>> closestSecondary = 
 				findClosestPitchesAndVoices(secondaryOrnPitch, secondaryPitchesTab, 
-				secondaryVoiceLabels);
+				secondaryVoiceMasks);
 //			List<List<Integer>> closestPrev = 
 //				findClosestPitchesAndVoices(firstOrnPitch, pitchesTabLastNonOrnChord, 
 //				voiceLabelsLastNonOrnChord);
@@ -2098,16 +3204,63 @@ public class TabMapper {
 	
 	
 	// S E C O N D - O R D E R  H E L P E R S
-	private static List<Double> makeEmptyVoiceLabel(int numVoices) {
-		List<Double> emptyVoiceLabel = new ArrayList<Double>();
-		for (int k = 0; k < 6; k++) {
-			if (k < 5) {
-				emptyVoiceLabel.add(0.0);
+	/**
+	 * Returns the given onset time, which must be a multiple of 1/smallestDur, as a number of
+	 * ticks of size 1/smallestDur.
+	 * 
+	 * @param onset
+	 * @param smallestDur
+	 * @return
+	 */
+	static int toTicks(Rational onset, int smallestDur) {
+		Rational ticks = onset.mul(smallestDur);
+		ticks.reduce();
+		return ticks.getNumer(); // denominator is always 1 because onset is a multiple of 1/smallestDur
+	}
+
+
+	/**
+	 * Returns a key that is equal for all equal (reduced or unreduced) onset times.
+	 * 
+	 * @param onset
+	 * @return
+	 */
+	private static long toKey(Rational onset) {
+		Rational reduced = new Rational(onset.getNumer(), onset.getDenom());
+		reduced.reduce();
+		return ((long) reduced.getNumer() << 32) | (reduced.getDenom() & 0xFFFFFFFFL);
+	}
+
+
+	/**
+	 * Returns the index of the first element in the given sorted array that equals the given
+	 * onset time, or -1 if there is no such element.
+	 * 
+	 * @param onsetTicks
+	 * @param onset
+	 * @return
+	 */
+	private static int getFirstRowInd(int[] onsetTicks, int onset) {
+		int low = 0;
+		int high = onsetTicks.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (onsetTicks[mid] < onset) {
+				low = mid + 1;
 			}
-			if (k == 5 && numVoices == 6) {
-				emptyVoiceLabel.add(0.0);
+			else {
+				high = mid;
 			}
 		}
+		return (low < onsetTicks.length && onsetTicks[low] == onset) ? low : -1;
+	}
+
+
+	private static List<Double> makeEmptyVoiceLabel(int maxNumVoices) {
+		List<Double> emptyVoiceLabel = new ArrayList<Double>();
+		for (int k = 0; k < maxNumVoices; k++) {
+			emptyVoiceLabel.add(0.0);
+		}
 		return emptyVoiceLabel;
 	}
 
@@ -2280,6 +3433,23 @@ public class TabMapper {
 	// TESTED
 	static List<List<Integer>> findClosestPitchesAndVoices(int lastOrnPitch, 
 		List<Integer> pitchesTab, List<List<Double>> voiceLabels) {
+		return findClosestPitchesAndVoices(
+			lastOrnPitch, pitchesTab, voiceLabels == null ? null : VoiceMask.ofAll(voiceLabels)
+		);
+	}
+
+
+	/**
+	 * As {@link #findClosestPitchesAndVoices(int, List, List)}, with the voices given as 
+	 * {@link VoiceMask}s.
+	 * 
+	 * @param lastOrnPitch
+	 * @param pitchesTab
+	 * @param voiceMasks
+	 * @return
+	 */
+	static List<List<Integer>> findClosestPitchesAndVoices(int lastOrnPitch, 
+		List<Integer> pitchesTab, int[] voiceMasks) {
 		List<List<Integer>> pitchesAndVoices = new ArrayList<>();
 		
 		if (pitchesTab == null) {
@@ -2299,14 +3469,13 @@ public class TabMapper {
 					closestPitches.add(pitchesTab.get(j));
 				}
 			}
-			// Find the voice(s) going with the closest pitch(es) (voiceLabelsCurrChord
-			// is aligned with pitchesTab)
+			// Find the voice(s) going with the closest pitch(es) (voiceMasks is aligned 
+			// with pitchesTab)
 			List<Integer> closestVoices = new ArrayList<>();
 			for (int j = 0; j < pitchesTab.size(); j++) {
 				if (closestPitches.contains(pitchesTab.get(j))) {
 //				if (pitchesTab.get(j) == closestPitch) {
-					closestVoices.addAll(
-						LabelTools.convertIntoListOfVoices(voiceLabels.get(j)));
+					closestVoices.addAll(VoiceMask.toVoices(voiceMasks[j]));
 				}
 			}
 			pitchesAndVoices.add(closestPitches);
@@ -2604,7 +3773,7 @@ public class TabMapper {
 
 	private static List<Object> mapTabChordToMIDIOLD(List<Integer> pitchesTab, List<Integer> indicesTab, 
 		List<Integer> pitchesGT, int numVoices) {
-		List<Double> emptyVoiceLabel = makeEmptyVoiceLabel(numVoices);
+		List<Double> emptyVoiceLabel = makeEmptyVoiceLabel(new MappingContext(numVoices).getMaxNumVoices());
 
 		List<Integer> pitchesNotInMIDI = new ArrayList<>();
 		List<Integer> indPitchesNotInMIDI = new ArrayList<>();
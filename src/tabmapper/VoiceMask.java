@@ -0,0 +1,118 @@
+package tabmapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Voice labels as bit masks, in which bit <code>v</code> is set if the note is in voice
+ * <code>v</code>. The mapping core works with one <code>int</code> per note instead of
+ * <code>List&lt;Double&gt;</code> voice labels; these are only made when the results are
+ * passed on (see {@link ChordMapper.Sink}).
+ */
+final class VoiceMask {
+	// The mask of a note that is not (yet) mapped; corresponds to a null voice label
+	static final int NONE = 0;
+
+
+	static int of(int voice) {
+		return 1 << voice;
+	}
+
+
+	/**
+	 * Returns the mask of the given voice label.
+	 *
+	 * @param voiceLabel
+	 * @return {@link #NONE} if <code>voiceLabel</code> is <code>null</code>.
+	 */
+	static int of(List<Double> voiceLabel) {
+		int mask = NONE;
+		if (voiceLabel != null) {
+			for (int v = 0; v < voiceLabel.size(); v++) {
+				if (voiceLabel.get(v) == 1.0) {
+					mask |= of(v);
+				}
+			}
+		}
+		return mask;
+	}
+
+
+	/**
+	 * Returns the masks of the given voice labels.
+	 *
+	 * @param voiceLabels
+	 * @return
+	 */
+	static int[] ofAll(List<List<Double>> voiceLabels) {
+		int[] masks = new int[voiceLabels.size()];
+		for (int i = 0; i < masks.length; i++) {
+			masks[i] = of(voiceLabels.get(i));
+		}
+		return masks;
+	}
+
+
+	static boolean contains(int mask, int voice) {
+		return (mask & of(voice)) != 0;
+	}
+
+
+	/**
+	 * Returns the number of voices in the given mask. A mask with more than one voice is a
+	 * SNU; one with more than two an extended SNU.
+	 *
+	 * @param mask
+	 * @return
+	 */
+	static int size(int mask) {
+		return Integer.bitCount(mask);
+	}
+
+
+	/**
+	 * Returns the lowest-numbered voice in the given mask.
+	 *
+	 * @param mask Not {@link #NONE}.
+	 * @return
+	 */
+	static int first(int mask) {
+		return Integer.numberOfTrailingZeros(mask);
+	}
+
+
+	/**
+	 * Returns the voices in the given mask, in increasing order (as
+	 * <code>LabelTools.convertIntoListOfVoices()</code>).
+	 *
+	 * @param mask
+	 * @return
+	 */
+	static List<Integer> toVoices(int mask) {
+		List<Integer> voices = new ArrayList<>(size(mask));
+		for (int m = mask; m != 0; m &= m - 1) {
+			voices.add(first(m));
+		}
+		return voices;
+	}
+
+
+	/**
+	 * Returns the voice label of the given mask.
+	 *
+	 * @param mask
+	 * @param maxNumVoices The size of the voice label.
+	 * @return <code>null</code> if <code>mask</code> is {@link #NONE}.
+	 */
+	static List<Double> toVoiceLabel(int mask, int maxNumVoices) {
+		if (mask == NONE) {
+			return null;
+		}
+		List<Double> voiceLabel = new ArrayList<>(maxNumVoices);
+		for (int v = 0; v < maxNumVoices; v++) {
+			voiceLabel.add(contains(mask, v) ? 1.0 : 0.0);
+		}
+		return voiceLabel;
+	}
+
+}
@@ -4,25 +4,48 @@ import static org.junit.Assert.*;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import de.uos.fmt.musitech.utility.math.Rational;
 import external.Tablature;
 import external.Transcription;
 import interfaces.CLInterface;
+import internal.core.Encoding;
 import tools.ToolBox;
+import tools.labels.LabelTools;
+import tools.music.PitchKeyTools;
 import tools.text.StringTools;
 
 public class TabMapperTest {
 
 	private File midiTestpiece;
 	private File encodingTestpiece;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
 	
 	@Before
 	public void setUp() throws Exception {
@@ -244,6 +267,51 @@ public class TabMapperTest {
 	}
 
 
+	@Test
+	public void testLastPitchTracker() {
+		Transcription trans = new Transcription(midiTestpiece);
+		List<List<Integer>> availableVoices = Arrays.asList(
+			Arrays.asList(new Integer[]{0, 1, 4}),
+			Arrays.asList(new Integer[]{0, 1, 2, 3, 4}),
+			Arrays.asList(new Integer[]{2, 3})
+		);
+		// Increasing onsets, followed by one earlier onset to check that the cursors move back
+		List<Rational> onsets = Arrays.asList(new Rational[]{
+			new Rational(0, 4),
+			new Rational(3, 4), 
+			new Rational(4, 4), 
+			new Rational(9, 8), 
+			new Rational(31, 16), 
+			new Rational(8, 4),
+			new Rational(100, 4),
+			new Rational(9, 8)
+		});
+
+		// The expected values are those given by getLastPitchInVoices()
+		List<List<Integer[]>> expected = new ArrayList<>();
+		List<List<Integer[]>> actual = new ArrayList<>();
+		LastPitchTracker tracker = new LastPitchTracker(trans, 5);
+		for (Rational r : onsets) {
+			tracker.advanceTo(r);
+			for (List<Integer> l : availableVoices) {
+				expected.add(TabMapper.getLastPitchInVoices(l, 5, r, trans));
+				actual.add(tracker.getLastPitchInVoices(l));
+			}
+		}
+
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).size(), actual.get(i).size());
+			for (int j = 0; j < expected.get(i).size(); j++) {
+				assertEquals(expected.get(i).get(j).length, actual.get(i).get(j).length);
+				for (int k = 0; k < expected.get(i).get(j).length; k++) {
+					assertEquals(expected.get(i).get(j)[k], actual.get(i).get(j)[k]);
+				}
+			}
+		}
+	}
+
+
 	@Test
 	public void testGetCheapestMapping() {
 		List<Integer[]> lastPitchInAvailableVoices = new ArrayList<>();
@@ -330,4 +398,784 @@ public class TabMapperTest {
 		}
 	}
 
+
+	@Test
+	public void testAssignmentSolver() {
+		// The expected values are those given by getCheapestMapping(). Pitches are drawn from 
+		// a narrow range, so that there are many ties and repetitions
+		Random r = new Random(1);
+		List<List<Integer[]>> expected = new ArrayList<>();
+		List<List<Integer[]>> actual = new ArrayList<>();
+		for (int n = 1; n <= 6; n++) {
+			List<List<Integer[]>> comb = ToolBox.getCombinations(n);
+			AssignmentSolver solver = new AssignmentSolver(comb);
+			for (int i = 0; i < 50; i++) {
+				List<Integer[]> lastPitchInAvailableVoices = new ArrayList<>();
+				List<Integer> pitches = new ArrayList<>();
+				for (int j = 0; j < n; j++) {
+					lastPitchInAvailableVoices.add(new Integer[]{n-1-j, 60 + r.nextInt(8)});
+					pitches.add(j > 0 && r.nextInt(3) == 0 ? null : 60 + r.nextInt(8));
+				}
+				expected.add(TabMapper.getCheapestMapping(pitches, comb, lastPitchInAvailableVoices));
+				actual.add(solver.getCheapestMapping(pitches, lastPitchInAvailableVoices));
+			}
+		}
+
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).size(), actual.get(i).size());
+			for (int j = 0; j < expected.get(i).size(); j++) {
+				assertEquals(expected.get(i).get(j).length, actual.get(i).get(j).length);
+				for (int k = 0; k < expected.get(i).get(j).length; k++) {
+					assertEquals(expected.get(i).get(j)[k], actual.get(i).get(j)[k]);
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void testCombinationTables() {
+		// The expected values are those given by ToolBox
+		List<List<Integer>> lists = new ArrayList<>();
+		lists.add(Arrays.asList(new Integer[]{62}));
+		lists.add(Arrays.asList(new Integer[]{50, 57, 62, 65}));
+		lists.add(Arrays.asList(new Integer[]{45, 50, 57, 62, 65, 69}));
+		lists.add(Arrays.asList(new Integer[]{50, 57, 57, 62})); // duplicates
+		List<List<Integer>> expected = new ArrayList<>();
+		List<List<Integer>> actual = new ArrayList<>();
+		for (List<Integer> l : lists) {
+			for (int k = 1; k <= l.size(); k++) {
+				expected.addAll(ToolBox.getSubsets(new ArrayList<>(l), k));
+				actual.addAll(CombinationTables.getSubsets(new ArrayList<>(l), k));
+			}
+		}
+		assertEquals(expected, actual);
+
+		for (int n = 1; n <= CombinationTables.MAX_NUM_VOICES; n++) {
+			List<List<Integer[]>> expectedComb = ToolBox.getCombinations(n);
+			List<List<Integer[]>> actualComb = CombinationTables.getCombinations(n);
+			assertEquals(expectedComb.size(), actualComb.size());
+			for (int i = 0; i < expectedComb.size(); i++) {
+				assertEquals(expectedComb.get(i).size(), actualComb.get(i).size());
+				for (int j = 0; j < expectedComb.get(i).size(); j++) {
+					assertArrayEquals(expectedComb.get(i).get(j), actualComb.get(i).get(j));
+				}
+			}
+			assertSame(CombinationTables.getSolver(n), CombinationTables.getSolver(n));
+		}
+	}
+
+
+	@Test
+	public void testPitchSpellingCache() {
+		// The expected values are those given by PitchKeyTools
+		for (int keySig = -2; keySig <= 2; keySig++) {
+			for (int mode = 0; mode <= 1; mode++) {
+				List<Object> grids = PitchKeyTools.createGrids(keySig, mode);
+				PitchSpellingCache spelling = PitchSpellingCache.forKey(keySig, mode);
+				assertSame(spelling, PitchSpellingCache.forKey(keySig, mode));
+				for (int p = 36; p <= 84; p++) {
+					String pName = ((String[]) PitchKeyTools.spellPitch(p, keySig, grids, null, -1).get(0))[0];
+					assertEquals(pName, spelling.getPitchName(p));
+					assertEquals(PitchKeyTools.getOctave(p), spelling.getOctave(p));
+					for (int q = p - 2; q <= p + 2; q++) {
+						String qName = ((String[]) PitchKeyTools.spellPitch(q, keySig, grids, null, -1).get(0))[0];
+						boolean isFicta = p != q && pName.equals(qName) && 
+							PitchKeyTools.getOctave(p) == PitchKeyTools.getOctave(q);
+						assertEquals(isFicta, spelling.isFicta(p, q));
+					}
+				}
+			}
+		}
+
+		// Each lookup answered from the cached spellings counts as a hit
+		MappingProfile profile = new MappingProfile();
+		MappingContext ctx = new MappingContext(4, 0, profile);
+		PitchSpellingCache spelling = PitchSpellingCache.forKey(0, 0);
+		spelling.isFicta(60, 61, ctx);
+		spelling.isFicta(60, 62, ctx);
+		spelling.isFicta(60, 60, ctx);
+		assertTrue(profile.toCsv().split("\r\n")[1].endsWith(",2"));
+	}
+
+
+	@Test
+	public void testMappingProfile() {
+		MappingProfile profile = new MappingProfile();
+		// Pieces are recorded in input order, also if they are started out of order
+		profile.startPiece(1, "b.tbp");
+		profile.startPiece(0, "a.tbp");
+		profile.stopTimer(1, MappingMetrics.Stage.MAP, profile.startTimer());
+		profile.count(1, MappingMetrics.Counter.FICTA, 2);
+		profile.count(1, MappingMetrics.Counter.FICTA, 3);
+		profile.count(0, MappingMetrics.Counter.CHORDS_MAPPED, 7);
+
+		String[] rows = profile.toCsv().split("\r\n");
+		assertEquals(3, rows.length);
+		List<String> header = Arrays.asList(rows[0].split(","));
+		List<String> first = Arrays.asList(rows[1].split(","));
+		List<String> second = Arrays.asList(rows[2].split(","));
+		assertEquals(header.size(), first.size());
+		assertEquals(header.size(), second.size());
+		assertEquals(Arrays.asList("1", "a.tbp"), first.subList(0, 2));
+		assertEquals(Arrays.asList("2", "b.tbp"), second.subList(0, 2));
+		assertEquals("7", first.get(header.indexOf("chords_mapped")));
+		assertEquals("0", first.get(header.indexOf("ficta")));
+		assertEquals("5", second.get(header.indexOf("ficta")));
+		assertTrue(Long.parseLong(second.get(header.indexOf("map_ns"))) >= 0);
+		assertTrue(profile.toJson().contains("\"ficta\": 5"));
+
+		// Names with separators or quotes are quoted
+		profile.startPiece(2, "c, \"d\".tbp");
+		profile.count(2, MappingMetrics.Counter.FICTA, 1);
+		assertTrue(profile.toCsv().contains("\r\n3,\"c, \"\"d\"\".tbp\","));
+	}
+
+
+	@Test
+	public void testOutputWriter() throws Exception {
+		File dir = tmp.newFolder();
+		OutputWriter writer = new OutputWriter(1);
+		for (int i = 0; i < 10; i++) {
+			writer.write(0, new File(dir, i + ".csv"), "piece 0, file " + i);
+		}
+		writer.write(1, new File(new File(dir, "missing"), "0.csv"), "piece 1");
+		writer.write(OutputWriter.RUN, new File(dir, "LaTeX.txt"), "run");
+		writer.close();
+
+		assertTrue(writer.awaitPiece(0).isEmpty());
+		assertEquals(1, writer.awaitPiece(1).size());
+		assertTrue(writer.awaitPiece(OutputWriter.RUN).isEmpty());
+		assertTrue(writer.awaitPiece(2).isEmpty());
+		for (int i = 0; i < 10; i++) {
+			assertEquals("piece 0, file " + i, new String(
+				Files.readAllBytes(new File(dir, i + ".csv").toPath()))
+			);
+		}
+		assertEquals("run", new String(
+			Files.readAllBytes(new File(dir, "LaTeX.txt").toPath()))
+		);
+
+		// A streamed file is written on the calling thread; if it cannot be, that is recorded
+		// for its piece
+		OutputWriter streamer = new OutputWriter(1);
+		assertFalse(streamer.stream(0, new File(dir, "stream.csv"), w -> {
+			MappingRecords.writeHeader(w);
+			w.write("row");
+		}).isCompletedExceptionally());
+		assertEquals(MappingRecords.HEADER + "\r\nrow", new String(
+			Files.readAllBytes(new File(dir, "stream.csv").toPath()))
+		);
+		assertTrue(streamer.stream(
+			1, new File(new File(dir, "missing"), "stream.csv"), w -> w.write("row")
+		).isCompletedExceptionally());
+		assertTrue(streamer.awaitPiece(0).isEmpty());
+		assertEquals(1, streamer.awaitPiece(1).size());
+		streamer.close();
+
+		// More exports than the capacity are run, and an export that fails with an error
+		// does not keep its piece from completing
+		OutputWriter exporter = new OutputWriter(1);
+		AtomicInteger numExported = new AtomicInteger();
+		for (int i = 0; i < 10; i++) {
+			exporter.export(0, numExported::incrementAndGet);
+		}
+		exporter.export(1, () -> {
+			throw new AssertionError("export");
+		});
+		exporter.export(1, numExported::incrementAndGet);
+		assertTrue(exporter.awaitPiece(0).isEmpty());
+		assertEquals(1, exporter.awaitPiece(1).size());
+		exporter.close();
+		assertEquals(11, numExported.get());
+	}
+
+
+	@Test
+	public void testMappingRecords() throws Exception {
+		MappingRecords records = new MappingRecords();
+		for (int i = 0; i < 300; i++) {
+			records.add(299 - i, 60, new Rational(1, 4), new Rational(i, 4), i, "1 1/4", 
+				Arrays.asList(i % 4), i, MappingRecords.Category.ADAPTATION);
+		}
+		records.add(5, 62, new Rational(1, 8), new Rational(0, 1), 0, "1", 
+			Arrays.asList(0, 2), MappingRecords.NO_COST, MappingRecords.Category.MATCH);
+		records.sortByNote();
+
+		assertEquals(301, records.size());
+		for (int i = 0; i < records.size() - 1; i++) {
+			assertTrue(records.getNote(i) <= records.getNote(i + 1));
+		}
+		// Rows with the same note index keep their order
+		assertEquals("5,60," + new Rational(1, 4) + "," + new Rational(294, 4) + 
+			",294,1 1/4,2,294,adaptation", records.getLine(5));
+		assertEquals("5,62," + new Rational(1, 8) + "," + new Rational(0, 1) + 
+			",0,1,0 and 2,n/a,match", records.getLine(6));
+
+		StringWriter w = new StringWriter();
+		records.writeCsv(w);
+		String[] lines = w.toString().split("\r\n");
+		assertEquals(302, lines.length);
+		assertEquals(MappingRecords.HEADER, lines[0]);
+		assertEquals(records.getLine(6), lines[7]);
+	}
+
+
+	@Test
+	public void testMapWithPrevious() throws Exception {
+		Tablature tab = new Tablature(encodingTestpiece);
+		Transcription trans = new Transcription(tab.getMeterInfo(), midiTestpiece);
+		MappingContext ctx = new MappingContext(trans.getNumberOfVoices());
+		List<Object> expected = 
+			TabMapper.map(trans, tab, ctx, true, TabMapper.Connection.LEFT, null);
+		assertNull(TabMapper.map(trans, tab, ctx, true, TabMapper.Connection.LEFT).get(3));
+
+		// Store and reload the snapshot
+		File f = tmp.newFile("testpiece" + MappingSnapshot.EXT);
+		((MappingSnapshot) expected.get(3)).store(f);
+		MappingSnapshot previous = MappingSnapshot.load(f);
+		assertNotNull(previous);
+		assertTrue(previous.isReusableFor(
+			tab, trans.getBasicNoteProperties(), trans.getKeyInfo(), true, TabMapper.Connection.LEFT)
+		);
+		assertFalse(previous.isReusableFor(
+			tab, trans.getBasicNoteProperties(), trans.getKeyInfo(), false, TabMapper.Connection.LEFT)
+		);
+		// Unchanged tablature: everything but the last chord is reused
+		assertEquals(tab.getBasicTabSymbolProperties().length, previous.getTailStart(tab));
+		assertNotNull(previous.getRestartPoint(tab));
+
+		List<Object> actual = 
+			TabMapper.map(trans, tab, ctx, true, TabMapper.Connection.LEFT, previous);
+		assertSameMapping(expected, actual);
+
+		// Chord inserted, deleted, or changed in the middle: the head and the tail are reused, 
+		// and the result is the same as that of a full mapping
+		for (String edit : new String[]{"insert", "delete", "change"}) {
+			Tablature edited = editTestpiece(edit);
+			assertNotNull(previous.getRestartPoint(edited));
+			assertTrue(previous.getTailStart(edited) < edited.getBasicTabSymbolProperties().length);
+			assertSameMapping(
+				TabMapper.map(trans, edited, ctx, true, TabMapper.Connection.LEFT), 
+				TabMapper.map(trans, edited, ctx, true, TabMapper.Connection.LEFT, previous)
+			);
+		}
+	}
+
+
+	// Returns the testpiece with the first chord after the middle of its encoding inserted 
+	// a second time, deleted, or with the fret of its last note raised
+	private Tablature editTestpiece(String edit) throws Exception {
+		String raw = new String(Files.readAllBytes(encodingTestpiece.toPath()));
+		// Start and end (exclusive) of each symbol after the header; a symbol ends with a 
+		// separator, and the events are separated by spaces
+		List<int[]> symbols = new ArrayList<>();
+		for (int i = raw.lastIndexOf('}') + 1, j; (j = raw.indexOf('.', i)) != -1; i = j + 1) {
+			symbols.add(new int[]{i, j + 1});
+		}
+		// First and last symbol of the chord: the chord ends with a note on a fret below i 
+		// and contains no barline or system break
+		int first = -1;
+		int last = -1;
+		for (int k = symbols.size() / 2; k < symbols.size() && last == -1; k++) {
+			if (getSymbol(raw, symbols.get(k)).equals(">")) {
+				if (first != -1 && getSymbol(raw, symbols.get(k - 1)).matches("[a-h][1-9]")) {
+					last = k - 1;
+				}
+				first = k + 1;
+			}
+			else if (getSymbol(raw, symbols.get(k)).matches(".*[|/].*")) {
+				first = -1;
+			}
+		}
+		assertTrue(last != -1);
+		int from = symbols.get(first)[0];
+		// Including the space after the chord
+		int to = symbols.get(last + 1)[1];
+		switch (edit) {
+			case "insert":
+				raw = raw.substring(0, to) + raw.substring(from, to) + raw.substring(to);
+				break;
+			case "delete":
+				raw = raw.substring(0, from) + raw.substring(to);
+				break;
+			default:
+				int fret = symbols.get(last)[1] - 3;
+				raw = raw.substring(0, fret) + (char) (raw.charAt(fret) + 1) + raw.substring(fret + 1);
+		}
+		return new Tablature(new Encoding(raw, "testpiece", Encoding.Stage.RULES_CHECKED), false);
+	}
+
+
+	private static String getSymbol(String raw, int[] symbol) {
+		return raw.substring(symbol[0], symbol[1] - 1).trim();
+	}
+
+
+	@Test
+	public void testVoiceMask() {
+		List<List<Double>> voiceLabels = Arrays.asList(
+			LabelTools.createVoiceLabel(new Integer[]{3}, 5), null,
+			LabelTools.createVoiceLabel(new Integer[]{0, 2}, 5),
+			LabelTools.createVoiceLabel(new Integer[]{1, 2, 4}, 5)
+		);
+		int[] masks = VoiceMask.ofAll(voiceLabels);
+		assertArrayEquals(new int[]{8, VoiceMask.NONE, 5, 22}, masks);
+		for (int i = 0; i < masks.length; i++) {
+			assertEquals(voiceLabels.get(i), VoiceMask.toVoiceLabel(masks[i], 5));
+			if (voiceLabels.get(i) != null) {
+				assertEquals(
+					LabelTools.convertIntoListOfVoices(voiceLabels.get(i)), VoiceMask.toVoices(masks[i])
+				);
+			}
+		}
+		assertEquals(3, VoiceMask.size(masks[3]));
+		assertEquals(1, VoiceMask.first(masks[3]));
+		assertTrue(VoiceMask.contains(masks[2], 2));
+		assertFalse(VoiceMask.contains(masks[2], 1));
+	}
+
+
+	@Test
+	public void testStreamingMapper() {
+		Tablature tab = new Tablature(encodingTestpiece);
+		Transcription trans = new Transcription(tab.getMeterInfo(), midiTestpiece);
+		MappingContext ctx = new MappingContext(trans.getNumberOfVoices());
+		List<Object> expected = TabMapper.map(trans, tab, ctx, true, TabMapper.Connection.LEFT);
+
+		List<List<Double>> voiceLabels = new ArrayList<>();
+		List<String> lines = new ArrayList<>();
+		List<List<Integer>> mismatchInds = new ArrayList<>();
+		for (int i = 0; i <= Transcription.SPECIAL_ORN_IND; i++) {
+			mismatchInds.add(i == Transcription.INCORRECT_IND ? null : new ArrayList<>());
+		}
+		StreamingMapper.map(trans, tab, ctx, true, TabMapper.Connection.LEFT, new ChordMapper.Sink() {
+			@Override
+			public void voiceLabel(int note, List<Double> voiceLabel) {
+				assertEquals(voiceLabels.size(), note);
+				voiceLabels.add(voiceLabel);
+			}
+			@Override
+			public void records(MappingRecords rows) {
+				for (int i = 0; i < rows.size(); i++) {
+					lines.add(rows.getLine(i));
+				}
+			}
+			@Override
+			public void mismatch(int category, int note) {
+				mismatchInds.get(category).add(note);
+			}
+		});
+
+		assertEquals(expected.get(0), voiceLabels);
+		assertEquals(expected.get(1), mismatchInds);
+		MappingRecords records = (MappingRecords) expected.get(2);
+		assertEquals(records.size(), lines.size());
+		for (int i = 0; i < records.size(); i++) {
+			assertEquals(records.getLine(i), lines.get(i));
+		}
+	}
+
+
+	@Test
+	public void testParallelMatching() {
+		Tablature tab = new Tablature(encodingTestpiece);
+		Transcription trans = new Transcription(tab.getMeterInfo(), midiTestpiece);
+		MappingContext ctx = new MappingContext(trans.getNumberOfVoices());
+		try {
+			for (boolean includeOrn : new boolean[]{true, false}) {
+				for (TabMapper.Connection connection : TabMapper.Connection.values()) {
+					System.setProperty(
+						TabMapper.PARALLEL_MATCHING_MIN_ROWS_PROP, String.valueOf(Integer.MAX_VALUE)
+					);
+					List<Object> expected = TabMapper.map(trans, tab, ctx, includeOrn, connection);
+					// Initial mapping in a parallel pass, however few rows there are
+					System.setProperty(TabMapper.PARALLEL_MATCHING_MIN_ROWS_PROP, "0");
+					List<Object> actual = TabMapper.map(trans, tab, ctx, includeOrn, connection);
+					assertSameMapping(expected, actual);
+				}
+			}
+		} finally {
+			System.clearProperty(TabMapper.PARALLEL_MATCHING_MIN_ROWS_PROP);
+		}
+	}
+
+
+	@Test
+	public void testMapInSegments() {
+		Tablature tab = new Tablature(encodingTestpiece);
+		Transcription trans = new Transcription(tab.getMeterInfo(), midiTestpiece);
+		MappingContext ctx = new MappingContext(trans.getNumberOfVoices());
+		for (TabMapper.Connection connection : TabMapper.Connection.values()) {
+			List<Object> expected = TabMapper.map(trans, tab, ctx, true, connection, null, 1);
+			for (int numSegments : new int[]{2, 4, 16}) {
+				MappingProfile profile = new MappingProfile();
+				List<Object> actual = TabMapper.map(
+					trans, tab, new MappingContext(trans.getNumberOfVoices(), 0, profile), true, 
+					connection, null, numSegments
+				);
+				assertSameMapping(expected, actual);
+				// The tablature was split
+				String[] rows = profile.toCsv().split("\r\n");
+				int segmentsCol = Arrays.asList(rows[0].split(",")).indexOf("segments");
+				assertTrue(Long.parseLong(rows[1].split(",")[segmentsCol]) > 0);
+			}
+		}
+	}
+
+
+	@Test
+	public void testMapVariants() {
+		Tablature tab = new Tablature(encodingTestpiece);
+		Transcription trans = new Transcription(tab.getMeterInfo(), midiTestpiece);
+		MappingContext ctx = new MappingContext(trans.getNumberOfVoices());
+		List<MappingVariant> variants = MappingVariant.all();
+		List<List<Object>> actual = TabMapper.mapVariants(trans, tab, ctx, variants);
+
+		assertEquals(4, actual.size());
+		assertEquals("orn-LEFT", variants.get(0).getName());
+		assertEquals("no-orn-RIGHT", variants.get(3).getName());
+		for (int v = 0; v < variants.size(); v++) {
+			List<Object> expected = TabMapper.map(
+				trans, tab, ctx, variants.get(v).includeOrnamentation, variants.get(v).connection
+			);
+			assertSameMapping(expected, actual.get(v));
+		}
+	}
+
+
+	@Test
+	public void testModelRegistry() {
+		Tablature tab = new Tablature(encodingTestpiece);
+		ModelRegistry registry = new ModelRegistry();
+		registry.register(midiTestpiece);
+		registry.register(midiTestpiece);
+		AtomicInteger numLoaded = new AtomicInteger();
+		Supplier<Transcription> loader = () -> {
+			numLoaded.incrementAndGet();
+			return new Transcription(tab.getMeterInfo(), midiTestpiece);
+		};
+
+		ModelRegistry.Model first = registry.acquire(midiTestpiece, tab.getMeterInfo(), loader);
+		ModelRegistry.Model second = registry.acquire(midiTestpiece, tab.getMeterInfo(), loader);
+		assertEquals(1, numLoaded.get());
+		assertSame(first, second);
+		assertEquals(1, registry.getNumModels());
+
+		// A mapping on the shared model is the same as one on the transcription itself
+		MappingContext ctx = new MappingContext(first.getNumVoices(), -1, MappingMetrics.NONE, first);
+		assertSame(first, ctx.getModel(first.trans));
+		List<Object> expected = TabMapper.map(
+			first.trans, tab, new MappingContext(first.getNumVoices()), true, TabMapper.Connection.LEFT
+		);
+		List<Object> actual = TabMapper.map(first.trans, tab, ctx, true, TabMapper.Connection.LEFT);
+		assertSameMapping(expected, actual);
+
+		registry.release(midiTestpiece);
+		assertEquals(1, registry.getNumModels());
+		registry.release(midiTestpiece);
+		assertEquals(0, registry.getNumModels());
+	}
+
+
+	@Test
+	public void testSharedModelConcurrently() {
+		Tablature tab = new Tablature(encodingTestpiece);
+		Integer[][] btp = tab.getBasicTabSymbolProperties();
+		ModelRegistry registry = new ModelRegistry();
+		registry.register(midiTestpiece);
+		ModelRegistry.Model model = registry.acquire(
+			midiTestpiece, tab.getMeterInfo(), () -> new Transcription(tab.getMeterInfo(), midiTestpiece)
+		);
+		Transcription trans = new Transcription(tab.getMeterInfo(), midiTestpiece);
+		MappingContext ctx = new MappingContext(trans.getNumberOfVoices());
+		List<Object> expected = TabMapper.map(trans, tab, ctx, true, TabMapper.Connection.LEFT);
+		Object timeLine = model.trans.getScorePiece().getMetricalTimeLine();
+		Object harmonyTrack = model.trans.getScorePiece().getHarmonyTrack();
+
+		// Pieces are mapped onto the shared model while ScorePieces are made from it for 
+		// export, with and without complete durations
+		Transcription.setMaxNumVoices(ctx.getMaxNumVoices());
+		List<List<Object>> mappings = TabMapper.mapPieces(16, 8, i -> {
+			if (i % 4 == 3) {
+				TabMapper.makeExportPiece(
+					btp, (List<List<Double>>) expected.get(0), model.trans, i % 8 == 7
+				);
+				return null;
+			}
+			return TabMapper.map(
+				model.trans, tab, new MappingContext(model.getNumVoices(), i, MappingMetrics.NONE, model), 
+				true, TabMapper.Connection.LEFT
+			);
+		});
+		for (List<Object> actual : mappings) {
+			if (actual != null) {
+				assertSameMapping(expected, actual);
+			}
+		}
+		assertSame(timeLine, model.trans.getScorePiece().getMetricalTimeLine());
+		assertSame(harmonyTrack, model.trans.getScorePiece().getHarmonyTrack());
+		registry.release(midiTestpiece);
+	}
+
+
+	@Test
+	public void testGetMaxM() {
+		List<List<Integer>> mismatchInds = new ArrayList<>();
+		mismatchInds.add(Transcription.INCORRECT_IND, null);
+		mismatchInds.add(Transcription.ORNAMENTATION_IND, Arrays.asList(0, 1, 2, 3));
+		mismatchInds.add(Transcription.REPETITION_IND, Arrays.asList(4));
+		mismatchInds.add(Transcription.FICTA_IND, Arrays.asList(5, 6));
+		mismatchInds.add(Transcription.ADAPTATION_IND, Arrays.asList(7));
+		mismatchInds.add(Transcription.SPECIAL_ORN_IND, new ArrayList<>());
+
+		// Ornamentation included: 8 of 20 notes are mismatches
+		assertEquals(12 / 20.0, ModelSelector.getMaxM(20, mismatchInds, true), 1e-9);
+		// Ornamentation not included: 4 of the 16 notes that are not ornamental
+		assertEquals(12 / 16.0, ModelSelector.getMaxM(20, mismatchInds, false), 1e-9);
+	}
+
+
+	@Test
+	public void testModelSelector() {
+		Tablature tab = new Tablature(encodingTestpiece);
+		Transcription trans = new Transcription(tab.getMeterInfo(), midiTestpiece);
+		List<Object> expected = TabMapper.map(
+			trans, tab, new MappingContext(trans.getNumberOfVoices()), true, TabMapper.Connection.LEFT
+		);
+		Double[] expectedDoubles = (Double[]) TabMapper.getPieceResults(
+			tab.getBasicTabSymbolProperties(), trans.getBasicNoteProperties(), null, 
+			(List<List<Integer>>) expected.get(1), true
+		).get(2);
+
+		// Equally good candidates are not given up; the first one is selected
+		ModelRegistry registry = new ModelRegistry();
+		MappingProfile profile = new MappingProfile();
+		List<Object> selection = ModelSelector.select(
+			tab, Arrays.asList(midiTestpiece, midiTestpiece), true, TabMapper.Connection.LEFT, 
+			registry, 2, 0, profile
+		);
+		assertEquals(0, selection.get(0));
+		List<Double[]> metrics = (List<Double[]>) selection.get(1);
+		assertEquals(2, metrics.size());
+		for (Double[] m : metrics) {
+			assertEquals(expectedDoubles[TabMapper.COLS.indexOf(TabMapper.M)], m[0]);
+			assertEquals(expectedDoubles[TabMapper.COLS.indexOf(TabMapper.M_OA)], m[1]);
+			assertEquals(expectedDoubles[TabMapper.COLS.indexOf(TabMapper.M_A)], m[2]);
+		}
+		// The mapping onto the candidate selected is kept
+		assertSameMapping(expected, (List<Object>) selection.get(2));
+		// The counts of the mappings onto the candidates are recorded for the piece
+		profile.startPiece(0, "testpiece");
+		List<String> header = Arrays.asList(profile.toCsv().split("\r\n")[0].split(","));
+		List<String> row = Arrays.asList(profile.toCsv().split("\r\n")[1].split(","));
+		assertTrue(Long.parseLong(row.get(header.indexOf("chords_mapped"))) > 0);
+
+		// A mapping that is given up has no results
+		assertNull(TabMapper.mapOrAbort(
+			trans, tab, new MappingContext(trans.getNumberOfVoices()), true, 
+			TabMapper.Connection.LEFT, mismatchInds -> true
+		));
+	}
+
+
+	@Test
+	public void testInputCache() throws Exception {
+		File dir = tmp.newFolder();
+		File tabFile = new File(dir, "piece.tbp");
+		File midiFile = new File(dir, "piece.mid");
+		Files.write(tabFile.toPath(), "tab".getBytes("UTF-8"));
+		Files.write(midiFile.toPath(), "midi".getBytes("UTF-8"));
+		InputCache cache = new InputCache(new File(dir, InputCache.DIR));
+
+		assertNull(cache.getEncoding(tabFile));
+		assertNull(cache.get(tabFile, midiFile));
+		cache.putEncoding(tabFile, "SCORE ... \u00fc");
+		InputCache.ParsedInput in = new InputCache.ParsedInput(
+			new Integer[][]{{67, 0, 24}, {55, 0, 48}}, new Integer[][]{{67, 0, 1, 1, 4}},
+			Arrays.asList(new Integer[][]{{2, 2, 1, 3}}), Arrays.asList(new Integer[][]{{-1, 0, null}}),
+			2, new int[]{1, 3}
+		);
+		cache.put(tabFile, midiFile, in);
+
+		assertEquals("SCORE ... \u00fc", cache.getEncoding(tabFile));
+		InputCache.ParsedInput out = cache.get(tabFile, midiFile);
+		assertArrayEquals(in.btp, out.btp);
+		assertArrayEquals(in.bnp, out.bnp);
+		assertArrayEquals(in.meterInfo.toArray(), out.meterInfo.toArray());
+		assertArrayEquals(in.keyInfo.toArray(), out.keyInfo.toArray());
+		assertEquals(2, out.numVoices);
+		assertArrayEquals(new int[]{1, 3}, out.voices);
+
+		// Changed input
+		Files.write(midiFile.toPath(), "midi2".getBytes("UTF-8"));
+		assertEquals("SCORE ... \u00fc", cache.getEncoding(tabFile));
+		assertNull(cache.get(tabFile, midiFile));
+	}
+
+
+	@Test
+	public void testResultCache() throws Exception {
+		File dir = tmp.newFolder();
+		File tabFile = new File(dir, "piece.tbp");
+		File midiFile = new File(dir, "piece.mid");
+		Files.write(tabFile.toPath(), "tab".getBytes("UTF-8"));
+		Files.write(midiFile.toPath(), "midi".getBytes("UTF-8"));
+		ResultCache cache = new ResultCache(
+			new File(dir, InputCache.DIR), new HashSet<>(Arrays.asList("other"))
+		);
+
+		String key = ResultCache.getKey(
+			tabFile, midiFile, true, false, TabMapper.Connection.RIGHT, false, null
+		);
+		assertNotEquals(key, ResultCache.getKey(
+			tabFile, midiFile, false, false, TabMapper.Connection.RIGHT, false, null)
+		);
+		// The key includes that of the code, which is the hash of its class files
+		assertEquals(64, ResultCache.getCodeKey().length());
+		assertEquals(ResultCache.getCodeKey(), ResultCache.getCodeKey());
+		assertNull(cache.get(key));
+		assertFalse(cache.isLastKey("piece", key));
+
+		List<List<Integer>> mismatchInds = new ArrayList<>();
+		mismatchInds.add(null);
+		mismatchInds.add(new ArrayList<>(Arrays.asList(3, 4)));
+		ResultCache.Result r = new ResultCache.Result(
+			Arrays.asList(Arrays.asList(1.0, 0.0), null), mismatchInds, new MappingRecords()
+		);
+		mismatchInds.get(1).clear();
+		r.csvOrn = Arrays.asList("ornament,voice,bar,pitch");
+		// Only stored once all output files have been
+		File csvFile = new File(dir, "piece-mapping.csv");
+		File meiFile = new File(dir, "piece.mei");
+		List<File> outputFiles = Arrays.asList(csvFile, meiFile);
+		try {
+			cache.put("piece", key, r, outputFiles);
+			fail();
+		} catch (IOException e) {
+		}
+		assertNull(cache.get(key));
+		Files.write(meiFile.toPath(), "mei".getBytes("UTF-8"));
+		cache.put("piece", key, r, outputFiles);
+
+		ResultCache.Result cached = cache.get(key);
+		assertEquals(Arrays.asList(Arrays.asList(1.0, 0.0), null), cached.voiceLabels);
+		assertEquals(Arrays.asList(null, Arrays.asList(3, 4)), cached.mismatchInds);
+		assertEquals(r.csvOrn, cached.csvOrn);
+		// The CSV files are not part of the output key
+		assertEquals(ResultCache.getOutputKey(outputFiles), cached.outputKey);
+		Files.write(meiFile.toPath(), "mei2".getBytes("UTF-8"));
+		assertNotEquals(ResultCache.getOutputKey(outputFiles), cached.outputKey);
+		meiFile.delete();
+		assertNull(ResultCache.getOutputKey(outputFiles));
+		assertTrue(cache.isLastKey("piece", key));
+		cache.clearLastKey("piece");
+		assertFalse(cache.isLastKey("piece", key));
+
+		assertFalse(cache.isInvalidated("piece.tbp"));
+		assertTrue(cache.isInvalidated("other.tbp"));
+	}
+
+
+	@Test
+	public void testMappingService() {
+		OutputWriter writer = new OutputWriter(1);
+		List<Object[]> calls = new ArrayList<>();
+		AtomicInteger numCached = new AtomicInteger();
+		MappingProfile profile = new MappingProfile();
+		MappingService service = new MappingService(
+			(piece, pieceInd, tabDir, midiDir, orn, dur, conn) -> {
+				profile.startPiece(pieceInd, piece[0]);
+				profile.count(pieceInd, MappingMetrics.Counter.CHORDS_MAPPED, 1);
+				calls.add(new Object[]{piece[0], piece[1], tabDir, midiDir, orn, dur, conn});
+				List<List<Double>> voiceLabels = Arrays.asList(
+					LabelTools.createVoiceLabel(new Integer[]{0}, 5), null, 
+					LabelTools.createVoiceLabel(new Integer[]{1, 2}, 5)
+				);
+				List<List<Integer>> mismatchInds = Arrays.asList(
+					null, Arrays.asList(1), new ArrayList<>(), Arrays.asList(2), 
+					new ArrayList<>(), new ArrayList<>()
+				);
+				Runnable cacheResult = numCached::incrementAndGet;
+				// The variant requested is the second; the other one is cached too
+				List<Object> other = Arrays.asList(null, null, null, null, null, null, 
+					Arrays.asList(new File("out/other/piece.mei")), cacheResult);
+				List<Object> requested = Arrays.asList(null, null, null, null, voiceLabels, 
+					mismatchInds, Arrays.asList(new File("out/piece.mei")), cacheResult);
+				return Arrays.asList(new Object[]{1, Arrays.asList(other, requested)});
+			}, writer, profile, "in/tab/", "in/MIDI/", true, false, TabMapper.Connection.RIGHT, 1
+		);
+
+		assertEquals("{\"status\": \"ok\", \"voices\": [[0], null, [1, 2]], " + 
+			"\"mismatches\": {\"ornamentation\": [1], \"repetition\": [], \"ficta\": [2], " + 
+			"\"adaptation\": [], \"special_ornamentation\": []}, \"files\": [\"out/piece.mei\"]}", 
+			service.handleRequest("piece.tbp\tpiece.mid\torn=n\tconnection=left")
+		);
+		assertArrayEquals(new Object[]{"piece.tbp", "piece.mid", "in/tab/", "in/MIDI/", false, 
+			false, TabMapper.Connection.LEFT}, calls.get(0));
+		assertEquals(2, numCached.get());
+		// The metrics of a request are forgotten once it is answered
+		assertEquals(1, profile.toCsv().split("\r\n").length);
+		assertTrue(service.handleRequest("piece.tbp").startsWith("{\"status\": \"error\""));
+		assertTrue(service.handleRequest("piece.tbp\tpiece.mid\torn=x").startsWith(
+			"{\"status\": \"error\"")
+		);
+		assertEquals(1, calls.size());
+		writer.close();
+	}
+
+
+	@Test
+	public void testMappingServiceShutdown() throws Exception {
+		OutputWriter writer = new OutputWriter(1);
+		MappingService service = new MappingService(
+			(piece, pieceInd, tabDir, midiDir, orn, dur, conn) -> null, writer, 
+			MappingMetrics.NONE, "in/tab/", "in/MIDI/", true, false, TabMapper.Connection.RIGHT, 1
+		);
+		Thread serving = new Thread(() -> {
+			try {
+				service.serve(0);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		serving.start();
+		while (service.getPort() == -1) {
+			Thread.sleep(10);
+		}
+
+		// More connections than workers are accepted, and an idle one does not keep the 
+		// service from stopping
+		try (Socket idle = new Socket(InetAddress.getLoopbackAddress(), service.getPort());
+			Socket client = new Socket(InetAddress.getLoopbackAddress(), service.getPort())) {
+			BufferedReader in = new BufferedReader(
+				new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8);
+			out.write("piece.tbp\n");
+			out.flush();
+			assertTrue(in.readLine().startsWith("{\"status\": \"error\""));
+			out.write(MappingService.SHUTDOWN + "\n");
+			out.flush();
+			serving.join(10000);
+			assertFalse(serving.isAlive());
+			assertEquals(-1, idle.getInputStream().read());
+		}
+		writer.close();
+	}
+
+
+	// Asserts that the given mappings, as returned by TabMapper.map(), have the same voice 
+	// labels, mismatch indices, and rows of the mapping CSV
+	private static void assertSameMapping(List<Object> expected, List<Object> actual) {
+		assertEquals(expected.get(0), actual.get(0));
+		assertEquals(expected.get(1), actual.get(1));
+		MappingRecords expectedRecords = (MappingRecords) expected.get(2);
+		MappingRecords actualRecords = (MappingRecords) actual.get(2);
+		assertEquals(expectedRecords.size(), actualRecords.size());
+		for (int i = 0; i < expectedRecords.size(); i++) {
+			assertEquals(expectedRecords.getLine(i), actualRecords.getLine(i));
+		}
+	}
+
 }